@@ -68,16 +68,30 @@ public class Const {
     public static final String SCREEN_RECORDING_RESUME = "com.adadev.xrecorder.services.action.resumerecording";
     public static final String SCREEN_RECORDING_STOP = "com.adadev.xrecorder.services.action.stoprecording";
     public static final String SCREEN_RECORDING_DESTORY_SHAKE_GESTURE = "com.adadev.xrecorder.services.action.destoryshakegesture";
+    public static final String SCREEN_RECORDING_SAVE_REPLAY = "com.adadev.xrecorder.services.action.savereplay";
+    public static final String GIF_EXPORT_ENQUEUE = "com.adadev.xrecorder.services.action.enqueuegifexport";
+    public static final String GIF_EXPORT_CANCEL = "com.adadev.xrecorder.services.action.cancelgifexport";
+    public static final String GIF_EXPORT_RESUME = "com.adadev.xrecorder.services.action.resumegifexports";
+    public static final String GIF_EXPORT_URI = "gif_export_uri";
+    public static final String GIF_EXPORT_START_MS = "gif_export_start_ms";
+    public static final String GIF_EXPORT_END_MS = "gif_export_end_ms";
+    public static final String GIF_EXPORT_JOB_ID = "gif_export_job_id";
     public static final String SCREEN_RECORDER_VIDEOS_LIST_FRAGMENT_INTENT = "com.adadev.xrecorder.SHOWVIDEOSLIST";
     public static final int SCREEN_RECORDER_NOTIFICATION_ID = 5001;
     public static final int SCREEN_RECORDER_SHARE_NOTIFICATION_ID = 5002;
     public static final int SCREEN_RECORDER_WAITING_FOR_SHAKE_NOTIFICATION_ID = 5003;
+    public static final int GIF_EXPORT_NOTIFICATION_ID = 5004;
+    public static final int SCREEN_RECORDER_FINALIZING_NOTIFICATION_ID = 5005;
+    public static final int GIF_EXPORT_JOB_NOTIFICATION_ID = 5100; // plus the job id
+    public static final int GIF_OPTIMIZE_JOB_ID = 6001;
     public static final String RECORDER_INTENT_DATA = "recorder_intent_data";
     public static final String RECORDER_INTENT_RESULT = "recorder_intent_result";
     public static final String RECORDING_NOTIFICATION_CHANNEL_ID = "recording_notification_channel_id1";
     public static final String SHARE_NOTIFICATION_CHANNEL_ID = "share_notification_channel_id1";
     public static final String RECORDING_NOTIFICATION_CHANNEL_NAME = "Shown Persistent notification when recording screen or when waiting for shake gesture";
     public static final String SHARE_NOTIFICATION_CHANNEL_NAME = "Show Notification to share or edit the recorded video";
+    public static final String GIF_EXPORT_NOTIFICATION_CHANNEL_ID = "gif_export_notification_channel_id1";
+    public static final String GIF_EXPORT_NOTIFICATION_CHANNEL_NAME = "Show progress of GIF exports";
     public static final String COUNTLY_USAGE_STATS_GROUP_NAME = "analytics_group";
     public static final String CHANGELOG_VER = "Changelog_ver";
 
@@ -88,6 +102,10 @@ public class Const {
     public static final String PREFS_BLACK_THEME = "black_theme";
     public static final String PREFS_CAMERA_OVERLAY_POS = "camera_overlay_pos";
     public static final String PREFS_INTERNAL_AUDIO_DIALOG_KEY = "int_audio_diag";
+    public static final String PREFS_GIF_EXPORT_JOBS = "gif_export_jobs";
+    public static final String PREFS_GIF_EXPORT_NEXT_ID = "gif_export_next_id";
+    public static final String PREFS_GIF_OPTIMIZED = "gif_optimized";
+    public static final String PREFS_UNFINISHED_RECORDINGS = "unfinished_recordings";
 
     public enum RecordingState {
         RECORDING, PAUSED, STOPPED
@@ -39,7 +39,7 @@ import android.widget.Toast;
 
 import com.adadev.xrecorder.Const;
 import com.adadev.xrecorder.R;
-import com.adadev.xrecorder.encoder.Mp4toGIFConverter;
+import com.adadev.xrecorder.services.GifExportService;
 import com.adadev.xrecorder.ui.EditVideoActivity;
 import com.adadev.xrecorder.ui.VideosListFragment;
 
@@ -268,9 +268,8 @@ public class VideoRecyclerAdapter extends RecyclerView.Adapter<RecyclerView.View
                                         videosListFragment.startActivityForResult(editIntent, Const.VIDEO_EDIT_REQUEST_CODE);
                                         break;
                                     case R.id.savegif:
-                                        Mp4toGIFConverter gif = new Mp4toGIFConverter(context);
-                                        gif.setVideoUri(Uri.fromFile(video.getFile()));
-                                        gif.convertToGif();
+                                        GifExportService.enqueue(context, Uri.fromFile(video.getFile()), 0, -1);
+                                        Toast.makeText(context, R.string.gif_export_queued, Toast.LENGTH_SHORT).show();
                                 }
                                 return true;
                             }
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import android.graphics.Bitmap;
+
+/**
+ * Hands a Bitmap to {@link GifEncoder}
+ */
+public class BitmapPixelBuffer implements PixelBuffer {
+
+    private final Bitmap bitmap;
+
+    public BitmapPixelBuffer(Bitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return bitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return bitmap.getHeight();
+    }
+
+    @Override
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        bitmap.getPixels(pixels, offset, stride, x, y, width, height);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a JPEG contact sheet: a grid of thumbnails of frames spread evenly
+ * over the video. Only the frames picked for a tile are scaled, the others are
+ * skipped without reading their pixels.
+ */
+public class ContactSheetWriter implements FrameSink {
+
+    private final File file;
+    private final int columns, rows;
+    private final int tileWidth;
+    private int expectedFrames; // frames the source will provide, 0 = unknown
+    private Bitmap sheet;
+    private FrameScaler scaler;
+    private int[] tile; // pixels of the thumbnail being drawn
+    private int frameIndex; // frames added so far
+    private int tiles; // tiles drawn so far
+
+    /**
+     * @param tileWidth width of a thumbnail, the height follows the video's aspect ratio
+     */
+    public ContactSheetWriter(File file, int columns, int rows, int tileWidth) {
+        this.file = file;
+        this.columns = Math.max(1, columns);
+        this.rows = Math.max(1, rows);
+        this.tileWidth = Math.max(1, tileWidth);
+    }
+
+    /**
+     * Sets the number of frames the source is going to provide, so that the
+     * thumbnails cover the whole video. Without it, the first frames fill the
+     * sheet.
+     */
+    public void setExpectedFrames(int frames) {
+        expectedFrames = Math.max(0, frames);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public boolean addFrame(PixelBuffer im) {
+        if (im == null)
+            return false;
+        if (sheet == null) {
+            int w = Math.min(tileWidth, im.getWidth());
+            int h = Math.max(1, Math.round((float) im.getHeight() * w / im.getWidth()));
+            scaler = new FrameScaler(im.getWidth(), im.getHeight(), w, h);
+            tile = new int[w * h];
+            sheet = Bitmap.createBitmap(columns * w, rows * h, Bitmap.Config.ARGB_8888);
+        }
+        int count = columns * rows;
+        // the frame at the start of each of count equal parts of the video
+        long next = expectedFrames > 0 ? (long) tiles * expectedFrames / count : tiles;
+        if (tiles < count && frameIndex >= next && scaler.accepts(im)) {
+            int w = scaler.getWidth(), h = scaler.getHeight();
+            scaler.scale(im, tile);
+            sheet.setPixels(tile, 0, w, (tiles % columns) * w, (tiles / columns) * h, w, h);
+            tiles++;
+        }
+        frameIndex++;
+        return true;
+    }
+
+    /**
+     * Compresses the sheet to a temporary file next to the destination and
+     * renames it, so a failed write leaves no partial file behind.
+     */
+    @Override
+    public boolean finish() {
+        if (sheet == null)
+            return false;
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        boolean ok;
+        try (OutputStream out = new FileOutputStream(temp)) {
+            ok = sheet.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        } catch (IOException e) {
+            ok = false;
+        }
+        ok = ok && temp.renameTo(file);
+        if (!ok)
+            temp.delete();
+        abort();
+        return ok;
+    }
+
+    @Override
+    public void abort() {
+        if (sheet != null) {
+            sheet.recycle();
+            sheet = null;
+        }
+        tile = null;
+        scaler = null;
+    }
+}
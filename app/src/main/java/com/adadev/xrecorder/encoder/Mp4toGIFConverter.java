@@ -17,24 +17,22 @@
 
 package com.adadev.xrecorder.encoder;
 
-import android.app.ProgressDialog;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.adadev.xrecorder.Const;
+import com.adadev.xrecorder.R;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Created by vijai on 31-08-2017.
@@ -43,129 +41,284 @@ import java.io.IOException;
 public class Mp4toGIFConverter {
     private Uri videoUri;
     private Context context;
-    private long maxDur = 5000;
-    private MediaMetadataRetriever mediaMetadataRetriever;
+    private float frameRate = 10f;
+    private long startMs = 0, endMs = -1; // range of the video to convert, endMs -1 for all
+    private long timeBudgetMs = 0, sizeBudget = 0; // limits of an adaptive export, 0 for none
+    private int parallelism = Runtime.getRuntime().availableProcessors(); // frames encoded at once
+    private volatile boolean cancelled;
+    private String report = ""; // parameters chosen by an adaptive export
+    private List<Integer> gifWidths = new ArrayList<>(); // maximum width of each GIF written, largest first
+    private boolean contactSheet; // also write a JPEG contact sheet
+    private List<File> saved = new ArrayList<>(); // files written by the last conversion
 
-    public Mp4toGIFConverter(Context context) {
-        this();
-        this.context = context;
+    private static final String CONTACT_SHEET = "sheet"; // output preference value of the contact sheet
+
+    /**
+     * Receives the share of the video converted so far
+     */
+    public interface ProgressListener {
+        void onProgress(int percent);
     }
 
-    private Mp4toGIFConverter() {
-        mediaMetadataRetriever = new MediaMetadataRetriever();
+    public Mp4toGIFConverter(Context context) {
+        this.context = context;
+        setBudget(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(context.getString(R.string.preference_gif_budget_key), "0"));
+        setOutputs(PreferenceManager.getDefaultSharedPreferences(context)
+                .getStringSet(context.getString(R.string.preference_gif_outputs_key),
+                        Collections.singleton("720")));
     }
 
     public void setVideoUri(Uri videoUri) {
         this.videoUri = videoUri;
     }
 
-    public void convertToGif(){
-        //MediaMetadataRetriever tRetriever = new MediaMetadataRetriever();
+    /**
+     * Sets the number of video frames per second of video that go into the GIF
+     */
+    public void setFrameRate(float fps) {
+        if (fps > 0)
+            frameRate = fps;
+    }
 
-        try{
-            mediaMetadataRetriever.setDataSource(context, videoUri);
+    /**
+     * Converts only the part of the video between the given times
+     */
+    public void setRange(long startMs, long endMs) {
+        this.startMs = startMs;
+        this.endMs = endMs;
+    }
 
-            //extract duration in millisecond
-            String DURATION = mediaMetadataRetriever.extractMetadata(
-                    MediaMetadataRetriever.METADATA_KEY_DURATION);
-            maxDur = (long)(Double.parseDouble(DURATION));
+    /**
+     * Sets the number of frames encoded at the same time, the core count by
+     * default
+     */
+    public void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
 
-            Log.d(Const.TAG, "max dur is" + maxDur);
+    /**
+     * Limits the export to a time like "10s" or a file size like "8mb". Within
+     * a budget, scale, quality and frame rate are lowered as needed. "0" turns
+     * the limit off.
+     */
+    public void setBudget(String budget) {
+        timeBudgetMs = 0;
+        sizeBudget = 0;
+        try {
+            if (budget.endsWith("mb"))
+                sizeBudget = Long.parseLong(budget.substring(0, budget.length() - 2)) * 1024 * 1024;
+            else if (budget.endsWith("s"))
+                timeBudgetMs = Long.parseLong(budget.substring(0, budget.length() - 1)) * 1000;
+        } catch (NumberFormatException e) {
+            Log.e(Const.TAG, "Invalid GIF budget " + budget);
+        }
+    }
 
-            TaskSaveGIF myTaskSaveGIF = new TaskSaveGIF();
-            myTaskSaveGIF.execute();
-        }catch(RuntimeException e){
-            e.printStackTrace();
-            Toast.makeText(context,
-                    "Something Wrong!",
-                    Toast.LENGTH_LONG).show();
+    /**
+     * Sets the files written from the one decoding pass: a GIF for each
+     * maximum width like "320", and "sheet" for a JPEG contact sheet. A 720
+     * pixel GIF is written when nothing else is chosen.
+     */
+    public void setOutputs(Set<String> outputs) {
+        gifWidths.clear();
+        contactSheet = false;
+        for (String output : outputs) {
+            if (output.equals(CONTACT_SHEET)) {
+                contactSheet = true;
+                continue;
+            }
+            try {
+                gifWidths.add(Integer.parseInt(output));
+            } catch (NumberFormatException e) {
+                Log.e(Const.TAG, "Invalid GIF output " + output);
+            }
         }
+        if (gifWidths.isEmpty() && !contactSheet)
+            gifWidths.add(720);
+        Collections.sort(gifWidths, Collections.reverseOrder());
     }
 
-    public class TaskSaveGIF extends AsyncTask<Void, Integer, String> {
-        ProgressDialog dialog = new ProgressDialog(context);
+    /**
+     * Stops a running conversion at the next frame. The partial GIF is
+     * discarded.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
 
-        private String getGifFIleName(){
-            String Filename = videoUri.getLastPathSegment();
-            return Filename.replace("mp4", "gif");
-        }
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns the parameters chosen by an export within a budget, empty
+     * otherwise
+     */
+    public String getReport() {
+        return report;
+    }
 
+    /**
+     * Returns the file the GIF is written to, next to the recordings. Smaller
+     * GIFs written along with it get their width appended to the name.
+     */
+    public File getGifFile() {
+        String extStorageDirectory = Environment.getExternalStorageDirectory().toString();
+        return new File(extStorageDirectory + File.separator + Const.APPDIR, getGifFIleName());
+    }
 
+    /**
+     * Returns the files written by the last conversion, also the ones that
+     * were saved when others failed
+     */
+    public List<File> getSavedFiles() {
+        return saved;
+    }
 
-        @Override
-        protected String doInBackground(Void... params) {
-            String extStorageDirectory = Environment.getExternalStorageDirectory().toString();
-            File outFile = new File(extStorageDirectory + File.separator + Const.APPDIR, getGifFIleName());
-            try {
-                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(outFile));
-                bos.write(genGIF());
-                bos.flush();
-                bos.close();
-
-
-                return(outFile.getAbsolutePath() + " Saved");
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return e.getMessage();
-            } catch (IOException e) {
-                e.printStackTrace();
-                return e.getMessage();
-            }
-        }
+    private File getOutputFile(int gifWidth) {
+        File gif = getGifFile();
+        if (gifWidth == gifWidths.get(0))
+            return gif;
+        return new File(gif.getParentFile(), gif.getName().replace(".gif", "_" + gifWidth + "px.gif"));
+    }
 
-        @Override
-        protected void onPreExecute() {
-            dialog.setTitle("Please wait. Saving GIF");
-            dialog.setCancelable(false);
-            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-            dialog.setMax(100);
-            dialog.show();
-        }
+    private File getContactSheetFile() {
+        File gif = getGifFile();
+        return new File(gif.getParentFile(), gif.getName().replace(".gif", "_sheet.jpg"));
+    }
 
-        @Override
-        protected void onPostExecute(String result) {
-            Toast.makeText(context,
-                    result,
-                    Toast.LENGTH_LONG).show();
-            dialog.cancel();
-        }
+    private String getGifFIleName(){
+        String Filename = videoUri.getLastPathSegment();
+        if (endMs >= 0)
+            Filename = Filename.replace(".mp4", "_" + startMs / 1000 + "-" + endMs / 1000 + "s.mp4");
+        return Filename.replace("mp4", "gif");
+    }
 
-        @Override
-        protected void onProgressUpdate(Integer... values) {
-            //bar.setProgress(values[0]);
-            //updateFrame();
-            dialog.setProgress(values[0]);
+    /**
+     * Converts the video on the calling thread.
+     *
+     * @return true if the GIF was saved, false if it failed or was cancelled.
+     */
+    public boolean convert(ProgressListener listener) {
+        saved.clear();
+        return genGIF(listener);
+    }
 
-            Log.d(Const.TAG, "Gif save progress: " + values[0]);
-        }
+    private GifEncoder createEncoder(int maxWidth, int threads) {
+        GifEncoder animatedGifEncoder = new GifEncoder();
+        animatedGifEncoder.setRepeat(0);
+        animatedGifEncoder.setQuality(15);
+        animatedGifEncoder.setFrameRate(frameRate);
+        animatedGifEncoder.setMaxWidth(maxWidth);
+        animatedGifEncoder.setColorMap(6, 0);
+        animatedGifEncoder.setPaletteReuse(3);
+        animatedGifEncoder.setWarmStart(true);
+        animatedGifEncoder.setDirtyRectangles(true);
+        animatedGifEncoder.setCoalesceDuplicates(true);
+        animatedGifEncoder.setDenseLZW(true);
+        animatedGifEncoder.setParallelism(threads);
+        // decode and quantize ahead of writing without holding more frames in memory
+        animatedGifEncoder.setSpool(context.getCacheDir(), 64L * 1024 * 1024 / gifWidths.size(), 4 * 1024 * 1024);
+        return animatedGifEncoder;
+    }
 
-        private byte[] genGIF(){
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-            GifEncoder animatedGifEncoder = new GifEncoder();
-            animatedGifEncoder.setDelay(1000);
-            animatedGifEncoder.setRepeat(0);
-            animatedGifEncoder.setQuality(15);
-            //animatedGifEncoder.setSize(0,0);
-            animatedGifEncoder.setFrameRate(20.0f);
-
-            Bitmap bmFrame;
-            animatedGifEncoder.start(bos);
-            for(int i=0; i<100; i+=10){
-                long frameTime = maxDur * i/100;
-                Log.d(Const.TAG, "GIF GETTING FRAME AT: " + frameTime + "ms");
-                bmFrame = mediaMetadataRetriever.getFrameAtTime(frameTime);
-                animatedGifEncoder.addFrame(bmFrame);
-                publishProgress(i);
+    /**
+     * Decodes the video once and hands every frame to all outputs, which
+     * encode it at the same time and stream it to their files. With a budget
+     * set and a single GIF to write, the frames go through an
+     * {@link AdaptiveGifEncoder} instead. Returns false if an output could not
+     * be written completely, which leaves no file of it behind.
+     */
+    private boolean genGIF(ProgressListener listener){
+        FrameFanout outputs = new FrameFanout();
+        List<File> files = new ArrayList<>();
+        // the cores are shared among the GIFs, the contact sheet takes little time
+        int threads = Math.max(1, parallelism / Math.max(1, gifWidths.size()));
+        try (VideoFrameExtractor frames = new VideoFrameExtractor(context, videoUri, frameRate)) {
+            Log.d(Const.TAG, "GIF from " + frames.getWidth() + "x" + frames.getHeight()
+                    + " video of " + frames.getDurationUs() / 1000 + "ms at " + frameRate + " fps");
+            long from = startMs * 1000;
+            long to = frames.getDurationUs();
+            if (endMs >= 0) {
+                to = Math.min(endMs * 1000, to > 0 ? to : Long.MAX_VALUE);
+                frames.setRange(from, to);
             }
+            long duration = Math.max(1, to - from);
+            FrameSource source = new FrameSource() {
+                @Override
+                public PixelBuffer nextFrame() throws IOException {
+                    if (cancelled)
+                        throw new InterruptedIOException("GIF export cancelled");
+                    PixelBuffer frame = frames.nextFrame();
+                    listener.onProgress((int) Math.max(0, Math.min(100, 100 * (frames.getPositionUs() - from) / duration)));
+                    return frame;
+                }
 
-            //last from at end
-            bmFrame = mediaMetadataRetriever.getFrameAtTime(maxDur);
-            animatedGifEncoder.addFrame(bmFrame);
-            publishProgress(100);
+                @Override
+                public void close() {
+                }
+            };
+            int expectedFrames = to > from ? (int) Math.ceil((to - from) / 1e6 * frameRate) : 0;
+            if ((timeBudgetMs > 0 || sizeBudget > 0) && gifWidths.size() == 1 && !contactSheet) {
+                File outFile = getOutputFile(gifWidths.get(0));
+                AdaptiveGifEncoder adaptive = new AdaptiveGifEncoder(createEncoder(gifWidths.get(0), threads));
+                adaptive.setQuality(15);
+                adaptive.setFrameRate(frameRate);
+                adaptive.setTimeBudget(timeBudgetMs);
+                adaptive.setSizeBudget(sizeBudget);
+                adaptive.setExpectedFrames(expectedFrames);
+                AdaptiveGifEncoder.Result result = adaptive.encode(source, outFile);
+                Log.d(Const.TAG, "Adaptive GIF: " + result);
+                report = result.toString();
+                saved.add(outFile);
+                listener.onProgress(100);
+                return true;
+            }
+            if (gifWidths.size() > 1 && (timeBudgetMs > 0 || sizeBudget > 0))
+                Log.d(Const.TAG, "GIF budget ignored, it applies to a single GIF");
+            for (int gifWidth : gifWidths) {
+                File outFile = getOutputFile(gifWidth);
+                GifEncoder animatedGifEncoder = createEncoder(gifWidth, threads);
+                outputs.addOutput(animatedGifEncoder);
+                files.add(outFile);
+                if (!animatedGifEncoder.start(outFile)) {
+                    Log.e(Const.TAG, "Unable to create " + outFile);
+                    outputs.abort();
+                    return false;
+                }
+            }
+            if (contactSheet) {
+                ContactSheetWriter sheet = new ContactSheetWriter(getContactSheetFile(), 4, 4, 240);
+                sheet.setExpectedFrames(expectedFrames);
+                outputs.addOutput(sheet);
+                files.add(sheet.getFile());
+            }
+            if (!outputs.addFrames(source)) {
+                if (cancelled)
+                    Log.d(Const.TAG, "GIF export of " + videoUri + " cancelled");
+                else
+                    Log.e(Const.TAG, "Unable to convert " + videoUri);
+                outputs.abort();
+                return false;
+            }
+        } catch (IOException e) {
+            if (cancelled)
+                Log.d(Const.TAG, "GIF export of " + videoUri + " cancelled");
+            else
+                Log.e(Const.TAG, "Unable to decode " + videoUri, e);
+            outputs.abort();
+            return false;
+        }
+        listener.onProgress(100);
 
-            animatedGifEncoder.finish();
-            return bos.toByteArray();
+        boolean ok = outputs.finish();
+        for (int i = 0; i < files.size(); i++) {
+            if (outputs.isWritten(i))
+                saved.add(files.get(i));
+            else
+                Log.e(Const.TAG, "Unable to write " + files.get(i));
         }
+        return ok;
     }
 }
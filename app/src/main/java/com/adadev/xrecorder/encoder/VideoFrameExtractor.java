@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the video track of a file once, front to back, and hands out its
+ * frames at a fixed frame rate. Every sample is decoded exactly once, so the
+ * cost grows with the length of the video, not with the number of frames
+ * taken times the distance between sync frames as with
+ * MediaMetadataRetriever.getFrameAtTime(). Only the frames handed out are
+ * converted to ARGB.
+ * <p>
+ * Each output frame is the last decoded frame at its time. When the video has
+ * no new frame for a while, as screen recordings often do, the previous frame
+ * is handed out again, so the timing of the GIF matches the video.
+ * <p>
+ * With {@link #setRange(long, long)} only part of the video is handed out.
+ * Decoding then starts at the sync frame before the range and stops once its
+ * end is reached, so the cost depends on the length of the range only.
+ */
+public class VideoFrameExtractor implements FrameSource {
+
+    private static final long TIMEOUT_US = 10000;
+
+    private static final int MAX_IDLE = 500; // timeouts in a row before giving up, 5 s
+
+    private final MediaExtractor extractor;
+
+    private final MediaCodec codec;
+
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    private final long interval; // time between output frames (us)
+
+    private final long durationUs;
+
+    private int width, height;
+
+    private boolean inputDone, outputDone;
+
+    private int peekIndex = -1; // decoded output buffer not handed out yet
+    private long peekTime;
+
+    private long startUs = 0, endUs = Long.MAX_VALUE; // range handed out
+
+    private long frameTime = -1; // time of the next output frame (us), -1 before the first one
+    private long positionUs;
+
+    private ArgbPixelBuffer frame; // last frame handed out
+
+    private byte[] yData, uData, vData; // plane copies, reused
+
+    /**
+     * @param fps
+     *          float frames per second handed out.
+     * @throws IOException
+     *          if the file has no video track or no decoder for it.
+     */
+    public VideoFrameExtractor(Context context, Uri uri, float fps) throws IOException {
+        interval = (long) (1000000 / fps);
+        extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        try {
+            extractor.setDataSource(context, uri, null);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                MediaFormat track = extractor.getTrackFormat(i);
+                if (track.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                    extractor.selectTrack(i);
+                    format = track;
+                }
+            }
+            if (format == null)
+                throw new IOException("No video track in " + uri);
+            width = format.getInteger(MediaFormat.KEY_WIDTH);
+            height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            decoder.configure(format, null, null, 0);
+            decoder.start();
+        } catch (IOException | RuntimeException e) {
+            if (decoder != null)
+                decoder.release();
+            extractor.release();
+            throw e instanceof IOException ? (IOException) e : new IOException("Unable to decode " + uri, e);
+        }
+        codec = decoder;
+    }
+
+    /**
+     * Returns the frame width, known from the track before decoding starts
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the duration of the video track, 0 if unknown
+     */
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * Limits the frames handed out to a time range. Must be invoked before
+     * the first frame is read.
+     *
+     * @param startUs
+     *          long time of the first frame.
+     * @param endUs
+     *          long time after which no more frames are handed out.
+     */
+    public void setRange(long startUs, long endUs) {
+        this.startUs = Math.max(0, startUs);
+        this.endUs = Math.max(this.startUs, endUs);
+        if (this.startUs > 0) {
+            extractor.seekTo(this.startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+    }
+
+    /**
+     * Returns the presentation time of the last frame handed out
+     */
+    public long getPositionUs() {
+        return positionUs;
+    }
+
+    @Override
+    public PixelBuffer nextFrame() throws IOException {
+        try {
+            if (frameTime < 0) {
+                if (!peek())
+                    return null;
+                frameTime = Math.max(startUs, peekTime);
+            }
+            if (frameTime > endUs)
+                return null; // no need to decode any further
+            // skip to the last decoded frame due at frameTime
+            int index = -1;
+            long time = 0;
+            while (peek() && peekTime <= frameTime) {
+                if (index >= 0)
+                    codec.releaseOutputBuffer(index, false);
+                index = peekIndex;
+                time = peekTime;
+                peekIndex = -1;
+            }
+            if (index >= 0) {
+                try (Image image = codec.getOutputImage(index)) {
+                    if (image == null)
+                        throw new IOException("Decoder output is not YUV 4:2:0");
+                    convert(image);
+                }
+                codec.releaseOutputBuffer(index, false);
+                positionUs = time;
+            } else if (peekIndex < 0) {
+                return null; // decoded everything and the last frame is out
+            }
+            frameTime += interval;
+            return frame;
+        } catch (IllegalStateException e) {
+            throw new IOException("Decoding failed", e);
+        }
+    }
+
+    /**
+     * Makes the next decoded frame available as peekIndex and peekTime
+     *
+     * @return false when the decoder has no more frames.
+     */
+    private boolean peek() throws IOException {
+        int idle = 0;
+        while (peekIndex < 0 && !outputDone) {
+            if (!inputDone)
+                queueInput();
+            int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index >= 0) {
+                idle = 0;
+                outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (info.size > 0) {
+                    peekIndex = index;
+                    peekTime = info.presentationTimeUs;
+                } else {
+                    codec.releaseOutputBuffer(index, false);
+                }
+            } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER && ++idle > MAX_IDLE) {
+                throw new IOException("Decoder stopped producing frames");
+            }
+        }
+        return peekIndex >= 0;
+    }
+
+    private void queueInput() {
+        int index = codec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0)
+            return;
+        ByteBuffer buffer = codec.getInputBuffer(index);
+        int size = extractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    /**
+     * Converts a YUV 4:2:0 image of any plane layout to ARGB (BT.601, video range)
+     */
+    private void convert(Image image) {
+        Rect crop = image.getCropRect();
+        if (frame == null) {
+            width = crop.width();
+            height = crop.height();
+            frame = new ArgbPixelBuffer(width, height);
+        }
+        Image.Plane[] planes = image.getPlanes();
+        yData = copy(planes[0].getBuffer(), yData);
+        uData = copy(planes[1].getBuffer(), uData);
+        vData = copy(planes[2].getBuffer(), vData);
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int cRowStride = planes[1].getRowStride();
+        int cPixelStride = planes[1].getPixelStride();
+        int w = Math.min(width, crop.width());
+        int h = Math.min(height, crop.height());
+        int[] pixels = frame.getArray();
+        for (int row = 0; row < h; row++) {
+            int y = crop.top + row;
+            int yOffset = y * yRowStride + crop.left * yPixelStride;
+            int cOffset = (y >> 1) * cRowStride;
+            for (int col = 0, i = row * width; col < w; col++, i++) {
+                int c = cOffset + ((crop.left + col) >> 1) * cPixelStride;
+                int luma = 298 * Math.max(0, (yData[yOffset + col * yPixelStride] & 0xff) - 16) + 128;
+                int u = (uData[c] & 0xff) - 128;
+                int v = (vData[c] & 0xff) - 128;
+                int r = clamp((luma + 409 * v) >> 8);
+                int g = clamp((luma - 100 * u - 208 * v) >> 8);
+                int b = clamp((luma + 516 * u) >> 8);
+                pixels[i] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private static byte[] copy(ByteBuffer buffer, byte[] data) {
+        int size = buffer.remaining();
+        if (data == null || data.length < size)
+            data = new byte[size];
+        buffer.get(data, 0, size);
+        return data;
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : c > 255 ? 255 : c;
+    }
+
+    @Override
+    public void close() {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // already in error state, release anyway
+        }
+        codec.release();
+        extractor.release();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Builds MP4 boxes in memory. Boxes are opened with {@link #start(String)}
+ * and closed with {@link #end()}, which fills in their size, so nested boxes
+ * are written in the order they appear in the file.
+ */
+class BoxBuilder {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private byte[] data = new byte[256];
+
+    private int size;
+
+    private int[] open = new int[16]; // start of each box not ended yet
+    private int depth;
+
+    BoxBuilder start(String type) {
+        if (depth == open.length)
+            open = Arrays.copyOf(open, depth * 2);
+        open[depth++] = size;
+        writeInt(0);
+        return writeType(type);
+    }
+
+    // A box with a version and flags
+    BoxBuilder startFull(String type, int version, int flags) {
+        start(type);
+        return writeInt(version << 24 | flags);
+    }
+
+    BoxBuilder end() {
+        int start = open[--depth];
+        int length = size - start;
+        data[start] = (byte) (length >>> 24);
+        data[start + 1] = (byte) (length >>> 16);
+        data[start + 2] = (byte) (length >>> 8);
+        data[start + 3] = (byte) length;
+        return this;
+    }
+
+    BoxBuilder writeType(String type) {
+        return write(type.getBytes(ASCII));
+    }
+
+    BoxBuilder writeByte(int value) {
+        ensure(1);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    BoxBuilder writeShort(int value) {
+        ensure(2);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    BoxBuilder writeInt(int value) {
+        ensure(4);
+        data[size++] = (byte) (value >>> 24);
+        data[size++] = (byte) (value >>> 16);
+        data[size++] = (byte) (value >>> 8);
+        data[size++] = (byte) value;
+        return this;
+    }
+
+    BoxBuilder writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        return writeInt((int) value);
+    }
+
+    BoxBuilder writeZeros(int count) {
+        ensure(count);
+        Arrays.fill(data, size, size + count, (byte) 0);
+        size += count;
+        return this;
+    }
+
+    BoxBuilder write(byte[] bytes) {
+        return write(bytes, 0, bytes.length);
+    }
+
+    BoxBuilder write(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+        return this;
+    }
+
+    // The unity matrix of tkhd and mvhd
+    BoxBuilder writeMatrix() {
+        writeInt(0x10000).writeInt(0).writeInt(0);
+        writeInt(0).writeInt(0x10000).writeInt(0);
+        return writeInt(0).writeInt(0).writeInt(0x40000000);
+    }
+
+    BoxBuilder writeFileType() {
+        start("ftyp").writeType("isom").writeInt(0x200);
+        writeType("isom").writeType("iso2").writeType("avc1").writeType("mp41");
+        return end();
+    }
+
+    BoxBuilder writeMovieHeader(int timescale, long duration, int nextTrackId) {
+        startFull("mvhd", 0, 0).writeInt(0).writeInt(0).writeInt(timescale).writeInt((int) duration);
+        writeInt(0x10000).writeShort(0x100).writeZeros(10).writeMatrix().writeZeros(24);
+        return writeInt(nextTrackId).end();
+    }
+
+    // Flags 3: the track is enabled and part of the movie
+    BoxBuilder writeTrackHeader(int trackId, long duration, boolean video, int width, int height) {
+        startFull("tkhd", 0, 3).writeInt(0).writeInt(0).writeInt(trackId).writeInt(0).writeInt((int) duration);
+        writeZeros(8).writeShort(0).writeShort(0).writeShort(video ? 0 : 0x100).writeShort(0).writeMatrix();
+        return writeInt(width << 16).writeInt(height << 16).end();
+    }
+
+    // Language "und"
+    BoxBuilder writeMediaHeader(int timescale, long duration) {
+        startFull("mdhd", 0, 0).writeInt(0).writeInt(0).writeInt(timescale).writeInt((int) duration);
+        return writeShort(0x55c4).writeShort(0).end();
+    }
+
+    BoxBuilder writeHandler(boolean video) {
+        startFull("hdlr", 0, 0).writeInt(0).writeType(video ? "vide" : "soun").writeZeros(12);
+        return write((video ? "VideoHandle" : "SoundHandle").getBytes(ASCII)).writeByte(0).end();
+    }
+
+    // vmhd or smhd, and a dinf saying the samples are in this file
+    BoxBuilder writeMediaInformationHeaders(boolean video) {
+        if (video)
+            startFull("vmhd", 0, 1).writeZeros(8).end();
+        else
+            startFull("smhd", 0, 0).writeZeros(4).end();
+        start("dinf").startFull("dref", 0, 0).writeInt(1).startFull("url ", 0, 1).end().end();
+        return end();
+    }
+
+    /**
+     * Writes an H.264 sample entry.
+     *
+     * @param sps sequence parameter set, without start code
+     * @param pps picture parameter set, without start code
+     */
+    BoxBuilder writeAvcSampleEntry(int width, int height, byte[] sps, byte[] pps) {
+        start("avc1").writeZeros(6).writeShort(1).writeZeros(16).writeShort(width).writeShort(height);
+        writeInt(0x480000).writeInt(0x480000).writeInt(0).writeShort(1).writeZeros(32).writeShort(0x18).writeShort(-1);
+        start("avcC").writeByte(1).writeByte(sps[1]).writeByte(sps[2]).writeByte(sps[3]);
+        writeByte(0xff).writeByte(0xe1).writeShort(sps.length).write(sps); // 4 byte NAL lengths, one SPS
+        writeByte(1).writeShort(pps.length).write(pps).end();
+        return end();
+    }
+
+    /**
+     * Writes an AAC sample entry.
+     *
+     * @param config the AudioSpecificConfig, csd-0 of the encoder
+     */
+    BoxBuilder writeAacSampleEntry(int sampleRate, int channels, int bitRate, byte[] config) {
+        start("mp4a").writeZeros(6).writeShort(1).writeZeros(8).writeShort(channels).writeShort(16);
+        writeInt(0).writeInt(sampleRate << 16);
+        // An ES descriptor holding the decoder config, whose specific info is the AudioSpecificConfig
+        startFull("esds", 0, 0);
+        writeByte(0x03).writeByte(3 + 15 + 2 + config.length + 3).writeShort(1).writeByte(0);
+        writeByte(0x04).writeByte(13 + 2 + config.length).writeByte(0x40).writeByte(0x15);
+        writeByte(0).writeShort(0).writeInt(bitRate).writeInt(bitRate);
+        writeByte(0x05).writeByte(config.length).write(config);
+        writeByte(0x06).writeByte(1).writeByte(2).end();
+        return end();
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] toByteArray() {
+        if (depth != 0)
+            throw new IllegalStateException(depth + " boxes not ended");
+        return Arrays.copyOf(data, size);
+    }
+
+    void reset() {
+        size = 0;
+        depth = 0;
+    }
+
+    private void ensure(int count) {
+        if (size + count > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + count));
+    }
+}
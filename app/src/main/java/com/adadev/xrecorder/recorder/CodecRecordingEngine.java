@@ -0,0 +1,768 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import com.adadev.xrecorder.Const;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records with a MediaCodec surface encoder and writes the file with
+ * MediaMuxer, or as a fragmented MP4 with {@link FragmentedMp4Writer} when
+ * {@link RecordingSettings#fragmented} is set. Audio, when asked for, is read
+ * with AudioRecord and encoded to AAC by a second codec.
+ * <p>
+ * Each codec runs in asynchronous mode on its own HandlerThread, so the main
+ * thread never waits for the encoders and a blocking audio read never holds up
+ * the video. Every sample written to the file is also handed to the
+ * {@link SampleListener}, if one is set.
+ * <p>
+ * Pausing keeps the encoders running and drops their output; the time spent
+ * paused is cut out of the timestamps, and after a resume the video picks up
+ * again at a new sync frame.
+ * <p>
+ * A split recording moves on to the next file at the first video sync frame
+ * past the length or size of a part; one is asked for as soon as the limit is
+ * crossed. Every sample goes to exactly one part, so none is lost between
+ * them.
+ * <p>
+ * Without an {@link RecordingSettings#outputPath} no file is written and the
+ * samples only go to the listener.
+ */
+public class CodecRecordingEngine implements RecordingEngine {
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    /**
+     * Sees every encoded sample that goes into the file, in file order. Called
+     * on the encoder threads, one call at a time. The data is only valid
+     * during the call.
+     */
+    public interface SampleListener {
+
+        /**
+         * Called once per track, before its first sample.
+         */
+        void onFormat(int track, MediaFormat format);
+
+        void onSample(int track, ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+
+    private static final int IFRAME_INTERVAL = 1; // seconds between sync frames
+
+    private static final long REPEAT_FRAME_AFTER_US = 200000; // keeps frames coming while the screen is still
+
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    private static final int DEFAULT_AUDIO_BIT_RATE = 128000;
+
+    private static final long STOP_TIMEOUT_MS = 3000;
+
+    private static final int MAX_PENDING = 120; // samples held back until every track has its format
+
+    private final RecordingSettings settings;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread videoThread, audioThread;
+
+    private MediaCodec videoCodec, audioCodec;
+
+    private AudioRecord audioRecord;
+
+    private int audioBytesPerSecond;
+
+    private boolean audioEndQueued; // audio thread only
+
+    private Surface surface;
+
+    private boolean prepared;
+
+    private CountDownLatch finished; // counted down as each codec puts out its end of stream
+
+    private Listener listener;
+
+    private SampleListener sampleListener;
+
+    private volatile boolean stopping, failed;
+
+    // Everything below is guarded by lock
+    private final Object lock = new Object();
+
+    private SampleWriter writer; // null when there is no file
+
+    private final int[] tracks = {-1, -1}; // writer track of each TRACK_ constant
+    private final MediaFormat[] formats = new MediaFormat[2];
+
+    private boolean outputStarted, closed;
+
+    private final List<Sample> pending = new ArrayList<>();
+
+    private final List<long[]> pauses = new ArrayList<>(); // {start, end} (us), end is MAX_VALUE while paused
+
+    private boolean needKeyFrame = true; // video is dropped until the next sync frame
+
+    private long lastAudioUs = -1;
+
+    private long bytesWritten;
+
+    private int segment = 1; // part being written, counted from 1
+
+    private long segmentStartUs = -1, segmentBytes;
+
+    private boolean syncFrameRequested;
+
+    private boolean wroteVideo, maxSizeReached;
+
+    public CodecRecordingEngine(RecordingSettings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the listener for encoded samples. If the file has already started,
+     * the listener is first told the format of every track.
+     */
+    public void setSampleListener(SampleListener sampleListener) {
+        synchronized (lock) {
+            this.sampleListener = sampleListener;
+            if (sampleListener != null && outputStarted) {
+                for (int track = 0; track < formats.length; track++) {
+                    if (formats[track] != null)
+                        sampleListener.onFormat(track, formats[track]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void prepare() throws IOException {
+        if (settings.outputPath != null)
+            writer = openWriter(settings.getSegmentPath(segment));
+        finished = new CountDownLatch(settings.hasAudio() ? 2 : 1);
+
+        /* Without a handler, MediaCodec calls back on the looper of the thread that created it,
+         * so each codec is created on its own thread */
+        videoThread = new HandlerThread("CodecRecordingEngine video");
+        videoThread.start();
+        runOn(videoThread, this::prepareVideo);
+        if (settings.hasAudio()) {
+            audioThread = new HandlerThread("CodecRecordingEngine audio");
+            audioThread.start();
+            runOn(audioThread, this::prepareAudio);
+        }
+        prepared = true;
+    }
+
+    private void prepareVideo() throws IOException {
+        String mime = getVideoMime();
+        MediaFormat format = MediaFormat.createVideoFormat(mime, settings.width, settings.height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, settings.videoBitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, settings.frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, REPEAT_FRAME_AFTER_US);
+
+        videoCodec = MediaCodec.createEncoderByType(mime);
+        videoCodec.setCallback(new EncoderCallback(TRACK_VIDEO));
+        videoCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        surface = videoCodec.createInputSurface();
+    }
+
+    private void prepareAudio() throws IOException {
+        int sampleRate = settings.audioSampleRate > 0 ? settings.audioSampleRate : DEFAULT_SAMPLE_RATE;
+        int channels = settings.audioChannels == 2 ? 2 : 1;
+        int channelMask = channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int minBuffer = AudioRecord.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0)
+            throw new IOException("Audio of " + sampleRate + " Hz and " + channels + " channels is not supported");
+        audioRecord = new AudioRecord(settings.audioSource, sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT, minBuffer * 4);
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED)
+            throw new IOException("Could not open audio source " + settings.audioSource);
+        audioBytesPerSecond = sampleRate * channels * 2;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE,
+                settings.audioBitRate > 0 ? settings.audioBitRate : DEFAULT_AUDIO_BIT_RATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBuffer);
+
+        audioCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        audioCodec.setCallback(new EncoderCallback(TRACK_AUDIO));
+        audioCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface getSurface() {
+        return surface;
+    }
+
+    @Override
+    public String getOutputPath() {
+        synchronized (lock) {
+            return settings.getSegmentPath(segment);
+        }
+    }
+
+    // Fragmented files are written by our own muxer, which only knows H.264
+    @Override
+    public String getVideoMime() {
+        return settings.videoMime != null && !settings.fragmented ? settings.videoMime : MediaFormat.MIMETYPE_VIDEO_AVC;
+    }
+
+    @Override
+    public void start() {
+        if (!prepared)
+            throw new IllegalStateException("The recorder is not prepared");
+        if (audioCodec != null) {
+            audioRecord.startRecording();
+            audioCodec.start();
+        }
+        videoCodec.start();
+    }
+
+    @Override
+    public void pause() {
+        synchronized (lock) {
+            pauses.add(new long[]{nowUs(), Long.MAX_VALUE});
+        }
+    }
+
+    @Override
+    public void resume() {
+        synchronized (lock) {
+            if (pauses.isEmpty())
+                return;
+            pauses.get(pauses.size() - 1)[1] = nowUs();
+            needKeyFrame = true;
+        }
+        requestSyncFrame();
+    }
+
+    private void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        videoCodec.setParameters(params);
+    }
+
+    @Override
+    public void stop() {
+        stopping = true;
+        try {
+            videoCodec.signalEndOfInputStream();
+            if (!await(finished, STOP_TIMEOUT_MS))
+                Log.w(Const.TAG, "Encoders did not finish in time, keeping what was written");
+        } catch (IllegalStateException e) {
+            Log.w(Const.TAG, "Video encoder already stopped", e);
+        }
+
+        synchronized (lock) {
+            closed = true;
+            if (writer == null)
+                return;
+            if (!outputStarted || !wroteVideo)
+                throw new IllegalStateException("Nothing was recorded");
+            try {
+                writer.stop();
+            } catch (IOException e) {
+                throw new IllegalStateException("Finishing the file failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        stopping = true;
+        if (audioThread != null) {
+            runQuietlyOn(audioThread, () -> {
+                if (audioCodec != null) {
+                    audioCodec.release();
+                    audioCodec = null;
+                }
+                if (audioRecord != null) {
+                    if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING)
+                        audioRecord.stop();
+                    audioRecord.release();
+                    audioRecord = null;
+                }
+            });
+            audioThread.quitSafely();
+        }
+        if (videoThread != null) {
+            runQuietlyOn(videoThread, () -> {
+                if (videoCodec != null) {
+                    videoCodec.release();
+                    videoCodec = null;
+                }
+            });
+            videoThread.quitSafely();
+        }
+        if (surface != null)
+            surface.release();
+        synchronized (lock) {
+            closed = true;
+            if (writer != null) {
+                writer.release();
+                writer = null;
+            }
+        }
+    }
+
+    private class EncoderCallback extends MediaCodec.Callback {
+
+        private final int track;
+
+        EncoderCallback(int track) {
+            this.track = track;
+        }
+
+        // Only the audio codec asks for input; the video codec reads its surface
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (audioEndQueued)
+                return;
+            ByteBuffer buffer = codec.getInputBuffer(index);
+            int read = 0;
+            int flags = 0;
+            if (stopping) {
+                flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                audioEndQueued = true;
+            } else if (buffer != null) {
+                read = audioRecord.read(buffer, buffer.remaining());
+                if (read < 0) {
+                    fail(new IOException("Reading audio failed: " + read));
+                    read = 0;
+                }
+            }
+            // The samples just read were captured over the time it took to read them
+            long ptsUs = nowUs() - read * 1000000L / audioBytesPerSecond;
+            codec.queueInputBuffer(index, 0, read, ptsUs, flags);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            ByteBuffer data = codec.getOutputBuffer(index);
+            if (data != null && info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)
+                writeSample(track, data, info);
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                finished.countDown();
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            addTrack(track, format);
+        }
+    }
+
+    private void addTrack(int track, MediaFormat format) {
+        synchronized (lock) {
+            if (outputStarted || closed) {
+                Log.w(Const.TAG, "Ignoring format change after the recording started: " + format);
+                return;
+            }
+            formats[track] = format;
+            if (formats[TRACK_VIDEO] == null || (settings.hasAudio() && formats[TRACK_AUDIO] == null))
+                return;
+
+            if (writer != null) {
+                try {
+                    startWriter();
+                } catch (IOException | RuntimeException e) {
+                    closed = true;
+                    fail(e);
+                    return;
+                }
+            }
+            outputStarted = true;
+            if (sampleListener != null) {
+                for (int i = 0; i < formats.length; i++) {
+                    if (formats[i] != null)
+                        sampleListener.onFormat(i, formats[i]);
+                }
+            }
+            for (Sample sample : pending)
+                write(sample.track, sample.data, sample.info);
+            pending.clear();
+        }
+    }
+
+    private void writeSample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        synchronized (lock) {
+            if (closed || maxSizeReached)
+                return;
+            long ptsUs = toRecordingTime(info.presentationTimeUs);
+            if (ptsUs < 0)
+                return;
+            MediaCodec.BufferInfo sampleInfo = new MediaCodec.BufferInfo();
+            sampleInfo.set(info.offset, info.size, ptsUs, info.flags);
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+
+            if (outputStarted) {
+                write(track, data, sampleInfo);
+            } else if (pending.size() < MAX_PENDING) {
+                ByteBuffer copy = ByteBuffer.allocate(info.size);
+                copy.put(data);
+                copy.flip();
+                sampleInfo.offset = 0;
+                pending.add(new Sample(track, copy, sampleInfo));
+            }
+        }
+    }
+
+    // Caller holds lock
+    private void write(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (track == TRACK_VIDEO && needKeyFrame) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0)
+                return;
+            needKeyFrame = false;
+        }
+        if (track == TRACK_VIDEO && writer != null && settings.isSegmented() && !startNextSegmentIfFull(info))
+            return;
+        if (track == TRACK_AUDIO) {
+            // AAC samples have to keep moving forward even if reads were timed unevenly
+            if (info.presentationTimeUs <= lastAudioUs)
+                info.presentationTimeUs = lastAudioUs + 1;
+            lastAudioUs = info.presentationTimeUs;
+        }
+        if (writer != null) {
+            if (settings.maxFileSize > 0 && bytesWritten + info.size > settings.maxFileSize) {
+                maxSizeReached = true;
+                mainHandler.post(() -> {
+                    if (listener != null)
+                        listener.onMaxFileSizeReached();
+                });
+                return;
+            }
+
+            try {
+                writer.writeSampleData(tracks[track], data, info);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            bytesWritten += info.size;
+            segmentBytes += info.size;
+        }
+        if (track == TRACK_VIDEO)
+            wroteVideo = true;
+
+        if (sampleListener != null) {
+            data.limit(info.offset + info.size);
+            data.position(info.offset);
+            sampleListener.onSample(track, data, info);
+        }
+    }
+
+    /* Moves on to the next part when this one is full and the video sample is a sync frame, the
+     * next part has to start with one. Returns false if the next part could not be started.
+     * Caller holds lock */
+    private boolean startNextSegmentIfFull(MediaCodec.BufferInfo info) {
+        if (segmentStartUs < 0)
+            segmentStartUs = info.presentationTimeUs;
+        boolean full = (settings.segmentDurationUs > 0 && info.presentationTimeUs - segmentStartUs >= settings.segmentDurationUs)
+                || (settings.segmentSize > 0 && segmentBytes >= settings.segmentSize);
+        if (!full)
+            return true;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            if (!syncFrameRequested) {
+                requestSyncFrame();
+                syncFrameRequested = true;
+            }
+            return true;
+        }
+
+        String finished = settings.getSegmentPath(segment);
+        try {
+            writer.stop();
+            writer.release();
+            segment++;
+            writer = openWriter(settings.getSegmentPath(segment));
+            startWriter();
+        } catch (IOException | RuntimeException e) {
+            closed = true;
+            fail(e);
+            return false;
+        }
+        segmentStartUs = info.presentationTimeUs;
+        segmentBytes = 0;
+        syncFrameRequested = false;
+        mainHandler.post(() -> {
+            if (listener != null)
+                listener.onSegmentFinished(finished);
+        });
+        return true;
+    }
+
+    private SampleWriter openWriter(String path) throws IOException {
+        return settings.fragmented ? new FragmentedWriter(path) : new MuxerWriter(path);
+    }
+
+    // Adds every track to the writer and starts it. Caller holds lock
+    private void startWriter() throws IOException {
+        for (int track = 0; track < formats.length; track++) {
+            if (formats[track] != null)
+                tracks[track] = writer.addTrack(formats[track]);
+        }
+        writer.start();
+    }
+
+    /* Maps an encoder timestamp to the time in the recording, with the pauses before it cut out.
+     * Returns -1 for samples taken while paused. Caller holds lock */
+    private long toRecordingTime(long ptsUs) {
+        long paused = 0;
+        for (long[] pause : pauses) {
+            if (ptsUs < pause[0])
+                break;
+            if (ptsUs < pause[1])
+                return -1;
+            paused += pause[1] - pause[0];
+        }
+        return ptsUs - paused;
+    }
+
+    private void fail(Exception e) {
+        if (failed)
+            return;
+        failed = true;
+        Log.e(Const.TAG, "Recording failed", e);
+        mainHandler.post(() -> {
+            if (listener != null)
+                listener.onError(e);
+        });
+    }
+
+    // Surface timestamps are taken from the same monotonic clock
+    private static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    // Runs the task on the thread and waits for it
+    private static void runOn(HandlerThread thread, Task task) throws IOException {
+        final Exception[] failure = new Exception[1];
+        CountDownLatch done = new CountDownLatch(1);
+        new Handler(thread.getLooper()).post(() -> {
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                failure[0] = e;
+            } finally {
+                done.countDown();
+            }
+        });
+        await(done, 0);
+        if (failure[0] instanceof IOException)
+            throw (IOException) failure[0];
+        if (failure[0] != null)
+            throw new IOException(failure[0]);
+    }
+
+    private static void runQuietlyOn(HandlerThread thread, Task task) {
+        try {
+            runOn(thread, task);
+        } catch (IOException e) {
+            Log.w(Const.TAG, "Releasing the recorder failed", e);
+        }
+    }
+
+    // Waits without giving up on interrupts, at most timeoutMs unless it is 0
+    private static boolean await(CountDownLatch latch, long timeoutMs) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (timeoutMs == 0) {
+                        latch.await();
+                        return true;
+                    }
+                    return latch.await(Math.max(0, deadline - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    // Where the samples of a file go
+    private interface SampleWriter {
+
+        int addTrack(MediaFormat format) throws IOException;
+
+        void start() throws IOException;
+
+        void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) throws IOException;
+
+        void stop() throws IOException;
+
+        void release();
+    }
+
+    private static class MuxerWriter implements SampleWriter {
+
+        private final MediaMuxer muxer;
+
+        MuxerWriter(String path) throws IOException {
+            muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return muxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            muxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+            muxer.writeSampleData(track, data, info);
+        }
+
+        @Override
+        public void stop() {
+            muxer.stop();
+        }
+
+        @Override
+        public void release() {
+            muxer.release();
+        }
+    }
+
+    // Takes what the writer needs out of the codec output formats
+    private class FragmentedWriter implements SampleWriter {
+
+        private final FragmentedMp4Writer mp4;
+
+        FragmentedWriter(String path) throws IOException {
+            mp4 = new FragmentedMp4Writer(path);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) throws IOException {
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                return mp4.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                        settings.audioBitRate > 0 ? settings.audioBitRate : DEFAULT_AUDIO_BIT_RATE,
+                        toArray(format.getByteBuffer("csd-0")));
+            }
+
+            // The parameter sets come in csd-0 and csd-1, or both in csd-0
+            byte[] sps = null, pps = null;
+            List<byte[]> nals = new ArrayList<>();
+            for (String key : new String[]{"csd-0", "csd-1"}) {
+                ByteBuffer csd = format.getByteBuffer(key);
+                if (csd != null)
+                    nals.addAll(FragmentedMp4Writer.splitNalUnits(toArray(csd)));
+            }
+            for (byte[] nal : nals) {
+                if ((nal[0] & 0x1f) == 7 && sps == null)
+                    sps = nal;
+                else if ((nal[0] & 0x1f) == 8 && pps == null)
+                    pps = nal;
+            }
+            if (sps == null || pps == null)
+                throw new IOException("The video encoder gave no parameter sets: " + format);
+            return mp4.addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+        }
+
+        @Override
+        public void start() throws IOException {
+            mp4.start();
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+            boolean sync = track == tracks[TRACK_AUDIO] || (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            mp4.writeSample(track, data, info.presentationTimeUs, sync);
+        }
+
+        @Override
+        public void stop() throws IOException {
+            mp4.stop();
+        }
+
+        @Override
+        public void release() {
+            mp4.release();
+        }
+
+        private byte[] toArray(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    private static class Sample {
+
+        final int track;
+
+        final ByteBuffer data;
+
+        final MediaCodec.BufferInfo info;
+
+        Sample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+            this.track = track;
+            this.data = data;
+            this.info = info;
+        }
+    }
+}
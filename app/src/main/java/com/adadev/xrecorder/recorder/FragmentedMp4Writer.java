@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes H.264 video and AAC audio as a fragmented MP4. The moov up front
+ * holds no samples; they follow in fragments of about a second, each a moof
+ * describing its samples and the mdat holding them. A fragment is only written
+ * once it is complete, so a file cut off at any point, by a crash or a full
+ * disk, plays up to its last whole fragment without any repair.
+ * <p>
+ * Video samples are taken as MediaCodec puts them out, with start codes, and
+ * written with 4 byte lengths. Parameter sets and access unit delimiters are
+ * left out of the samples, they are in the sample entry.
+ */
+public class FragmentedMp4Writer {
+
+    private static final int VIDEO_TIMESCALE = 90000;
+
+    private static final long FRAGMENT_US = 1000000; // fragments start at the first video sync frame after this
+
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final int AAC_FRAME_SAMPLES = 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000; // depends on no other sample
+
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000; // depends on others, not a sync sample
+
+    private final FileOutputStream out;
+
+    private final List<Track> tracks = new ArrayList<>();
+
+    private final BoxBuilder box = new BoxBuilder();
+
+    private boolean started;
+
+    private int sequence; // of the next fragment, from 1
+
+    private long startUs = -1; // time of the first sample of any track
+
+    private long fragmentStartUs = -1;
+
+    private int fragmentBytes;
+
+    public FragmentedMp4Writer(String path) throws IOException {
+        out = new FileOutputStream(path);
+    }
+
+    /**
+     * Adds an H.264 track and returns its index.
+     *
+     * @param sps sequence parameter set, without start code
+     * @param pps picture parameter set, without start code
+     */
+    public int addVideoTrack(int width, int height, byte[] sps, byte[] pps) {
+        Track track = new Track(true, VIDEO_TIMESCALE, width, height);
+        track.sampleEntry = new BoxBuilder().writeAvcSampleEntry(width, height, sps, pps).toByteArray();
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Adds an AAC track and returns its index.
+     *
+     * @param config the AudioSpecificConfig
+     */
+    public int addAudioTrack(int sampleRate, int channels, int bitRate, byte[] config) {
+        Track track = new Track(false, sampleRate, 0, 0);
+        track.sampleEntry = new BoxBuilder().writeAacSampleEntry(sampleRate, channels, bitRate, config).toByteArray();
+        tracks.add(track);
+        return tracks.size() - 1;
+    }
+
+    /**
+     * Writes the file header. Tracks can not be added after this.
+     */
+    public void start() throws IOException {
+        box.reset();
+        box.writeFileType();
+        box.start("moov").writeMovieHeader(1000, 0, tracks.size() + 1);
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            box.start("trak").writeTrackHeader(i + 1, 0, track.video, track.width, track.height);
+            box.start("mdia").writeMediaHeader(track.timescale, 0).writeHandler(track.video);
+            box.start("minf").writeMediaInformationHeaders(track.video);
+            box.start("stbl").startFull("stsd", 0, 0).writeInt(1).write(track.sampleEntry).end();
+            box.startFull("stts", 0, 0).writeInt(0).end();
+            box.startFull("stsc", 0, 0).writeInt(0).end();
+            box.startFull("stsz", 0, 0).writeInt(0).writeInt(0).end();
+            box.startFull("stco", 0, 0).writeInt(0).end();
+            box.end().end().end().end(); // stbl, minf, mdia, trak
+        }
+        box.start("mvex");
+        for (int i = 0; i < tracks.size(); i++)
+            box.startFull("trex", 0, 0).writeInt(i + 1).writeInt(1).writeInt(0).writeInt(0).writeInt(0).end();
+        box.end().end(); // mvex, moov
+        out.write(box.toByteArray());
+        started = true;
+        sequence = 1;
+    }
+
+    /**
+     * Adds a sample. It is written to the file with the fragment it belongs
+     * to.
+     *
+     * @param data the sample, from its position to its limit
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long ptsUs, boolean sync) throws IOException {
+        if (!started)
+            throw new IllegalStateException("Not started");
+        Track track = tracks.get(trackIndex);
+        if (startUs < 0)
+            startUs = ptsUs;
+        if (fragmentStartUs < 0)
+            fragmentStartUs = ptsUs;
+
+        // A new fragment starts at a video sync frame once this one is long enough, or when it gets too big
+        if (track.video && sync && ptsUs - fragmentStartUs >= FRAGMENT_US || fragmentBytes >= MAX_FRAGMENT_BYTES) {
+            writeFragment(track.video ? ptsUs : -1);
+            fragmentStartUs = ptsUs;
+        }
+
+        int start = track.data.size();
+        if (track.video)
+            appendNalUnits(data, track.data);
+        else
+            track.data.write(toArray(data));
+        int size = track.data.size() - start;
+        if (size == 0)
+            return;
+        track.samples.add(new long[]{ptsUs, size, sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC});
+        fragmentBytes += size;
+    }
+
+    /**
+     * Writes the last fragment. The file is complete after this.
+     */
+    public void stop() throws IOException {
+        if (started)
+            writeFragment(-1);
+        started = false;
+    }
+
+    public void release() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /* Writes the samples gathered so far as one fragment. nextVideoUs is the time of the video
+     * sample that follows, to know how long the last one lasts, or -1 if unknown */
+    private void writeFragment(long nextVideoUs) throws IOException {
+        boolean empty = true;
+        for (Track track : tracks)
+            empty &= track.samples.isEmpty();
+        if (empty)
+            return;
+
+        // The moof has the same size whatever the data offsets are, so write it once to learn them
+        int moofSize = buildMoof(nextVideoUs, 0);
+        buildMoof(nextVideoUs, moofSize + 8);
+        byte[] moof = box.toByteArray();
+
+        int dataSize = 0;
+        for (Track track : tracks)
+            dataSize += track.data.size();
+        box.reset();
+        box.writeInt(8 + dataSize).writeType("mdat");
+        out.write(moof);
+        out.write(box.toByteArray());
+        for (Track track : tracks) {
+            out.write(track.data.array(), 0, track.data.size());
+            track.decodeTime += fragmentDuration(track, nextVideoUs);
+            track.samples.clear();
+            track.data.reset();
+        }
+        out.flush();
+        sequence++;
+        fragmentBytes = 0;
+    }
+
+    // Returns the size of the moof
+    private int buildMoof(long nextVideoUs, int dataOffset) {
+        box.reset();
+        box.start("moof").startFull("mfhd", 0, 0).writeInt(sequence).end();
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            if (track.samples.isEmpty())
+                continue;
+            if (track.decodeTime < 0)
+                track.decodeTime = Math.max(0, toTicks(track, track.samples.get(0)[0] - startUs));
+
+            box.start("traf").startFull("tfhd", 0, 0x020000).writeInt(i + 1).end(); // offsets from the moof
+            box.startFull("tfdt", 1, 0).writeLong(track.decodeTime).end();
+            // Data offset, and duration, size and flags of each sample
+            box.startFull("trun", 0, 0x000701).writeInt(track.samples.size()).writeInt(dataOffset);
+            for (int s = 0; s < track.samples.size(); s++) {
+                long[] sample = track.samples.get(s);
+                box.writeInt((int) sampleDuration(track, s, nextVideoUs)).writeInt((int) sample[1]).writeInt((int) sample[2]);
+            }
+            box.end().end(); // trun, traf
+            dataOffset += track.data.size();
+        }
+        box.end();
+        return box.size();
+    }
+
+    private long fragmentDuration(Track track, long nextVideoUs) {
+        long duration = 0;
+        for (int s = 0; s < track.samples.size(); s++)
+            duration += sampleDuration(track, s, nextVideoUs);
+        return duration;
+    }
+
+    private long sampleDuration(Track track, int index, long nextVideoUs) {
+        List<long[]> samples = track.samples;
+        long duration;
+        if (index + 1 < samples.size())
+            duration = toTicks(track, samples.get(index + 1)[0] - samples.get(index)[0]);
+        else if (!track.video)
+            duration = AAC_FRAME_SAMPLES;
+        else if (nextVideoUs >= 0)
+            duration = toTicks(track, nextVideoUs - samples.get(index)[0]);
+        else if (index > 0)
+            duration = toTicks(track, samples.get(index)[0] - samples.get(index - 1)[0]);
+        else
+            duration = VIDEO_TIMESCALE / 30;
+        return Math.max(1, duration);
+    }
+
+    private static long toTicks(Track track, long us) {
+        return us * track.timescale / 1000000;
+    }
+
+    // Copies the NAL units of an access unit with 4 byte lengths instead of start codes
+    private static void appendNalUnits(ByteBuffer data, Bytes to) {
+        for (byte[] nal : splitNalUnits(toArray(data))) {
+            int type = nal[0] & 0x1f;
+            if (type != 7 && type != 8 && type != 9) {
+                to.writeInt(nal.length);
+                to.write(nal);
+            }
+        }
+    }
+
+    /**
+     * Splits Annex B data, NAL units each behind a start code, into the NAL
+     * units without their start codes. Data without a start code is taken as
+     * one NAL unit.
+     */
+    static List<byte[]> splitNalUnits(byte[] bytes) {
+        List<byte[]> nals = new ArrayList<>();
+        int start = findStartCode(bytes, 0);
+        if (start < 0) {
+            if (bytes.length > 0)
+                nals.add(bytes);
+            return nals;
+        }
+        while (start >= 0) {
+            int nal = start + (bytes[start + 2] == 1 ? 3 : 4);
+            int next = findStartCode(bytes, nal);
+            int end = next < 0 ? bytes.length : next;
+            // Trailing zeros belong to the next start code
+            while (end > nal && bytes[end - 1] == 0)
+                end--;
+            if (end > nal)
+                nals.add(Arrays.copyOfRange(bytes, nal, end));
+            start = next;
+        }
+        return nals;
+    }
+
+    // Returns where the next 00 00 01 or 00 00 00 01 at or after from begins, or -1
+    private static int findStartCode(byte[] bytes, int from) {
+        for (int i = from; i + 2 < bytes.length; i++) {
+            if (bytes[i] == 0 && bytes[i + 1] == 0) {
+                if (bytes[i + 2] == 1)
+                    return i;
+                if (bytes[i + 2] == 0 && i + 3 < bytes.length && bytes[i + 3] == 1)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] toArray(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static class Track {
+
+        final boolean video;
+
+        final int timescale;
+
+        final int width, height;
+
+        byte[] sampleEntry;
+
+        final List<long[]> samples = new ArrayList<>(); // {pts (us), size, flags} of the fragment being gathered
+
+        final Bytes data = new Bytes();
+
+        long decodeTime = -1; // of the first sample of the fragment, in timescale units
+
+        Track(boolean video, int timescale, int width, int height) {
+            this.video = video;
+            this.timescale = timescale;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // A ByteArrayOutputStream that hands out its array without copying it
+    private static class Bytes extends java.io.ByteArrayOutputStream {
+
+        byte[] array() {
+            return buf;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.view.Surface;
+
+import com.adadev.xrecorder.Const;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The default engine, a thin wrapper around MediaRecorder.
+ * <p>
+ * Split recordings use MediaRecorder.setNextOutputFile(), so they need API 26
+ * and can only be split by size; see {@link #canRecord(RecordingSettings)}.
+ */
+public class MediaRecorderEngine implements RecordingEngine {
+
+    private final RecordingSettings settings;
+
+    private final MediaRecorder recorder = new MediaRecorder();
+
+    private Listener listener;
+
+    private int segment = 1; // part being written, counted from 1
+
+    public MediaRecorderEngine(RecordingSettings settings) {
+        this.settings = settings;
+        recorder.setOnErrorListener((mr, what, extra) -> {
+            Log.e(Const.TAG, "Screencam Error: " + what + ", Extra: " + extra);
+            if (listener != null)
+                listener.onError(new IOException("MediaRecorder error " + what + ", extra " + extra));
+        });
+        recorder.setOnInfoListener((mr, what, extra) -> {
+            Log.d(Const.TAG, "Screencam Info: " + what + ", Extra: " + extra);
+            switch (what) {
+                case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+                    if (listener != null)
+                        listener.onMaxFileSizeReached();
+                    break;
+                case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+                    if (settings.isSegmented())
+                        setNextSegment();
+                    break;
+                case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+                    String finished = getOutputPath();
+                    segment++;
+                    if (listener != null)
+                        listener.onSegmentFinished(finished);
+                    break;
+            }
+        });
+    }
+
+    /**
+     * Returns whether MediaRecorder can record with these settings on this
+     * device. It never writes fragmented files.
+     */
+    public static boolean canRecord(RecordingSettings settings) {
+        if (settings.fragmented)
+            return false;
+        return !settings.isSegmented()
+                || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && settings.segmentDurationUs == 0);
+    }
+
+    @TargetApi(26)
+    private void setNextSegment() {
+        try {
+            recorder.setNextOutputFile(new File(settings.getSegmentPath(segment + 1)));
+        } catch (IOException e) {
+            if (listener != null)
+                listener.onError(e);
+        }
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* Audio settings left at 0 keep MediaRecorder's own defaults, which is what the
+     * microphone source has always used */
+    @Override
+    public void prepare() throws IOException {
+        if (settings.hasAudio()) {
+            recorder.setAudioSource(settings.audioSource);
+            if (settings.audioBitRate > 0)
+                recorder.setAudioEncodingBitRate(settings.audioBitRate);
+            if (settings.audioSampleRate > 0)
+                recorder.setAudioSamplingRate(settings.audioSampleRate);
+            if (settings.audioChannels > 0)
+                recorder.setAudioChannels(settings.audioChannels);
+        }
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        recorder.setOutputFile(getOutputPath());
+        recorder.setVideoSize(settings.width, settings.height);
+        recorder.setVideoEncoder(getVideoEncoder());
+        long maxFileSize = settings.maxFileSize;
+        if (settings.isSegmented())
+            maxFileSize = maxFileSize > 0 ? Math.min(maxFileSize, settings.segmentSize) : settings.segmentSize;
+        if (maxFileSize > 0)
+            recorder.setMaxFileSize(maxFileSize);
+        if (settings.hasAudio())
+            recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        recorder.setVideoEncodingBitRate(settings.videoBitRate);
+        recorder.setVideoFrameRate(settings.frameRate);
+        recorder.prepare();
+    }
+
+    private int getVideoEncoder() {
+        if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(settings.videoMime))
+            return MediaRecorder.VideoEncoder.HEVC;
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(settings.videoMime))
+            return MediaRecorder.VideoEncoder.H264;
+        return MediaRecorder.VideoEncoder.DEFAULT;
+    }
+
+    @Override
+    public Surface getSurface() {
+        return recorder.getSurface();
+    }
+
+    @Override
+    public String getOutputPath() {
+        return settings.getSegmentPath(segment);
+    }
+
+    @Override
+    public String getVideoMime() {
+        return getVideoEncoder() == MediaRecorder.VideoEncoder.DEFAULT ? null : settings.videoMime;
+    }
+
+    @Override
+    public void start() {
+        recorder.start();
+    }
+
+    @TargetApi(24)
+    @Override
+    public void pause() {
+        recorder.pause();
+    }
+
+    @TargetApi(24)
+    @Override
+    public void resume() {
+        recorder.resume();
+    }
+
+    @Override
+    public void stop() {
+        recorder.stop();
+    }
+
+    @Override
+    public void release() {
+        recorder.reset();
+        recorder.release();
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Salvages the video of an MP4 file whose recording never finished. MediaMuxer
+ * and MediaRecorder write the sample tables, the moov, only when they stop, so
+ * a file cut off before that holds all its samples in the mdat but nothing to
+ * find them with.
+ * <p>
+ * The mdat is walked as H.264 or H.265 NAL units with 4 byte lengths. Audio
+ * chunks in between do not look like a run of valid NAL units and are skipped
+ * over, and the NAL units are grouped back into frames. The repaired file gets
+ * a new moov describing those frames and a copy of the mdat; audio is lost,
+ * AAC frames carry nothing to find their bounds with.
+ * <p>
+ * The decoder setup is not in the mdat, so it is taken from a reference
+ * recording of the same format and size, or else built from parameter sets
+ * found in the stream, which only works for H.264. Frame times are not in the
+ * mdat either, the frames are spread evenly over the length of the recording.
+ */
+public class Mp4Repair {
+
+    private static final String MIME_AVC = "video/avc"; // as MediaFormat names them
+
+    private static final String MIME_HEVC = "video/hevc";
+
+    private static final int TIMESCALE = 90000;
+
+    private static final int DEFAULT_FRAME_RATE = 30;
+
+    private static final int MAX_NAL_SIZE = 32 * 1024 * 1024;
+
+    private static final int CHAIN = 3; // valid NAL units in a row needed to trust a position
+
+    /**
+     * What the repaired file holds.
+     */
+    public static class Result {
+
+        public final int frames;
+
+        public final long durationUs;
+
+        Result(int frames, long durationUs) {
+            this.frames = frames;
+            this.durationUs = durationUs;
+        }
+    }
+
+    /**
+     * Returns whether the file has samples but no whole moov, as left by a
+     * recording that did not finish. Complete and fragmented files need no
+     * repair.
+     */
+    public static boolean needsRepair(File file) {
+        try (Source source = new Source(file)) {
+            long[] moov = source.findBox("moov", 0, source.length);
+            return source.findBox("mdat", 0, source.length) != null && (moov == null || moov[2] != 0);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the newest complete MP4 in the folder whose video is of the
+     * given format and size, to use as the reference of a repair, or null.
+     *
+     * @param mime the video format, null to take any
+     */
+    public static File findReference(File folder, File exclude, String mime, int width, int height) {
+        File[] files = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
+        if (files == null)
+            return null;
+        Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+        for (File file : files) {
+            if (file.equals(exclude))
+                continue;
+            try (Source source = new Source(file)) {
+                VideoTrack track = source.findVideoTrack();
+                if (track != null && (mime == null || mime.equals(track.getMime()))
+                        && track.width == width && track.height == height)
+                    return file;
+            } catch (IOException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the video found in a damaged file to a new, playable file. If the
+     * mdat holds no data at all, nothing is written and the result has no
+     * frames.
+     *
+     * @param reference  a complete recording of the same format and size, null
+     *                   to rely on parameter sets in the stream
+     * @param mime       the video format of the damaged file, null if not
+     *                   known, in which case it is taken to be that of the
+     *                   reference, or H.264
+     * @param durationUs how long the recording ran, 0 if not known
+     * @throws IOException if the files can not be read or written, or no
+     *                     video could be found in the media data
+     */
+    public static Result repair(File damaged, File output, File reference, String mime, long durationUs) throws IOException {
+        VideoTrack track = null;
+        if (reference != null) {
+            try (Source source = new Source(reference)) {
+                track = source.findVideoTrack();
+            }
+            if (track == null)
+                throw new IOException("No video in " + reference);
+            if (mime != null && !mime.equals(track.getMime()))
+                throw new IOException("The video of " + reference + " is not " + mime);
+        } else if (mime != null && !mime.equals(MIME_AVC)) {
+            throw new IOException("No reference recording for " + mime + " video");
+        }
+        boolean hevc = track != null && track.isHevc();
+
+        try (Source source = new Source(damaged)) {
+            long[] mdat = source.findBox("mdat", 0, source.length);
+            if (mdat == null)
+                throw new IOException("No media data in " + damaged);
+            if (mdat[1] <= mdat[0])
+                return new Result(0, 0);
+            Frames frames = new Scanner(source, hevc).scan(mdat[0], mdat[1]);
+            if (frames.count == 0)
+                throw new IOException("No video frames in the media data of " + damaged);
+
+            if (track == null) {
+                if (frames.sps == null || frames.pps == null)
+                    throw new IOException("No reference recording and no parameter sets in the stream");
+                int[] size = parseSpsSize(frames.sps);
+                byte[] entry = new BoxBuilder().writeAvcSampleEntry(size[0], size[1], frames.sps, frames.pps).toByteArray();
+                track = new VideoTrack(new BoxBuilder().startFull("stsd", 0, 0).writeInt(1).write(entry).end().toByteArray(),
+                        size[0], size[1]);
+            }
+
+            long frameTicks = durationUs > 0 ? Math.max(1, durationUs * TIMESCALE / 1000000 / frames.count)
+                    : TIMESCALE / DEFAULT_FRAME_RATE;
+            long start = frames.offsets[0];
+            long end = frames.offsets[frames.count - 1] + frames.sizes[frames.count - 1];
+            long dataSize = end - start;
+            boolean largeData = dataSize + 8 > 0xffffffffL;
+            int mdatHeader = largeData ? 16 : 8;
+
+            // The moov has the same size whatever the offsets are, as long as they fit in 32 bits
+            BoxBuilder header = buildHeader(track, frames, frameTicks, 0, false);
+            boolean largeOffsets = header.size() + mdatHeader + dataSize > 0xffffffffL;
+            long dataStart = buildHeader(track, frames, frameTicks, 0, largeOffsets).size() + mdatHeader;
+            header = buildHeader(track, frames, frameTicks, dataStart - start, largeOffsets);
+            if (largeData)
+                header.writeInt(1).writeType("mdat").writeLong(dataSize + 16);
+            else
+                header.writeInt((int) (dataSize + 8)).writeType("mdat");
+
+            try (FileOutputStream out = new FileOutputStream(output)) {
+                out.write(header.toByteArray());
+                source.copyTo(out.getChannel(), start, dataSize);
+                out.getFD().sync();
+            }
+            return new Result(frames.count, frames.count * frameTicks * 1000000 / TIMESCALE);
+        }
+    }
+
+    // The ftyp and a moov describing the frames, each in a chunk of its own; shift maps mdat offsets of the damaged file to the new one
+    private static BoxBuilder buildHeader(VideoTrack track, Frames frames, long frameTicks, long shift, boolean largeOffsets) {
+        long duration = frames.count * frameTicks;
+        long durationMs = duration * 1000 / TIMESCALE;
+        BoxBuilder box = new BoxBuilder();
+        box.writeFileType();
+        box.start("moov").writeMovieHeader(1000, durationMs, 2);
+        box.start("trak").writeTrackHeader(1, durationMs, true, track.width, track.height);
+        box.start("mdia").writeMediaHeader(TIMESCALE, duration).writeHandler(true);
+        box.start("minf").writeMediaInformationHeaders(true);
+        box.start("stbl").write(track.sampleDescription);
+        box.startFull("stts", 0, 0).writeInt(1).writeInt(frames.count).writeInt((int) frameTicks).end();
+
+        box.startFull("stss", 0, 0).writeInt(frames.keyFrameCount);
+        for (int i = 0; i < frames.count; i++) {
+            if (frames.keyFrames[i])
+                box.writeInt(i + 1);
+        }
+        box.end();
+
+        box.startFull("stsz", 0, 0).writeInt(0).writeInt(frames.count);
+        for (int i = 0; i < frames.count; i++)
+            box.writeInt(frames.sizes[i]);
+        box.end();
+
+        box.startFull("stsc", 0, 0).writeInt(1).writeInt(1).writeInt(1).writeInt(1).end();
+
+        box.startFull(largeOffsets ? "co64" : "stco", 0, 0).writeInt(frames.count);
+        for (int i = 0; i < frames.count; i++) {
+            if (largeOffsets)
+                box.writeLong(frames.offsets[i] + shift);
+            else
+                box.writeInt((int) (frames.offsets[i] + shift));
+        }
+        box.end();
+        box.end().end().end().end().end(); // stbl, minf, mdia, trak, moov
+        return box;
+    }
+
+    /* Returns the width and height in a H.264 sequence parameter set, given without start code */
+    static int[] parseSpsSize(byte[] sps) throws IOException {
+        BitReader bits = new BitReader(unescape(sps));
+        try {
+            bits.skip(8); // NAL header
+            int profile = bits.read(8);
+            bits.skip(16); // constraint flags, level
+            bits.readUe(); // id
+            int chromaFormat = 1;
+            if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                    || profile == 83 || profile == 86 || profile == 118 || profile == 128
+                    || profile == 138 || profile == 139 || profile == 134 || profile == 135) {
+                chromaFormat = bits.readUe();
+                if (chromaFormat == 3)
+                    bits.skip(1); // separate colour planes
+                bits.readUe(); // luma bit depth
+                bits.readUe(); // chroma bit depth
+                bits.skip(1); // lossless transform bypass
+                if (bits.read(1) == 1) {
+                    for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+                        if (bits.read(1) == 1)
+                            skipScalingList(bits, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+            bits.readUe(); // log2 of max frame number
+            int pocType = bits.readUe();
+            if (pocType == 0) {
+                bits.readUe();
+            } else if (pocType == 1) {
+                bits.skip(1);
+                bits.readUe(); // signed offsets, their size is all that matters
+                bits.readUe();
+                int cycle = bits.readUe();
+                for (int i = 0; i < cycle; i++)
+                    bits.readUe();
+            }
+            bits.readUe(); // reference frames
+            bits.skip(1); // gaps allowed
+            int widthMbs = bits.readUe() + 1;
+            int heightMapUnits = bits.readUe() + 1;
+            int frameMbsOnly = bits.read(1);
+            if (frameMbsOnly == 0)
+                bits.skip(1); // adaptive frame/field
+            bits.skip(1); // direct 8x8 inference
+            int width = widthMbs * 16;
+            int height = (2 - frameMbsOnly) * heightMapUnits * 16;
+            if (bits.read(1) == 1) {
+                int cropX = chromaFormat == 0 || chromaFormat == 3 ? 1 : 2;
+                int cropY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+                width -= cropX * (bits.readUe() + bits.readUe());
+                height -= cropY * (bits.readUe() + bits.readUe());
+            }
+            return new int[]{width, height};
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Sequence parameter set is cut short");
+        }
+    }
+
+    private static void skipScalingList(BitReader bits, int size) {
+        int last = 8, next = 8;
+        for (int i = 0; i < size; i++) {
+            if (next != 0) {
+                int code = bits.readUe();
+                int delta = (code & 1) == 1 ? (code + 1) / 2 : -(code / 2);
+                next = (last + delta + 256) % 256;
+            }
+            last = next == 0 ? last : next;
+        }
+    }
+
+    // Removes the emulation prevention bytes, the 3 in each 00 00 03
+    private static byte[] unescape(byte[] nal) {
+        byte[] out = new byte[nal.length];
+        int size = 0, zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            out[size++] = b;
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    /* Walks the NAL units of an mdat and gathers them into frames */
+    private static class Scanner {
+
+        private final Source source;
+
+        private final boolean hevc;
+
+        private final byte[] header = new byte[3];
+
+        private long end;
+
+        Scanner(Source source, boolean hevc) {
+            this.source = source;
+            this.hevc = hevc;
+        }
+
+        Frames scan(long start, long end) throws IOException {
+            this.end = end;
+            Frames frames = new Frames();
+            long frameStart = -1, frameEnd = -1;
+            boolean frameHasPicture = false, frameIsKey = false;
+
+            long position = start;
+            while (position < end) {
+                if (!isChain(position, CHAIN)) {
+                    /* The last NAL unit before a chunk of audio has none after it; it is kept if it
+                     * ends before the stream picks up again, which audio read as one seldom does */
+                    long next = resync(position + 1);
+                    if (!isChain(position, 1) || position + 4 + source.readUInt32(position) > next) {
+                        position = next;
+                        continue;
+                    }
+                }
+                int size = (int) source.readUInt32(position);
+                source.read(position + 4, header, Math.min(header.length, size));
+                int type = type();
+                boolean picture = isPicture(type);
+
+                // A frame ends where the next one starts, and at any gap in the stream
+                boolean startsFrame = picture ? isFirstSlice() : startsAccessUnit(type);
+                if (frameStart >= 0 && (position != frameEnd || frameHasPicture && startsFrame)) {
+                    frames.add(frameStart, frameEnd, frameHasPicture, frameIsKey);
+                    frameStart = -1;
+                }
+                if (frameStart < 0) {
+                    frameStart = position;
+                    frameHasPicture = false;
+                    frameIsKey = false;
+                }
+                frameHasPicture |= picture;
+                frameIsKey |= isKey(type);
+                if (!hevc && (type == 7 && frames.sps == null || type == 8 && frames.pps == null)) {
+                    byte[] nal = new byte[size];
+                    source.read(position + 4, nal, size);
+                    if (type == 7)
+                        frames.sps = nal;
+                    else
+                        frames.pps = nal;
+                }
+                position += 4 + size;
+                frameEnd = position;
+            }
+            if (frameStart >= 0)
+                frames.add(frameStart, frameEnd, frameHasPicture, frameIsKey);
+            return frames;
+        }
+
+        // Returns where the stream can be followed again, at or after from, or the end of the mdat
+        private long resync(long from) throws IOException {
+            long position = from;
+            while (position < end && !isChain(position, CHAIN))
+                position++;
+            /* Bytes of audio can pass for a NAL unit that happens to end where a real one starts,
+             * running over real ones. Such a run is taken up again inside the first NAL unit */
+            while (position < end) {
+                long nalEnd = Math.min(end, position + 4 + source.readUInt32(position));
+                long inner = position + 1;
+                while (inner < nalEnd && !isChain(inner, CHAIN))
+                    inner++;
+                if (inner >= nalEnd)
+                    break;
+                position = inner;
+            }
+            return position;
+        }
+
+        /* Whether count NAL units in a row start here, or fewer up to the end of the mdat. The last
+         * may run past the end, the recording was cut off in the middle of it */
+        private boolean isChain(long position, int count) throws IOException {
+            for (int i = 0; i < count && position < end; i++) {
+                if (position + 6 > end)
+                    return i == count - 1;
+                long size = source.readUInt32(position);
+                if (size < (hevc ? 3 : 2) || size > MAX_NAL_SIZE)
+                    return false;
+                source.read(position + 4, header, 2);
+                if (!isValidHeader())
+                    return false;
+                if (position + 4 + size > end)
+                    return i == count - 1;
+                position += 4 + size;
+            }
+            return true;
+        }
+
+        private boolean isValidHeader() {
+            if ((header[0] & 0x80) != 0)
+                return false;
+            int type = type();
+            if (hevc) {
+                int layer = (header[0] & 1) << 5 | (header[1] & 0xff) >> 3;
+                int temporalId = header[1] & 7;
+                return layer == 0 && temporalId > 0 && (type <= 9 || type >= 16 && type <= 21 || type >= 32 && type <= 40);
+            }
+            int refIdc = (header[0] >> 5) & 3;
+            if (type == 5 || type == 7 || type == 8)
+                return refIdc != 0;
+            if (type == 6 || type == 9 || type == 12)
+                return refIdc == 0;
+            return type >= 1 && type <= 4;
+        }
+
+        private int type() {
+            return hevc ? (header[0] >> 1) & 0x3f : header[0] & 0x1f;
+        }
+
+        private boolean isPicture(int type) {
+            return hevc ? type < 32 : type >= 1 && type <= 5;
+        }
+
+        private boolean isKey(int type) {
+            return hevc ? type >= 16 && type <= 21 : type == 5;
+        }
+
+        // The slice starts a picture: first_slice_segment_in_pic_flag, or first_mb_in_slice coded as 0
+        private boolean isFirstSlice() {
+            return (header[hevc ? 2 : 1] & 0x80) != 0;
+        }
+
+        // Parameter sets, delimiters and prefix SEI come before the pictures of a frame
+        private boolean startsAccessUnit(int type) {
+            if (hevc)
+                return type >= 32 && type <= 35 || type == 39;
+            return type >= 6 && type <= 9;
+        }
+    }
+
+    private static class Frames {
+
+        int count, keyFrameCount;
+
+        long[] offsets = new long[1024];
+
+        int[] sizes = new int[1024];
+
+        boolean[] keyFrames = new boolean[1024];
+
+        byte[] sps, pps; // the first found in the stream, H.264 only
+
+        // Frames before the first sync frame can not be decoded and are left out
+        void add(long start, long end, boolean picture, boolean key) {
+            if (!picture || count == 0 && !key)
+                return;
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                keyFrames = Arrays.copyOf(keyFrames, count * 2);
+            }
+            offsets[count] = start;
+            sizes[count] = (int) (end - start);
+            keyFrames[count] = key;
+            if (key)
+                keyFrameCount++;
+            count++;
+        }
+    }
+
+    private static class VideoTrack {
+
+        final byte[] sampleDescription; // the whole stsd box
+
+        final int width, height;
+
+        VideoTrack(byte[] sampleDescription, int width, int height) {
+            this.sampleDescription = sampleDescription;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean isHevc() {
+            return MIME_HEVC.equals(getMime());
+        }
+
+        // The video format, or null if it is neither H.264 nor H.265
+        String getMime() {
+            // The type of the first sample entry, after the box header, version and entry count
+            String type = new String(sampleDescription, 20, 4, Charset.forName("US-ASCII"));
+            if (type.equals("avc1") || type.equals("avc3"))
+                return MIME_AVC;
+            if (type.equals("hvc1") || type.equals("hev1"))
+                return MIME_HEVC;
+            return null;
+        }
+    }
+
+    /* Random access reads of a file through a window, so walking a large mdat does not take a
+     * system call per NAL unit */
+    private static class Source implements AutoCloseable {
+
+        private static final int WINDOW = 1024 * 1024;
+
+        private final FileInputStream in;
+
+        private final FileChannel channel;
+
+        final long length;
+
+        private final ByteBuffer window = ByteBuffer.allocate(WINDOW);
+
+        private long windowStart = -1;
+
+        Source(File file) throws IOException {
+            in = new FileInputStream(file);
+            channel = in.getChannel();
+            length = channel.size();
+        }
+
+        int readByte(long position) throws IOException {
+            if (windowStart < 0 || position < windowStart || position >= windowStart + window.limit()) {
+                window.clear();
+                windowStart = position;
+                while (window.hasRemaining() && channel.read(window, windowStart + window.position()) > 0)
+                    ;
+                window.flip();
+                if (!window.hasRemaining())
+                    throw new IOException("Read past the end of the file");
+            }
+            return window.get((int) (position - windowStart)) & 0xff;
+        }
+
+        long readUInt32(long position) throws IOException {
+            return (long) readByte(position) << 24 | readByte(position + 1) << 16
+                    | readByte(position + 2) << 8 | readByte(position + 3);
+        }
+
+        void read(long position, byte[] to, int count) throws IOException {
+            for (int i = 0; i < count; i++)
+                to[i] = (byte) readByte(position + i);
+        }
+
+        String readType(long position) throws IOException {
+            byte[] type = new byte[4];
+            read(position, type, 4);
+            return new String(type, "US-ASCII");
+        }
+
+        /* Returns {start, end, cut short} of the content of the first box of the type in [from, to),
+         * or null. A box running past the end, as an unfinished mdat does, is taken to end there */
+        long[] findBox(String type, long from, long to) throws IOException {
+            long position = from;
+            while (position + 8 <= to) {
+                long size = readUInt32(position);
+                int headerSize = 8;
+                if (size == 1 && position + 16 <= to) {
+                    size = readUInt32(position + 8) << 32 | readUInt32(position + 12);
+                    headerSize = 16;
+                }
+                boolean cut = size < headerSize || position + size > to;
+                if (cut)
+                    size = to - position;
+                if (readType(position + 4).equals(type))
+                    return new long[]{position + headerSize, position + size, cut ? 1 : 0};
+                position += size;
+            }
+            return null;
+        }
+
+        // The sample description and size of the first video track, or null
+        VideoTrack findVideoTrack() throws IOException {
+            long[] moov = findBox("moov", 0, length);
+            if (moov == null)
+                return null;
+            long position = moov[0];
+            long[] trak;
+            while ((trak = findBox("trak", position, moov[1])) != null) {
+                position = trak[1];
+                long[] mdia = findBox("mdia", trak[0], trak[1]);
+                long[] hdlr = mdia == null ? null : findBox("hdlr", mdia[0], mdia[1]);
+                if (hdlr == null || !readType(hdlr[0] + 8).equals("vide"))
+                    continue;
+                long[] tkhd = findBox("tkhd", trak[0], trak[1]);
+                long[] minf = findBox("minf", mdia[0], mdia[1]);
+                long[] stbl = minf == null ? null : findBox("stbl", minf[0], minf[1]);
+                long[] stsd = stbl == null ? null : findBox("stsd", stbl[0], stbl[1]);
+                if (tkhd == null || stsd == null)
+                    return null;
+                // Width and height are the last two fields of tkhd, 16.16 fixed point
+                int width = (int) (readUInt32(tkhd[1] - 8) >> 16);
+                int height = (int) (readUInt32(tkhd[1] - 4) >> 16);
+                byte[] description = new byte[(int) (stsd[1] - stsd[0] + 8)];
+                read(stsd[0] - 8, description, description.length);
+                return new VideoTrack(description, width, height);
+            }
+            return null;
+        }
+
+        void copyTo(FileChannel out, long position, long count) throws IOException {
+            long copied = 0;
+            while (copied < count) {
+                long transferred = channel.transferTo(position + copied, count - copied, out);
+                if (transferred <= 0)
+                    throw new IOException("Copying the media data failed");
+                copied += transferred;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] data;
+
+        private int position; // in bits
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        int read(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++, position++)
+                value = value << 1 | (data[position >> 3] >> (7 - (position & 7))) & 1;
+            return value;
+        }
+
+        void skip(int count) {
+            position += count;
+        }
+
+        // An unsigned Exp-Golomb code
+        int readUe() {
+            int zeros = 0;
+            while (read(1) == 0)
+                zeros++;
+            return (1 << zeros) - 1 + read(zeros);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One recording from start to the file being in the gallery. It is
+ * {@link State#RECORDING} while its engine writes, then handed to a
+ * {@link RecordingFinalizer} that stops the engine and indexes the file.
+ * <p>
+ * A file left over from a recording the app died in is tracked the same way,
+ * without an engine.
+ */
+public class Recording {
+
+    public enum State {
+        RECORDING,
+        /** The engine is being stopped, or the file repaired, and the file indexed */
+        FINALIZING,
+        /** The file is complete and in the gallery, if there is one */
+        INDEXED,
+        /** Nothing usable is left of the file */
+        FAILED
+    }
+
+    private final RecordingEngine engine;
+
+    private final SegmentPlaylist playlist;
+
+    private final String videoMime;
+
+    private final int width, height;
+
+    private volatile String path;
+
+    private final Queue<String> finishedParts = new ConcurrentLinkedQueue<>(); // not yet indexed
+
+    private volatile long partStartTime; // when the file being written was started, in ms
+
+    private volatile State state = State.RECORDING;
+
+    private volatile boolean recovered;
+
+    /**
+     * @param playlist  the playlist of a split recording, or null
+     * @param videoMime the format of the video, null if not known
+     */
+    public Recording(RecordingEngine engine, SegmentPlaylist playlist, String videoMime, int width, int height) {
+        this.engine = engine;
+        this.playlist = playlist;
+        this.videoMime = videoMime;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns a recording for a file that was never finished, to be recovered.
+     *
+     * @param startTime when the file was started, in ms, or 0 if unknown
+     */
+    public static Recording unfinished(String path, long startTime, String videoMime, int width, int height) {
+        Recording recording = new Recording(null, null, videoMime, width, height);
+        recording.path = path;
+        recording.partStartTime = startTime;
+        return recording;
+    }
+
+    /**
+     * Notes the file the engine writes from now on, at the start and when a
+     * split recording moves on to its next part.
+     *
+     * @param path the file, or null when recording without one
+     */
+    public void startPart(String path) {
+        this.path = path;
+        partStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the engine writing the file, null for an unfinished file found
+     * after the app died.
+     */
+    public RecordingEngine getEngine() {
+        return engine;
+    }
+
+    public SegmentPlaylist getPlaylist() {
+        return playlist;
+    }
+
+    /**
+     * Returns the format of the video, as a MediaFormat mime type, or null if
+     * not known.
+     */
+    public String getVideoMime() {
+        return videoMime;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the file being written, the last part of a split recording, or
+     * null for an instant replay, which has no file of its own.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    // The file the engine was left with once stopped
+    void setPath(String path) {
+        this.path = path;
+    }
+
+    void addFinishedPart(String path) {
+        finishedParts.add(path);
+    }
+
+    /**
+     * Returns the oldest part finished and not indexed yet, or null.
+     */
+    String pollFinishedPart() {
+        return finishedParts.poll();
+    }
+
+    public long getPartStartTime() {
+        return partStartTime;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Returns whether the recording did not end properly and its file was
+     * kept as far as it was written.
+     */
+    public boolean wasRecovered() {
+        return recovered;
+    }
+
+    void setRecovered() {
+        recovered = true;
+    }
+}
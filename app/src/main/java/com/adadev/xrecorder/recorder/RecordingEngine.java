@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * Records whatever is drawn on its input surface to a file. The lifecycle
+ * follows MediaRecorder: {@link #prepare()}, hand {@link #getSurface()} to the
+ * virtual display, {@link #start()}, any number of {@link #pause()} and
+ * {@link #resume()}, {@link #stop()} and finally {@link #release()}.
+ * <p>
+ * A recording split with {@link RecordingSettings#segmentDurationUs} or
+ * {@link RecordingSettings#segmentSize} moves on to the next file without
+ * dropping a frame, and tells the listener about every part it finishes.
+ * <p>
+ * {@link #stop()} and {@link #release()} may be called on another thread
+ * than the rest, as finishing a large file takes a while.
+ */
+public interface RecordingEngine {
+
+    /**
+     * Told about events that end the recording. Called on the main thread.
+     */
+    interface Listener {
+
+        /**
+         * The recording failed and can not go on.
+         */
+        void onError(Exception e);
+
+        /**
+         * The file reached {@link RecordingSettings#maxFileSize} and nothing
+         * more is written to it.
+         */
+        void onMaxFileSizeReached();
+
+        /**
+         * A part of a split recording is complete and will not be written to
+         * again. The last part is complete once {@link #stop()} returns.
+         */
+        void onSegmentFinished(String path);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Sets up the encoders and the output file.
+     *
+     * @throws IOException if an encoder or the file can not be set up
+     */
+    void prepare() throws IOException;
+
+    /**
+     * Returns the surface to draw the recording on. Valid after
+     * {@link #prepare()}.
+     */
+    Surface getSurface();
+
+    /**
+     * Returns the file being written now, null when recording without a file.
+     */
+    String getOutputPath();
+
+    /**
+     * Returns the format of the video written, as a MediaFormat mime type, or
+     * null when the device chooses it.
+     */
+    String getVideoMime();
+
+    void start();
+
+    void pause();
+
+    void resume();
+
+    /**
+     * Finishes the file.
+     *
+     * @throws RuntimeException if nothing was recorded and the file is not
+     *                          usable, as MediaRecorder.stop() does
+     */
+    void stop();
+
+    /**
+     * Frees the encoders. The engine can not be used again.
+     */
+    void release();
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.adadev.xrecorder.Const;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finishes recordings on a thread of its own: stopping the engine, which
+ * writes the moov of the whole file, salvaging what was written if that
+ * fails, and indexing the file. None of it holds up the main thread, and a
+ * new recording can start while the last one is still being finished.
+ * <p>
+ * The parts of a split recording are indexed on the same thread, so its
+ * playlist is only ever written there and lists the parts in order.
+ * <p>
+ * Recordings are finished one at a time, in the order they are handed over,
+ * and go from {@link Recording.State#FINALIZING} to
+ * {@link Recording.State#INDEXED} or {@link Recording.State#FAILED}.
+ */
+public class RecordingFinalizer {
+
+    private static final long SCAN_TIMEOUT_MS = 10000;
+
+    private static final long MAIN_THREAD_TIMEOUT_MS = 5000;
+
+    /**
+     * Told when a recording changes state. Called on the main thread.
+     */
+    public interface Listener {
+
+        void onStateChanged(Recording recording);
+    }
+
+    private final Context context;
+
+    private final Listener listener;
+
+    private final HandlerThread thread = new HandlerThread("RecordingFinalizer");
+
+    private final Handler handler;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Recording> pending = new ArrayList<>(); // only used on the main thread
+
+    public RecordingFinalizer(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Hands a recording over to be finished. Called on the main thread once
+     * the engine gets no more input; the listener is told it is finalizing
+     * before this returns.
+     */
+    public void finish(Recording recording) {
+        pending.add(recording);
+        setState(recording, Recording.State.FINALIZING);
+        handler.post(() -> complete(recording));
+    }
+
+    /**
+     * Adds a finished part of a split recording to its playlist and the
+     * gallery. Called on the main thread, in the order the parts are
+     * finished, also for parts finished while the recording is being
+     * finalized.
+     */
+    public void addPart(Recording recording, String path) {
+        recording.addFinishedPart(path);
+        handler.post(() -> {
+            List<String> toBeScanned = new ArrayList<>();
+            addFinishedParts(recording, toBeScanned);
+            scan(toBeScanned);
+        });
+    }
+
+    /**
+     * Returns the recordings handed over and not finished yet, oldest first.
+     */
+    public List<Recording> getPending() {
+        return Collections.unmodifiableList(pending);
+    }
+
+    public boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Ends the thread once the recordings handed over are finished.
+     */
+    public void quit() {
+        thread.quitSafely();
+    }
+
+    private void complete(Recording recording) {
+        RecordingEngine engine = recording.getEngine();
+        boolean stopped = false;
+        if (engine != null) {
+            try {
+                engine.stop();
+                stopped = true;
+                Log.i(Const.TAG, "Recording stopped");
+            } catch (RuntimeException e) {
+                Log.e(Const.TAG, "Stopping the recording failed", e);
+            } finally {
+                engine.release();
+            }
+        }
+
+        /* A part the engine finished while stopping is reported on the main thread, and the engine
+         * has moved on to the next. Take the earlier parts in first, the last one is the file */
+        awaitMainThread();
+        List<String> toBeScanned = new ArrayList<>();
+        addFinishedParts(recording, toBeScanned);
+        if (engine != null)
+            recording.setPath(engine.getOutputPath());
+
+        //Instant replay has no file of its own, only the replays saved along the way
+        String path = recording.getPath();
+        if (path == null || !stopped && !salvage(recording)) {
+            scan(toBeScanned);
+            post(recording, path == null ? Recording.State.INDEXED : Recording.State.FAILED);
+            return;
+        }
+
+        toBeScanned.add(path);
+        if (addToPlaylist(recording, path))
+            toBeScanned.add(recording.getPlaylist().getFile().getPath());
+        scan(toBeScanned);
+        post(recording, Recording.State.INDEXED);
+    }
+
+    // Adds the parts finished so far to the playlist, in order, and to the files to scan
+    private void addFinishedParts(Recording recording, List<String> toBeScanned) {
+        String path;
+        while ((path = recording.pollFinishedPart()) != null) {
+            addToPlaylist(recording, path);
+            toBeScanned.add(path);
+        }
+    }
+
+    // Returns whether the recording has a playlist and the part was added to it
+    private boolean addToPlaylist(Recording recording, String path) {
+        SegmentPlaylist playlist = recording.getPlaylist();
+        if (playlist == null)
+            return false;
+        try {
+            playlist.add(path);
+            return true;
+        } catch (IOException e) {
+            Log.e(Const.TAG, "Could not add " + path + " to the playlist", e);
+            return false;
+        }
+    }
+
+    // Waits for what was posted to the main thread so far to have run
+    private void awaitMainThread() {
+        CountDownLatch reached = new CountDownLatch(1);
+        mainHandler.post(reached::countDown);
+        try {
+            if (!reached.await(MAIN_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.w(Const.TAG, "Main thread did not answer in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Makes what was written of a recording that did not finish playable. A file without a moov is
+     * repaired using the newest recording of the same format and size as reference; a fragmented
+     * one is playable as it is. Only a file with no media data at all is deleted, one that could
+     * not be repaired is kept as it is. Returns whether there is a playable file */
+    private boolean salvage(Recording recording) {
+        String path = recording.getPath();
+        File file = new File(path);
+        File repaired = new File(path + ".repair");
+        if (!file.exists())
+            return false;
+        try {
+            if (Mp4Repair.needsRepair(file)) {
+                long start = recording.getPartStartTime();
+                long durationUs = start > 0 ? Math.max(0, file.lastModified() - start) * 1000 : 0;
+                File reference = Mp4Repair.findReference(file.getParentFile(), file,
+                        recording.getVideoMime(), recording.getWidth(), recording.getHeight());
+                Mp4Repair.Result result = Mp4Repair.repair(file, repaired, reference,
+                        recording.getVideoMime(), durationUs);
+                if (result.frames == 0) {
+                    if (file.delete())
+                        Log.d(Const.TAG, "Nothing to recover, deleted " + path);
+                    return false;
+                }
+                if (!repaired.renameTo(file))
+                    throw new IOException("Could not replace " + path + " with the repaired file");
+                Log.d(Const.TAG, "Recovered " + result.frames + " frames, " + result.durationUs / 1000 + " ms of " + path);
+            }
+            recording.setRecovered();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(Const.TAG, "Recovering " + path + " failed", e);
+            if (repaired.delete())
+                Log.d(Const.TAG, "Partly repaired file deleted");
+            return false;
+        }
+    }
+
+    /* Its weird that android does not index the files immediately once its created and that causes
+     * trouble for user in finding the video in gallery. Announce the files and wait for them to be
+     * indexed, so a finished recording is in the gallery */
+    private void scan(List<String> paths) {
+        if (paths.isEmpty())
+            return;
+        CountDownLatch scanned = new CountDownLatch(paths.size());
+        MediaScannerConnection.scanFile(context, paths.toArray(new String[0]), null, (path, uri) -> {
+            Log.i(Const.TAG, "SCAN COMPLETED: " + path);
+            scanned.countDown();
+        });
+        try {
+            if (!scanned.await(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.w(Const.TAG, "Media scanner did not answer in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void post(Recording recording, Recording.State state) {
+        mainHandler.post(() -> {
+            pending.remove(recording);
+            setState(recording, state);
+        });
+    }
+
+    private void setState(Recording recording, Recording.State state) {
+        recording.setState(state);
+        listener.onStateChanged(recording);
+    }
+}
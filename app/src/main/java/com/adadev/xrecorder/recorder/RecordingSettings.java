@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import java.util.Locale;
+
+/**
+ * What a {@link RecordingEngine} records and where to. Filled in by the
+ * recorder service from the user's preferences.
+ */
+public class RecordingSettings {
+
+    public static final int NO_AUDIO = -1;
+
+    public String outputPath; // null to record without a file
+
+    public int width, height;
+
+    public int frameRate;
+
+    public int videoBitRate; // bits per second
+
+    public String videoMime; // preferred video format, null to let the engine choose
+
+    public int audioSource = NO_AUDIO; // MediaRecorder.AudioSource constant
+
+    public int audioBitRate; // bits per second
+
+    public int audioSampleRate;
+
+    public int audioChannels;
+
+    public long maxFileSize; // bytes, 0 for no limit
+
+    public long segmentDurationUs; // length of each part, 0 to not split by time
+
+    public long segmentSize; // bytes of each part, 0 to not split by size
+
+    public boolean fragmented; // write a fragmented MP4, playable even if the recording is cut off; H.264 only
+
+    public boolean hasAudio() {
+        return audioSource != NO_AUDIO;
+    }
+
+    public boolean isSegmented() {
+        return segmentDurationUs > 0 || segmentSize > 0;
+    }
+
+    /**
+     * Returns the file of the given part, counted from 1. A recording that is
+     * not split is written to {@link #outputPath} itself.
+     */
+    public String getSegmentPath(int segment) {
+        if (outputPath == null || !isSegmented())
+            return outputPath;
+        int dot = outputPath.lastIndexOf('.');
+        if (dot < outputPath.lastIndexOf('/'))
+            dot = outputPath.length();
+        return String.format(Locale.US, "%s_part%03d%s", outputPath.substring(0, dot), segment, outputPath.substring(dot));
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last few seconds of a recording in memory, as encoded samples, so
+ * they can be saved after the fact. Set it as the
+ * {@link CodecRecordingEngine.SampleListener} of an engine recording without
+ * a file.
+ * <p>
+ * The samples are copied into one direct buffer used as a ring, so the memory
+ * taken is fixed and off the Java heap. The buffer always starts at a video
+ * sync frame: old samples are dropped a whole group of pictures at a time,
+ * once the group after it still covers the duration or once the bytes are
+ * needed for new samples. The buffer so holds at least the asked duration
+ * when the memory allows, and at most one group of pictures more.
+ */
+public class ReplayBuffer implements CodecRecordingEngine.SampleListener {
+
+    private final long durationUs;
+
+    private final ByteBuffer storage;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+    private final ArrayDeque<Entry> keyFrames = new ArrayDeque<>(); // video sync frames among the entries
+
+    private final MediaFormat[] formats = new MediaFormat[2];
+
+    private int writePosition; // where the newest entry ends
+
+    private long newestUs;
+
+    /**
+     * @param durationUs length of the replay to keep
+     * @param capacity   bytes of encoded samples to keep at most
+     */
+    public ReplayBuffer(long durationUs, int capacity) {
+        this.durationUs = durationUs;
+        storage = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Override
+    public synchronized void onFormat(int track, MediaFormat format) {
+        formats[track] = format;
+    }
+
+    @Override
+    public synchronized void onSample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean keyFrame = track == CodecRecordingEngine.TRACK_VIDEO
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (entries.isEmpty() && !keyFrame)
+            return;
+        if (info.size > storage.capacity()) {
+            clear();
+            return;
+        }
+
+        newestUs = Math.max(newestUs, info.presentationTimeUs);
+        while (keyFrames.size() > 1) {
+            Entry first = keyFrames.removeFirst();
+            if (newestUs - keyFrames.getFirst().ptsUs < durationUs) {
+                keyFrames.addFirst(first);
+                break;
+            }
+            dropUntil(keyFrames.getFirst());
+        }
+
+        int position;
+        while ((position = findSpace(info.size)) < 0) {
+            if (keyFrames.size() > 1) {
+                keyFrames.removeFirst();
+                dropUntil(keyFrames.getFirst());
+            } else {
+                // A single group of pictures filled the whole buffer, start over at the next sync frame
+                clear();
+                if (!keyFrame)
+                    return;
+            }
+        }
+
+        storage.clear();
+        storage.position(position);
+        storage.put(data.duplicate());
+        Entry entry = new Entry(track, position, info.size, info.presentationTimeUs,
+                info.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        entries.addLast(entry);
+        if (keyFrame)
+            keyFrames.addLast(entry);
+        writePosition = position + info.size;
+    }
+
+    // Returns where size bytes fit after the newest entry, or -1
+    private int findSpace(int size) {
+        if (entries.isEmpty())
+            return 0;
+        int head = entries.getFirst().position;
+        if (writePosition > head) {
+            // The entries take [head, writePosition)
+            if (storage.capacity() - writePosition >= size)
+                return writePosition;
+            return head >= size ? 0 : -1;
+        }
+        // The entries wrapped around and take [head, capacity) and [0, writePosition)
+        return head - writePosition >= size ? writePosition : -1;
+    }
+
+    private void dropUntil(Entry entry) {
+        while (entries.getFirst() != entry)
+            entries.removeFirst();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        keyFrames.clear();
+        writePosition = 0;
+    }
+
+    /**
+     * Copies what is in the buffer now, so it can be saved while recording
+     * goes on. Returns null if there is nothing to save yet.
+     */
+    public synchronized Snapshot snapshot() {
+        if (entries.isEmpty() || formats[CodecRecordingEngine.TRACK_VIDEO] == null)
+            return null;
+        int bytes = 0;
+        for (Entry entry : entries)
+            bytes += entry.size;
+
+        ByteBuffer data = ByteBuffer.allocateDirect(bytes);
+        List<Entry> copies = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            ByteBuffer sample = storage.duplicate();
+            sample.clear();
+            sample.position(entry.position);
+            sample.limit(entry.position + entry.size);
+            copies.add(new Entry(entry.track, data.position(), entry.size, entry.ptsUs, entry.flags));
+            data.put(sample);
+        }
+        return new Snapshot(formats.clone(), data, copies);
+    }
+
+    /**
+     * The samples of a replay, ready to be written to a file.
+     */
+    public static class Snapshot {
+
+        private final MediaFormat[] formats;
+
+        private final ByteBuffer data;
+
+        private final List<Entry> entries;
+
+        Snapshot(MediaFormat[] formats, ByteBuffer data, List<Entry> entries) {
+            this.formats = formats;
+            this.data = data;
+            this.entries = entries;
+        }
+
+        public long getDurationUs() {
+            return entries.get(entries.size() - 1).ptsUs - entries.get(0).ptsUs;
+        }
+
+        /**
+         * Writes the replay to an MP4 file, starting at time 0.
+         *
+         * @throws IOException if the file can not be written
+         */
+        public void writeTo(String path) throws IOException {
+            MediaMuxer muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            try {
+                int[] tracks = {-1, -1};
+                for (int track = 0; track < formats.length; track++) {
+                    if (formats[track] != null)
+                        tracks[track] = muxer.addTrack(formats[track]);
+                }
+                muxer.start();
+
+                // The first entry is a video sync frame; audio read just before it is left out
+                long startUs = entries.get(0).ptsUs;
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                for (Entry entry : entries) {
+                    if (tracks[entry.track] < 0 || entry.ptsUs < startUs)
+                        continue;
+                    data.clear();
+                    data.position(entry.position);
+                    data.limit(entry.position + entry.size);
+                    info.set(entry.position, entry.size, entry.ptsUs - startUs, entry.flags);
+                    muxer.writeSampleData(tracks[entry.track], data, info);
+                }
+                muxer.stop();
+            } catch (RuntimeException e) {
+                throw new IOException("Writing the replay failed", e);
+            } finally {
+                muxer.release();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final int track;
+
+        final int position; // in the buffer
+
+        final int size;
+
+        final long ptsUs;
+
+        final int flags;
+
+        Entry(int track, int position, int size, long ptsUs, int flags) {
+            this.track = track;
+            this.position = position;
+            this.size = size;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.recorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * An M3U playlist of the parts of a split recording, in the folder of the
+ * parts. Each part is added as soon as it is finished, so the playlist is
+ * usable even if the recording never ends properly.
+ */
+public class SegmentPlaylist {
+
+    private final File file;
+
+    public SegmentPlaylist(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends a finished part to the playlist.
+     *
+     * @throws IOException if the playlist can not be written
+     */
+    public void add(String segmentPath) throws IOException {
+        boolean isNew = file.length() == 0;
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), Charset.forName("UTF-8"))) {
+            if (isNew)
+                writer.write("#EXTM3U\n");
+            writer.write(new File(segmentPath).getName() + "\n");
+        }
+    }
+}
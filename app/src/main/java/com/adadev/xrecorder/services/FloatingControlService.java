@@ -108,6 +108,14 @@ public class FloatingControlService extends Service implements View.OnClickListe
         //Get floating control icon size from sharedpreference
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(this);
 
+        //Show the save replay button when recording in instant replay mode
+        if (pref.getBoolean(getString(R.string.preference_replay_key), false)) {
+            ImageButton saveReplayIB = controls.findViewById(R.id.save_replay);
+            saveReplayIB.setVisibility(View.VISIBLE);
+            saveReplayIB.setOnClickListener(this);
+            controls.findViewById(R.id.divider3).setVisibility(View.VISIBLE);
+        }
+
         //Pause/Resume doesnt work below SDK version 24. Remove them
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
             pauseIB.setVisibility(View.GONE);
@@ -269,6 +277,9 @@ public class FloatingControlService extends Service implements View.OnClickListe
             case R.id.resume:
                 resumeScreenRecording();
                 break;
+            case R.id.save_replay:
+                saveReplay();
+                break;
         }
 
         //Provide an haptic feedback on button press
@@ -296,6 +307,15 @@ public class FloatingControlService extends Service implements View.OnClickListe
         startService(pauseIntent);
     }
 
+    /**
+     * Set save replay intent and start the recording service
+     */
+    private void saveReplay() {
+        Intent saveReplayIntent = new Intent(this, RecorderService.class);
+        saveReplayIntent.setAction(Const.SCREEN_RECORDING_SAVE_REPLAY);
+        startService(saveReplayIntent);
+    }
+
     /**
      * Set stop intent and start the recording service
      */
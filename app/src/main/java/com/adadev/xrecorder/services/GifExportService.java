@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.services;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+
+import com.adadev.xrecorder.Const;
+import com.adadev.xrecorder.R;
+import com.adadev.xrecorder.encoder.Mp4toGIFConverter;
+import com.adadev.xrecorder.ui.MainActivity;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Foreground service that converts videos to GIF one job after another, with up to the number of
+ * parallel jobs set in the preferences running at once. Every job shows its progress in a
+ * notification with a cancel action. The queue is saved in the preferences whenever it changes, so
+ * jobs that were queued or running when the process died are started again by
+ * {@link #resumePending(Context)} or when the system restarts the service.
+ */
+public class GifExportService extends Service {
+    private final Map<Integer, Job> jobs = new LinkedHashMap<>(); // queued and running, in order
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private ExecutorService executor;
+    private int parallelJobs;
+    private SharedPreferences prefs;
+    private NotificationManager mNotificationManager;
+
+    /**
+     * Queues a conversion of the video, or of the range between startMs and endMs of it
+     *
+     * @param endMs end of the range, -1 to convert the whole video
+     */
+    public static void enqueue(Context context, Uri videoUri, long startMs, long endMs) {
+        context.startService(new Intent(context, GifExportService.class)
+                .setAction(Const.GIF_EXPORT_ENQUEUE)
+                .putExtra(Const.GIF_EXPORT_URI, videoUri.toString())
+                .putExtra(Const.GIF_EXPORT_START_MS, startMs)
+                .putExtra(Const.GIF_EXPORT_END_MS, endMs));
+    }
+
+    /**
+     * Starts the service again if jobs were left in the queue by a previous process
+     */
+    public static void resumePending(Context context) {
+        String saved = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(Const.PREFS_GIF_EXPORT_JOBS, "[]");
+        if (!saved.equals("[]"))
+            context.startService(new Intent(context, GifExportService.class)
+                    .setAction(Const.GIF_EXPORT_RESUME));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            createNotificationChannel();
+        prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        parallelJobs = Math.max(1, Integer.parseInt(prefs.getString(
+                getString(R.string.preference_gif_export_jobs_key), "1")));
+        executor = Executors.newFixedThreadPool(parallelJobs);
+        // any command picks up the jobs left by a process that died, so a cancel can find them too
+        restoreJobs();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(Const.GIF_EXPORT_NOTIFICATION_ID, createQueueNotification());
+        // A null intent, like GIF_EXPORT_RESUME, only needs the saved jobs restored in onCreate
+        String action = intent != null ? intent.getAction() : null;
+        switch (action != null ? action : "") {
+            case Const.GIF_EXPORT_ENQUEUE:
+                String uri = intent.getStringExtra(Const.GIF_EXPORT_URI);
+                long startMs = intent.getLongExtra(Const.GIF_EXPORT_START_MS, 0);
+                long endMs = intent.getLongExtra(Const.GIF_EXPORT_END_MS, -1);
+                // the same video and range make the same files, jobs running at once would write them together
+                if (isQueued(uri, startMs, endMs)) {
+                    Log.d(Const.TAG, "GIF export of " + uri + " already queued");
+                    break;
+                }
+                int id = prefs.getInt(Const.PREFS_GIF_EXPORT_NEXT_ID, 0);
+                prefs.edit().putInt(Const.PREFS_GIF_EXPORT_NEXT_ID, (id + 1) % 1000).apply();
+                submit(new Job(id, uri, startMs, endMs));
+                saveJobs();
+                break;
+            case Const.GIF_EXPORT_CANCEL:
+                cancel(intent.getIntExtra(Const.GIF_EXPORT_JOB_ID, -1));
+                break;
+        }
+        stopIfIdle();
+        return START_STICKY;
+    }
+
+    private boolean isQueued(String uri, long startMs, long endMs) {
+        for (Job job : jobs.values()) {
+            if (job.uri.equals(uri) && job.startMs == startMs && job.endMs == endMs)
+                return true;
+        }
+        return false;
+    }
+
+    private void submit(Job job) {
+        jobs.put(job.id, job);
+        job.future = executor.submit(() -> run(job));
+        updateNotification(createJobNotification(job, -1), job.notificationId());
+        updateQueueNotification();
+    }
+
+    /**
+     * Converts a job's video on an executor thread
+     */
+    private void run(Job job) {
+        Mp4toGIFConverter gif = new Mp4toGIFConverter(this);
+        gif.setVideoUri(Uri.parse(job.uri));
+        if (job.endMs >= 0)
+            gif.setRange(job.startMs, job.endMs);
+        // the cores are shared among the jobs running at once
+        gif.setParallelism(Runtime.getRuntime().availableProcessors() / parallelJobs);
+        synchronized (job) {
+            if (job.cancelled)
+                return;
+            job.converter = gif;
+        }
+        Log.d(Const.TAG, "GIF export " + job.id + " started for " + job.uri);
+        // the job leaves the queue however the conversion ends, or the service never stops
+        String result = getString(R.string.gif_export_failed, gif.getGifFile().getName());
+        String report = "";
+        try {
+            boolean saved = gif.convert(percent -> {
+                // notify only on changes, the listener is called for every frame
+                if (percent != job.progress) {
+                    job.progress = percent;
+                    updateNotification(createJobNotification(job, percent), job.notificationId());
+                }
+            });
+            StringBuilder names = new StringBuilder();
+            for (File file : gif.getSavedFiles())
+                names.append(names.length() > 0 ? ", " : "").append(file.getName());
+            result = saved ? getString(R.string.gif_export_saved, names) : gif.isCancelled() ? null : result;
+            report = gif.getReport();
+        } catch (RuntimeException e) {
+            Log.e(Const.TAG, "GIF export " + job.id + " failed", e);
+            if (gif.isCancelled())
+                result = null;
+        } finally {
+            String shownResult = result, shownReport = report;
+            mHandler.post(() -> finish(job, shownResult, shownReport));
+        }
+    }
+
+    /**
+     * Cancels a queued job right away and a running one at its next frame
+     */
+    private void cancel(int id) {
+        Job job = jobs.get(id);
+        if (job == null)
+            return;
+        synchronized (job) {
+            job.cancelled = true;
+            if (job.converter != null) {
+                job.converter.cancel();
+                return; // finishes on its executor thread
+            }
+        }
+        job.future.cancel(false);
+        finish(job, null, "");
+    }
+
+    /**
+     * Removes a job that ended and shows its result, if any
+     */
+    private void finish(Job job, String result, String report) {
+        if (jobs.remove(job.id) == null)
+            return;
+        saveJobs();
+        getManager().cancel(job.notificationId());
+        if (result != null) {
+            NotificationCompat.Builder notification = new NotificationCompat.Builder(this, Const.GIF_EXPORT_NOTIFICATION_CHANNEL_ID)
+                    .setContentTitle(result)
+                    .setSmallIcon(R.drawable.ic_notification)
+                    .setAutoCancel(true)
+                    .setContentIntent(createContentIntent());
+            if (!report.isEmpty())
+                notification.setContentText(report);
+            updateNotification(notification.build(), job.notificationId());
+        }
+        updateQueueNotification();
+        stopIfIdle();
+    }
+
+    private void stopIfIdle() {
+        if (jobs.isEmpty()) {
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    /**
+     * Saves the queued and running jobs, in order
+     */
+    private void saveJobs() {
+        JSONArray saved = new JSONArray();
+        try {
+            for (Job job : jobs.values())
+                saved.put(new JSONObject()
+                        .put("id", job.id)
+                        .put("uri", job.uri)
+                        .put("start", job.startMs)
+                        .put("end", job.endMs));
+        } catch (JSONException e) {
+            Log.e(Const.TAG, "Unable to save GIF export queue", e);
+            return;
+        }
+        prefs.edit().putString(Const.PREFS_GIF_EXPORT_JOBS, saved.toString()).apply();
+    }
+
+    /**
+     * Queues the saved jobs that are not queued yet, in their saved order
+     */
+    private void restoreJobs() {
+        try {
+            JSONArray saved = new JSONArray(prefs.getString(Const.PREFS_GIF_EXPORT_JOBS, "[]"));
+            for (int i = 0; i < saved.length(); i++) {
+                JSONObject job = saved.getJSONObject(i);
+                if (!jobs.containsKey(job.getInt("id")))
+                    submit(new Job(job.getInt("id"), job.getString("uri"),
+                            job.getLong("start"), job.getLong("end")));
+            }
+        } catch (JSONException e) {
+            Log.e(Const.TAG, "Discarding unreadable GIF export queue", e);
+        }
+        saveJobs();
+    }
+
+    //Add notification channel for supporting Notification in Api 26 (Oreo)
+    private void createNotificationChannel() {
+        NotificationChannel channel = new NotificationChannel(
+                Const.GIF_EXPORT_NOTIFICATION_CHANNEL_ID,
+                Const.GIF_EXPORT_NOTIFICATION_CHANNEL_NAME,
+                NotificationManager.IMPORTANCE_LOW
+        );
+        channel.setShowBadge(false);
+        channel.setLockscreenVisibility(Notification.VISIBILITY_PUBLIC);
+        getManager().createNotificationChannel(channel);
+    }
+
+    private Notification createQueueNotification() {
+        return new NotificationCompat.Builder(this, Const.GIF_EXPORT_NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(getResources().getQuantityString(R.plurals.gif_export_queue_title,
+                        jobs.size(), jobs.size()))
+                .setSmallIcon(R.drawable.ic_notification)
+                .setOngoing(true)
+                .setContentIntent(createContentIntent())
+                .build();
+    }
+
+    private void updateQueueNotification() {
+        if (!jobs.isEmpty())
+            updateNotification(createQueueNotification(), Const.GIF_EXPORT_NOTIFICATION_ID);
+    }
+
+    /**
+     * @param percent progress of a running job, -1 while it waits in the queue
+     */
+    private Notification createJobNotification(Job job, int percent) {
+        Intent cancelIntent = new Intent(this, GifExportService.class)
+                .setAction(Const.GIF_EXPORT_CANCEL)
+                .putExtra(Const.GIF_EXPORT_JOB_ID, job.id);
+        PendingIntent pcancelIntent = PendingIntent.getService(this, job.id, cancelIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        return new NotificationCompat.Builder(this, Const.GIF_EXPORT_NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(getString(R.string.gif_export_notification_title))
+                .setContentText(Uri.parse(job.uri).getLastPathSegment())
+                .setSmallIcon(R.drawable.ic_notification)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(100, Math.max(0, percent), percent < 0)
+                .setContentIntent(createContentIntent())
+                .addAction(R.drawable.ic_close_grey, getString(R.string.gif_export_notification_action_cancel),
+                        pcancelIntent)
+                .build();
+    }
+
+    private PendingIntent createContentIntent() {
+        return PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class).setAction(Const.SCREEN_RECORDER_VIDEOS_LIST_FRAGMENT_INTENT),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    //Update existing notification with its ID and new Notification data
+    private void updateNotification(Notification notification, int ID) {
+        getManager().notify(ID, notification);
+    }
+
+    private NotificationManager getManager() {
+        if (mNotificationManager == null) {
+            mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        }
+        return mNotificationManager;
+    }
+
+    @Override
+    public void onDestroy() {
+        // the queue stays saved, jobs still running are started over next time
+        for (Job job : jobs.values()) {
+            synchronized (job) {
+                job.cancelled = true;
+                if (job.converter != null)
+                    job.converter.cancel();
+            }
+            getManager().cancel(job.notificationId());
+        }
+        // keeps the cancelled jobs from removing themselves from the saved queue
+        jobs.clear();
+        executor.shutdownNow();
+        Log.d(Const.TAG, "GIF export service destroyed");
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * A video, or a range of it, to convert
+     */
+    private static class Job {
+        final int id;
+        final String uri;
+        final long startMs, endMs;
+        Future<?> future;
+        Mp4toGIFConverter converter; // set once running, guarded by the job
+        boolean cancelled; // guarded by the job
+        volatile int progress = -1;
+
+        Job(int id, String uri, long startMs, long endMs) {
+            this.id = id;
+            this.uri = uri;
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+
+        int notificationId() {
+            return Const.GIF_EXPORT_JOB_NOTIFICATION_ID + id;
+        }
+    }
+}
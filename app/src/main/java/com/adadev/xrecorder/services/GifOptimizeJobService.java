@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.services;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaScannerConnection;
+import android.os.Environment;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.adadev.xrecorder.Const;
+import com.adadev.xrecorder.encoder.GifOptimizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Shrinks the saved GIFs with {@link GifOptimizer} while the device is idle and charging. Every
+ * frame stays as it was shown. GIFs are only rewritten when that makes them smaller, and the ones
+ * already looked at are remembered so that each GIF is optimized once.
+ */
+public class GifOptimizeJobService extends JobService {
+    private volatile GifOptimizer optimizer; // optimizer of the GIF being processed
+    private volatile boolean stopped;
+
+    /**
+     * Schedules optimizing the saved GIFs for the next time the device is idle and charging
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.schedule(new JobInfo.Builder(Const.GIF_OPTIMIZE_JOB_ID,
+                new ComponentName(context, GifOptimizeJobService.class))
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .build());
+    }
+
+    public static void cancel(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.cancel(Const.GIF_OPTIMIZE_JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        stopped = false;
+        new Thread(() -> jobFinished(params, !optimizeAll()), "GIF optimizer").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // the device is in use again, the GIF being optimized is left as it was
+        stopped = true;
+        GifOptimizer current = optimizer;
+        if (current != null)
+            current.cancel();
+        return true;
+    }
+
+    /**
+     * Optimizes the saved GIFs not optimized yet
+     *
+     * @return false if the job was stopped before all were done
+     */
+    private boolean optimizeAll() {
+        File dir = new File(Environment.getExternalStorageDirectory() + File.separator + Const.APPDIR);
+        File[] gifs = dir.listFiles((d, name) -> name.endsWith(".gif"));
+        if (gifs == null)
+            return true;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        Set<String> done = new HashSet<>(prefs.getStringSet(Const.PREFS_GIF_OPTIMIZED, new HashSet<>()));
+        Set<String> present = new HashSet<>();
+        for (File gif : gifs) {
+            if (stopped)
+                return false;
+            if (done.contains(getKey(gif))) {
+                present.add(getKey(gif));
+                continue;
+            }
+            optimizer = new GifOptimizer();
+            try {
+                GifOptimizer.Result result = optimizer.optimize(gif, gif);
+                Log.d(Const.TAG, "Optimized " + gif.getName() + ": " + result);
+                if (result.written)
+                    MediaScannerConnection.scanFile(this, new String[]{gif.getPath()}, null, null);
+            } catch (InterruptedIOException e) {
+                return false;
+            } catch (IOException e) {
+                // not tried again, a GIF that cannot be read now will not be readable later
+                Log.e(Const.TAG, "Unable to optimize " + gif.getName(), e);
+            }
+            present.add(getKey(gif));
+            // save after every GIF, the job may be stopped at any time
+            prefs.edit().putStringSet(Const.PREFS_GIF_OPTIMIZED, union(done, present)).apply();
+        }
+        // forget the GIFs that were deleted
+        prefs.edit().putStringSet(Const.PREFS_GIF_OPTIMIZED, present).apply();
+        optimizer = null;
+        return true;
+    }
+
+    /**
+     * Identifies a GIF as it was after being optimized, so a GIF saved again under the same
+     * name is optimized again
+     */
+    private static String getKey(File gif) {
+        return gif.getName() + ":" + gif.length() + ":" + gif.lastModified();
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> all = new HashSet<>(a);
+        all.addAll(b);
+        return all;
+    }
+}
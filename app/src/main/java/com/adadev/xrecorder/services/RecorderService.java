@@ -47,11 +47,11 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.os.StatFs;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.SparseIntArray;
@@ -64,9 +64,21 @@ import com.adadev.xrecorder.Const;
 import com.adadev.xrecorder.DemoMode.DemoModeController;
 import com.adadev.xrecorder.R;
 import com.adadev.xrecorder.gesture.ShakeEventManager;
+import com.adadev.xrecorder.recorder.CodecRecordingEngine;
+import com.adadev.xrecorder.recorder.MediaRecorderEngine;
+import com.adadev.xrecorder.recorder.Recording;
+import com.adadev.xrecorder.recorder.RecordingEngine;
+import com.adadev.xrecorder.recorder.RecordingFinalizer;
+import com.adadev.xrecorder.recorder.RecordingSettings;
+import com.adadev.xrecorder.recorder.ReplayBuffer;
+import com.adadev.xrecorder.recorder.SegmentPlaylist;
 import com.adadev.xrecorder.ui.EditVideoActivity;
 import com.adadev.xrecorder.ui.MainActivity;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -74,6 +86,8 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
@@ -115,15 +129,13 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
     private FloatingControlService floatingControlService;
     private boolean isBound = false;
     private boolean showSysUIDemo = false;
+    private boolean isReplayMode;
+    private ReplayBuffer mReplayBuffer;
+    private ExecutorService fileWorker;
+    private SegmentPlaylist mPlaylist;
     private NotificationManager mNotificationManager;
-    Handler mHandler = new Handler(Looper.getMainLooper()) {
-        @Override
-        public void handleMessage(Message message) {
-            Toast.makeText(RecorderService.this, R.string.screen_recording_stopped_toast, Toast.LENGTH_SHORT).show();
-            showShareNotification();
-        }
-    };
     private ShakeEventManager mShakeDetector;
+    private boolean isWaitingForShake;
     private Intent data;
     private int result;
     //Service connection to manage the connection state between this service and the bounded service
@@ -162,7 +174,17 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
     private MediaProjection mMediaProjection;
     private VirtualDisplay mVirtualDisplay;
     private MediaProjectionCallback mMediaProjectionCallback;
-    private MediaRecorder mMediaRecorder;
+    private RecordingEngine mRecorder;
+    private Recording mRecording;
+    private RecordingFinalizer mFinalizer;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mFinalizer = new RecordingFinalizer(this, this::onRecordingStateChanged);
+        recoverUnfinishedRecordings();
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -173,6 +195,12 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
 
+        //Restarted by the system after the app was killed: only unfinished recordings are left to recover
+        if (intent == null) {
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+
         //return super.onStartCommand(intent, flags, startId);
         //Find the action to perform from intent
         switch (intent.getAction()) {
@@ -213,6 +241,8 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
                                         .setContentIntent(pdestroyMediaRecorderIntent);
 
                         startNotificationForeGround(shakeGestureWaitNotification.build(), Const.SCREEN_RECORDER_SHARE_NOTIFICATION_ID);
+                        isWaitingForShake = true;
+                        updateFinalizingNotification();
 
                         Toast.makeText(this, R.string.screenrecording_waiting_for_gesture_toast,
                                 Toast.LENGTH_LONG).show();
@@ -233,9 +263,13 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
             case Const.SCREEN_RECORDING_STOP:
                 stopRecording();
                 break;
+            case Const.SCREEN_RECORDING_SAVE_REPLAY:
+                saveReplay();
+                break;
             case Const.SCREEN_RECORDING_DESTORY_SHAKE_GESTURE:
                 mShakeDetector.stop();
-                stopSelf();
+                isWaitingForShake = false;
+                stopIfIdle();
                 break;
         }
         return START_STICKY;
@@ -259,9 +293,6 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
 
         if (showSysUIDemo)
             DemoModeController.stopDemoMode(this);
-
-        //The service is started as foreground service and hence has to be stopped
-        stopForeground(true);
     }
 
     // Start the selected app before recording if its enabled and an app is selected
@@ -275,7 +306,9 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
 
     @TargetApi(24)
     private void pauseScreenRecording() {
-        mMediaRecorder.pause();
+        if (!isRecording)
+            return;
+        mRecorder.pause();
         //calculate total elapsed time until pause
         elapsedTime += (System.currentTimeMillis() - startTime);
 
@@ -302,7 +335,9 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
 
     @TargetApi(24)
     private void resumeScreenRecording() {
-        mMediaRecorder.resume();
+        if (!isRecording)
+            return;
+        mRecorder.resume();
 
         //Reset startTime to current time again
         startTime = System.currentTimeMillis();
@@ -335,17 +370,45 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         if (showSysUIDemo)
             DemoModeController.allowDemoMode(this);
 
-        //Initialize MediaRecorder class and initialize it with preferred configuration
-        mMediaRecorder = new MediaRecorder();
-        mMediaRecorder.setOnErrorListener((mr, what, extra) -> {
-            Log.e(Const.TAG, "Screencam Error: " + what + ", Extra: " + extra);
-            Toast.makeText(this, R.string.recording_failed_toast, Toast.LENGTH_SHORT).show();
-            destroyMediaProjection();
-        });
-        mMediaRecorder.setOnInfoListener((mr, what, extra) -> {
-            Log.d(Const.TAG, "Screencam Info: " + what + ", Extra: " + extra);
+        isWaitingForShake = false;
+
+        //Initialize the chosen recording engine with preferred configuration
+        mRecorder = createRecordingEngine();
+        final Recording recording = new Recording(mRecorder, mPlaylist, mRecorder.getVideoMime(), WIDTH, HEIGHT);
+        mRecording = recording;
+        /* Errors of a recording that is already being finished are of no concern here. Parts it
+         * finishes while stopping are, the next part is its file then */
+        mRecorder.setListener(new RecordingEngine.Listener() {
+            @Override
+            public void onError(Exception e) {
+                if (!isRecording || recording != mRecording)
+                    return;
+                Log.e(Const.TAG, "Screencam Error: " + e.getMessage());
+                Toast.makeText(RecorderService.this, R.string.recording_failed_toast, Toast.LENGTH_SHORT).show();
+                destroyMediaProjection();
+            }
+
+            @Override
+            public void onMaxFileSizeReached() {
+                Log.d(Const.TAG, "Storage full, stopping the recording");
+                if (isRecording && recording == mRecording)
+                    stopRecording();
+            }
+
+            @Override
+            public void onSegmentFinished(String path) {
+                Log.d(Const.TAG, "Recording part finished: " + path);
+                recording.startPart(recording.getEngine().getOutputPath());
+                updateUnfinishedRecordings(path, recording);
+                mFinalizer.addPart(recording, path);
+            }
         });
-        initRecorder();
+        try {
+            mRecorder.prepare();
+        } catch (IOException e) {
+            //start() fails on an engine that is not prepared, which is handled below
+            e.printStackTrace();
+        }
 
         //Set Callback for MediaProjection
         mMediaProjectionCallback = new MediaProjectionCallback();
@@ -359,7 +422,7 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
          * and pass it on to MediaRecorder to start recording */
         mVirtualDisplay = createVirtualDisplay();
         try {
-            mMediaRecorder.start();
+            mRecorder.start();
 
             //If floating controls is enabled, start the floating control service and bind it here
             if (useFloatingControls) {
@@ -380,6 +443,10 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
             if (isBound)
                 floatingControlService.setRecordingState(Const.RecordingState.RECORDING);
             isRecording = true;
+            if (!isReplayMode) {
+                recording.startPart(mRecorder.getOutputPath());
+                updateUnfinishedRecordings(null, recording);
+            }
 
             //Send a broadcast receiver to the plugin app to enable show touches since the recording is started
             if (showTouches) {
@@ -393,8 +460,13 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
             Log.e(Const.TAG, "Mediarecorder reached Illegal state exception. Did you start the recording twice?");
             Toast.makeText(this, R.string.recording_failed_toast, Toast.LENGTH_SHORT).show();
             isRecording = false;
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
             mMediaProjection.stop();
-            stopSelf();
+            mRecorder.release();
+            mRecording = null;
+            stopIfIdle();
+            return;
         }
 
         /* Add Pause action to Notification to pause screen recording if the user's android version
@@ -413,6 +485,8 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
             startNotificationForeGround(createRecordingNotification(action).build(), Const.SCREEN_RECORDER_NOTIFICATION_ID);
         } else
             startNotificationForeGround(createRecordingNotification(null).build(), Const.SCREEN_RECORDER_NOTIFICATION_ID);
+        //Taking over the foreground removed the notification of recordings still being saved
+        updateFinalizingNotification();
     }
 
     //Virtual display created by mirroring the actual physical display
@@ -420,7 +494,7 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         return mMediaProjection.createVirtualDisplay("MainActivity",
                 WIDTH, HEIGHT, DENSITY_DPI,
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                mMediaRecorder.getSurface(), null /*Callbacks*/, null
+                mRecorder.getSurface(), null /*Callbacks*/, null
                 /*Handler*/);
     }
 
@@ -448,62 +522,80 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         return !encoder.startsWith("OMX.google");
     }
 
-    private int getBestVideoEncoder() {
-        int VideoCodec = MediaRecorder.VideoEncoder.DEFAULT;
+    // Returns the video format to record in, or null to leave it to the engine
+    private String getBestVideoMime() {
+        String mime = null;
         if (getMediaCodecFor(MediaFormat.MIMETYPE_VIDEO_HEVC)) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                VideoCodec = MediaRecorder.VideoEncoder.HEVC;
+                mime = MediaFormat.MIMETYPE_VIDEO_HEVC;
             }
         } else if (getMediaCodecFor(MediaFormat.MIMETYPE_VIDEO_AVC))
-            VideoCodec = MediaRecorder.VideoEncoder.H264;
-        return VideoCodec;
+            mime = MediaFormat.MIMETYPE_VIDEO_AVC;
+        return mime;
     }
 
-    /* Initialize MediaRecorder with desired default values and values set by user. Everything is
-     * pretty much self explanatory */
-    private void initRecorder() {
-        boolean mustRecAudio = false;
-        try {
-            String audioBitRate = prefs.getString(getString(R.string.audiobitrate_key), "192");
-            String audioSamplingRate = prefs.getString(getString(R.string.audiosamplingrate_key), getBestSampleRate() + "");
-            String audioChannel = prefs.getString(getString(R.string.audiochannels_key), "1");
-            switch (audioRecSource) {
-                case "1":
-                    mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-                    mustRecAudio = true;
-                    break;
-                case "2":
-                    mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
-                    mMediaRecorder.setAudioEncodingBitRate(Integer.parseInt(audioBitRate));
-                    mMediaRecorder.setAudioSamplingRate(Integer.parseInt(audioSamplingRate));
-                    mMediaRecorder.setAudioChannels(Integer.parseInt(audioChannel));
-                    mustRecAudio = true;
-
-                    Log.d(Const.TAG, "bit rate: " + audioBitRate + " sampling: " + audioSamplingRate + " channel" + audioChannel);
-                    break;
-                case "3":
-                    mAudioManager.setParameters("screenRecordAudioSource=8");
-                    mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.REMOTE_SUBMIX);
-                    mMediaRecorder.setAudioEncodingBitRate(Integer.parseInt(audioBitRate));
-                    mMediaRecorder.setAudioSamplingRate(Integer.parseInt(audioSamplingRate));
-                    mMediaRecorder.setAudioChannels(Integer.parseInt(audioChannel));
-                    mustRecAudio = true;
-                    break;
-            }
-            mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-            mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mMediaRecorder.setOutputFile(SAVEPATH);
-            mMediaRecorder.setVideoSize(WIDTH, HEIGHT);
-            mMediaRecorder.setVideoEncoder(getBestVideoEncoder());
-            mMediaRecorder.setMaxFileSize(getFreeSpaceInBytes());
-            if (mustRecAudio)
-                mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-            mMediaRecorder.setVideoEncodingBitRate(BITRATE);
-            mMediaRecorder.setVideoFrameRate(FPS);
-            mMediaRecorder.prepare();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /* Create the recording engine chosen in settings with desired default values and values set by
+     * user. Everything is pretty much self explanatory */
+    private RecordingEngine createRecordingEngine() {
+        RecordingSettings settings = new RecordingSettings();
+        String audioBitRate = prefs.getString(getString(R.string.audiobitrate_key), "192");
+        String audioSamplingRate = prefs.getString(getString(R.string.audiosamplingrate_key), getBestSampleRate() + "");
+        String audioChannel = prefs.getString(getString(R.string.audiochannels_key), "1");
+        switch (audioRecSource) {
+            case "1":
+                //The microphone keeps the recorder's own audio defaults
+                settings.audioSource = MediaRecorder.AudioSource.MIC;
+                break;
+            case "2":
+                settings.audioSource = MediaRecorder.AudioSource.DEFAULT;
+                settings.audioBitRate = Integer.parseInt(audioBitRate);
+                settings.audioSampleRate = Integer.parseInt(audioSamplingRate);
+                settings.audioChannels = Integer.parseInt(audioChannel);
+
+                Log.d(Const.TAG, "bit rate: " + audioBitRate + " sampling: " + audioSamplingRate + " channel" + audioChannel);
+                break;
+            case "3":
+                mAudioManager.setParameters("screenRecordAudioSource=8");
+                settings.audioSource = MediaRecorder.AudioSource.REMOTE_SUBMIX;
+                settings.audioBitRate = Integer.parseInt(audioBitRate);
+                settings.audioSampleRate = Integer.parseInt(audioSamplingRate);
+                settings.audioChannels = Integer.parseInt(audioChannel);
+                break;
+        }
+        settings.outputPath = SAVEPATH;
+        settings.width = WIDTH;
+        settings.height = HEIGHT;
+        settings.videoMime = getBestVideoMime();
+        settings.videoBitRate = BITRATE;
+        settings.frameRate = FPS;
+        settings.maxFileSize = getFreeSpaceInBytes();
+        mPlaylist = null;
+
+        if (isReplayMode) {
+            //Instant replay keeps the recording in memory and writes nothing until asked to
+            settings.outputPath = null;
+            int seconds = Integer.parseInt(prefs.getString(getString(R.string.preference_replay_length_key), "30"));
+            int megabytes = Integer.parseInt(prefs.getString(getString(R.string.preference_replay_memory_key), "64"));
+            mReplayBuffer = new ReplayBuffer(seconds * 1000000L, megabytes * 1024 * 1024);
+            CodecRecordingEngine replayEngine = new CodecRecordingEngine(settings);
+            replayEngine.setSampleListener(mReplayBuffer);
+            return replayEngine;
         }
+
+        //Split the recording into parts if asked to, with a playlist tying them together
+        settings.segmentDurationUs = Integer.parseInt(prefs.getString(getString(R.string.preference_segment_length_key), "0")) * 60000000L;
+        settings.segmentSize = Integer.parseInt(prefs.getString(getString(R.string.preference_segment_size_key), "0")) * 1024L * 1024L;
+        if (settings.isSegmented() && prefs.getBoolean(getString(R.string.preference_segment_playlist_key), true))
+            mPlaylist = new SegmentPlaylist(new File(SAVEPATH.substring(0, SAVEPATH.lastIndexOf('.')) + ".m3u"));
+
+        settings.fragmented = prefs.getBoolean(getString(R.string.preference_crash_safe_key), false);
+
+        String engine = prefs.getString(getString(R.string.preference_recording_engine_key), "mediarecorder");
+        Log.d(Const.TAG, "Recording engine: " + engine);
+        //MediaRecorder can only split by size, and only from Oreo, and never writes crash-safe files
+        if (engine.equals("mediacodec") || !MediaRecorderEngine.canRecord(settings))
+            return new CodecRecordingEngine(settings);
+        return new MediaRecorderEngine(settings);
     }
 
     private long getFreeSpaceInBytes() {
@@ -573,16 +665,53 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
                         precordStopIntent);
         if (action != null)
             notification.addAction(action);
+        if (isReplayMode) {
+            Intent saveReplayIntent = new Intent(this, RecorderService.class);
+            saveReplayIntent.setAction(Const.SCREEN_RECORDING_SAVE_REPLAY);
+            PendingIntent psaveReplayIntent = PendingIntent.getService(this, 0, saveReplayIntent, 0);
+            notification.addAction(R.drawable.ic_replay_white_24dp,
+                    getString(R.string.screen_recording_notification_action_save_replay), psaveReplayIntent);
+        }
         return notification;
     }
 
-    private void showShareNotification() {
+    /* Write what the instant replay holds to a new file in the background. The recording goes on
+     * and can be saved again later */
+    private void saveReplay() {
+        if (mReplayBuffer == null)
+            return;
+        ReplayBuffer.Snapshot snapshot = mReplayBuffer.snapshot();
+        if (snapshot == null) {
+            Toast.makeText(this, R.string.replay_empty_toast, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final String path = saveLocation + File.separator + getFileSaveName() + "_replay.mp4";
+        final Context context = getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        getFileWorker().execute(() -> {
+            try {
+                snapshot.writeTo(path);
+                MediaScannerConnection.scanFile(context, new String[]{path}, null, null);
+                Log.d(Const.TAG, "Saved " + snapshot.getDurationUs() / 1000 + " ms of replay to " + path);
+                handler.post(() -> Toast.makeText(context, context.getString(R.string.replay_saved_toast,
+                        new File(path).getName()), Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                Log.e(Const.TAG, "Saving replay failed", e);
+                if (new File(path).delete())
+                    Log.d(Const.TAG, "Partial replay deleted");
+                handler.post(() -> Toast.makeText(context, R.string.replay_save_failed_toast, Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    private void showShareNotification(String path) {
         Bitmap icon = BitmapFactory.decodeResource(getResources(),
                 R.mipmap.ic_notification_big);
 
         Uri videoUri = FileProvider.getUriForFile(
                 this, BuildConfig.APPLICATION_ID + ".provider",
-                new File(SAVEPATH));
+                new File(path));
 
         Intent Shareintent = new Intent()
                 .setAction(Intent.ACTION_SEND)
@@ -590,7 +719,7 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
                 .setType("video/mp4");
 
         Intent editIntent = new Intent(this, EditVideoActivity.class);
-        editIntent.putExtra(Const.VIDEO_EDIT_URI_KEY, SAVEPATH);
+        editIntent.putExtra(Const.VIDEO_EDIT_URI_KEY, path);
         PendingIntent editPendingIntent = PendingIntent.getActivity(this, 0, editIntent, PendingIntent.FLAG_UPDATE_CURRENT);
         PendingIntent sharePendingIntent = PendingIntent.getActivity(this, 0, Intent.createChooser(
                 Shareintent, getString(R.string.share_intent_title)), PendingIntent.FLAG_UPDATE_CURRENT);
@@ -611,6 +740,76 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         updateNotification(shareNotification.build(), Const.SCREEN_RECORDER_SHARE_NOTIFICATION_ID);
     }
 
+    /* Show which recordings are still being saved. The notification keeps the service in the
+     * foreground once the recording notification is gone, and goes once all are saved */
+    private void updateFinalizingNotification() {
+        List<Recording> pending = mFinalizer.getPending();
+        if (pending.isEmpty()) {
+            getManager().cancel(Const.SCREEN_RECORDER_FINALIZING_NOTIFICATION_ID);
+            return;
+        }
+        List<String> names = new ArrayList<>();
+        for (Recording recording : pending) {
+            if (recording.getPath() != null)
+                names.add(new File(recording.getPath()).getName());
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class).setAction(Const.SCREEN_RECORDER_VIDEOS_LIST_FRAGMENT_INTENT), PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification notification = new NotificationCompat.Builder(this, Const.RECORDING_NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(getString(R.string.finalizing_notification_title))
+                .setContentText(TextUtils.join(", ", names))
+                .setSmallIcon(R.drawable.ic_notification)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(0, 0, true)
+                .setContentIntent(contentIntent)
+                .build();
+        if (isRecording || isWaitingForShake)
+            updateNotification(notification, Const.SCREEN_RECORDER_FINALIZING_NOTIFICATION_ID);
+        else
+            startNotificationForeGround(notification, Const.SCREEN_RECORDER_FINALIZING_NOTIFICATION_ID);
+    }
+
+    private void onRecordingStateChanged(Recording recording) {
+        String path = recording.getPath();
+        switch (recording.getState()) {
+            case FINALIZING:
+                updateFinalizingNotification();
+                return;
+            case INDEXED:
+                //Instant replay has no file of its own, only the replays saved along the way
+                if (path == null)
+                    break;
+                if (recording.wasRecovered())
+                    Toast.makeText(this, getString(R.string.recording_recovered_toast, new File(path).getName()),
+                            Toast.LENGTH_LONG).show();
+                else
+                    Toast.makeText(this, R.string.screen_recording_stopped_toast, Toast.LENGTH_SHORT).show();
+                showShareNotification(path);
+                break;
+            case FAILED:
+                if (new File(path).exists())
+                    Toast.makeText(this, getString(R.string.recording_recovery_failed_toast, new File(path).getName()),
+                            Toast.LENGTH_LONG).show();
+                else
+                    Toast.makeText(this, getString(R.string.fatal_exception_message), Toast.LENGTH_SHORT).show();
+                break;
+        }
+        //Tried again if the app dies before this
+        if (path != null)
+            updateUnfinishedRecordings(path, null);
+        updateFinalizingNotification();
+        stopIfIdle();
+    }
+
+    // The service goes once nothing is recorded, waited for or being saved
+    private void stopIfIdle() {
+        if (isRecording || isWaitingForShake || !mFinalizer.isIdle())
+            return;
+        stopForeground(true);
+        stopSelf();
+    }
+
     //Start service as a foreground service. We dont want the service to be killed in case of low memory
     private void startNotificationForeGround(Notification notification, int ID) {
         startForeground(ID, notification);
@@ -631,6 +830,10 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
     @Override
     public void onDestroy() {
         Log.d(Const.TAG, "Recorder service destroyed");
+        //Replays and recordings being saved still finish
+        if (fileWorker != null)
+            fileWorker.shutdown();
+        mFinalizer.quit();
         super.onDestroy();
     }
 
@@ -660,6 +863,7 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         String saveFileName = getFileSaveName();
         SAVEPATH = saveLocation + File.separator + saveFileName + ".mp4";
         isShakeGestureActive = prefs.getBoolean(getString(R.string.preference_shake_gesture_key), false);
+        isReplayMode = prefs.getBoolean(getString(R.string.preference_replay_key), false);
     }
 
     /* The PreferenceScreen save values as string and we save the user selected video resolution as
@@ -745,54 +949,80 @@ public class RecorderService extends Service implements ShakeEventManager.ShakeL
         return prefix + "_" + formatter.format(today);
     }
 
-    //Stop and destroy all the objects used for screen recording
+    /* Stop capturing the screen and hand the recording over to be finished. Stopping the engine
+     * writes out the whole file, which takes seconds for a large one, so it is done on the
+     * finalizer thread and a new recording can start meanwhile */
     private void destroyMediaProjection() {
         this.mAudioManager.setParameters("screenRecordAudioSource=0");
-        try {
-            mMediaRecorder.stop();
-            indexFile();
-            Log.i(Const.TAG, "MediaProjection Stopped");
-        } catch (RuntimeException e) {
-            Log.e(Const.TAG, "Fatal exception! Destroying media projection failed." + "\n" + e.getMessage());
-            if (new File(SAVEPATH).delete())
-                Log.d(Const.TAG, "Corrupted file delete successful");
-            Toast.makeText(this, getString(R.string.fatal_exception_message), Toast.LENGTH_SHORT).show();
-        } finally {
-            mMediaRecorder.reset();
-            mVirtualDisplay.release();
-            mMediaRecorder.release();
-            if (mMediaProjection != null) {
-                mMediaProjection.unregisterCallback(mMediaProjectionCallback);
-                mMediaProjection.stop();
-                mMediaProjection = null;
-            }
-            stopSelf();
+        mVirtualDisplay.release();
+        mVirtualDisplay = null;
+        if (mMediaProjection != null) {
+            mMediaProjection.unregisterCallback(mMediaProjectionCallback);
+            mMediaProjection.stop();
+            mMediaProjection = null;
         }
         isRecording = false;
-    }
+        mReplayBuffer = null;
+        Log.i(Const.TAG, "MediaProjection Stopped");
 
-    /* Its weird that android does not index the files immediately once its created and that causes
-     * trouble for user in finding the video in gallery. Let's explicitly announce the file creation
-     * to android and index it */
-    private void indexFile() {
-        //Create a new ArrayList and add the newly created video file path to it
-        ArrayList<String> toBeScanned = new ArrayList<>();
-        toBeScanned.add(SAVEPATH);
-        String[] toBeScannedStr = new String[toBeScanned.size()];
-        toBeScannedStr = toBeScanned.toArray(toBeScannedStr);
+        //The notification of the recordings being saved takes over from the recording one
+        stopForeground(true);
+        Recording recording = mRecording;
+        mRecording = null;
+        mFinalizer.finish(recording);
+    }
 
-        //Request MediaScannerConnection to scan the new file and index it
-        MediaScannerConnection.scanFile(this, toBeScannedStr, null, new MediaScannerConnection.OnScanCompletedListener() {
+    /* Note the files being written, so they can be recovered if the app dies before they are
+     * finished. Along with what is needed to repair them: the video format and size, to find a
+     * reference recording, and when the file was started, to know how long it lasts */
+    private void updateUnfinishedRecordings(String finishedPath, Recording recording) {
+        JSONArray saved = new JSONArray();
+        try {
+            JSONArray unfinished = new JSONArray(prefs.getString(Const.PREFS_UNFINISHED_RECORDINGS, "[]"));
+            for (int i = 0; i < unfinished.length(); i++) {
+                if (!unfinished.getJSONObject(i).getString("path").equals(finishedPath))
+                    saved.put(unfinished.getJSONObject(i));
+            }
+            if (recording != null)
+                saved.put(new JSONObject()
+                        .put("path", recording.getPath())
+                        .put("mime", recording.getVideoMime())
+                        .put("width", recording.getWidth())
+                        .put("height", recording.getHeight())
+                        .put("start", recording.getPartStartTime()));
+        } catch (JSONException e) {
+            Log.e(Const.TAG, "Unable to save the unfinished recordings", e);
+            return;
+        }
+        prefs.edit().putString(Const.PREFS_UNFINISHED_RECORDINGS, saved.toString()).apply();
+    }
 
-            @Override
-            public void onScanCompleted(String path, Uri uri) {
-                Log.i(Const.TAG, "SCAN COMPLETED: " + path);
-                //Show toast on main thread
-                Message message = mHandler.obtainMessage();
-                message.sendToTarget();
-                stopSelf();
+    // Salvage the files of recordings the app died in the middle of
+    private void recoverUnfinishedRecordings() {
+        try {
+            JSONArray unfinished = new JSONArray(prefs.getString(Const.PREFS_UNFINISHED_RECORDINGS, "[]"));
+            for (int i = 0; i < unfinished.length(); i++) {
+                JSONObject saved = unfinished.getJSONObject(i);
+                String path = saved.getString("path");
+                if (!new File(path).exists()) {
+                    updateUnfinishedRecordings(path, null);
+                    continue;
+                }
+                Log.d(Const.TAG, "Recovering unfinished recording " + path);
+                mFinalizer.finish(Recording.unfinished(path, saved.getLong("start"),
+                        saved.optString("mime", null), saved.getInt("width"), saved.getInt("height")));
             }
-        });
+        } catch (JSONException e) {
+            Log.e(Const.TAG, "Discarding unreadable unfinished recordings", e);
+            prefs.edit().remove(Const.PREFS_UNFINISHED_RECORDINGS).apply();
+        }
+    }
+
+    // Saves replays one at a time and off the main thread
+    private ExecutorService getFileWorker() {
+        if (fileWorker == null)
+            fileWorker = Executors.newSingleThreadExecutor();
+        return fileWorker;
     }
 
     private void stopScreenSharing() {
@@ -22,21 +22,30 @@ import android.media.MediaMetadataRetriever;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.Toast;
 
 import com.adadev.xrecorder.Const;
 import com.adadev.xrecorder.R;
+import com.adadev.xrecorder.services.GifExportService;
 
 import java.io.File;
 import java.util.ArrayList;
 
 import androidx.appcompat.app.AppCompatActivity;
 import life.knowledge4.videotrimmer.K4LVideoTrimmer;
+import life.knowledge4.videotrimmer.interfaces.OnRangeSeekBarListener;
 import life.knowledge4.videotrimmer.interfaces.OnTrimVideoListener;
+import life.knowledge4.videotrimmer.view.RangeSeekBarView;
 
 public class EditVideoActivity extends AppCompatActivity implements OnTrimVideoListener{
     private ProgressDialog saveprogress;
+    private Uri videoUri;
+    private long durationMs;
+    private long gifStartMs, gifEndMs; // range selected in the trimmer
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,7 +58,7 @@ public class EditVideoActivity extends AppCompatActivity implements OnTrimVideoL
             return;
         }
 
-        Uri videoUri = Uri.parse(getIntent().getStringExtra(Const.VIDEO_EDIT_URI_KEY));
+        videoUri = Uri.parse(getIntent().getStringExtra(Const.VIDEO_EDIT_URI_KEY));
 
         if (!new File(videoUri.getPath()).exists()) {
             Toast.makeText(this, getResources().getString(R.string.video_not_found), Toast.LENGTH_SHORT).show();
@@ -65,6 +74,8 @@ public class EditVideoActivity extends AppCompatActivity implements OnTrimVideoL
         String time = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
         int timeInMins = (((int)Long.parseLong(time)) / 1000)+1000;
         Log.d(Const.TAG, timeInMins+"");
+        durationMs = Long.parseLong(time);
+        gifEndMs = durationMs;
 
         File video = new File(videoUri.getPath());
 
@@ -73,6 +84,59 @@ public class EditVideoActivity extends AppCompatActivity implements OnTrimVideoL
         videoTrimmer.setMaxDuration(timeInMins);
         Log.d(Const.TAG, "Edited file save name: " + video.getAbsolutePath());
         videoTrimmer.setDestinationPath(video.getParent()+"/");
+
+        // follow the trimmer's thumbs, their values are percent of the duration
+        RangeSeekBarView rangeBar = videoTrimmer.findViewById(life.knowledge4.videotrimmer.R.id.timeLineBar);
+        if (rangeBar != null) {
+            rangeBar.addOnRangeSeekBarListener(new OnRangeSeekBarListener() {
+                @Override
+                public void onCreate(RangeSeekBarView rangeSeekBarView, int index, float value) {
+                    onRangeChanged(index, value);
+                }
+
+                @Override
+                public void onSeek(RangeSeekBarView rangeSeekBarView, int index, float value) {
+                    onRangeChanged(index, value);
+                }
+
+                @Override
+                public void onSeekStart(RangeSeekBarView rangeSeekBarView, int index, float value) {
+                }
+
+                @Override
+                public void onSeekStop(RangeSeekBarView rangeSeekBarView, int index, float value) {
+                    onRangeChanged(index, value);
+                }
+            });
+        }
+    }
+
+    private void onRangeChanged(int index, float value) {
+        long position = (long) (durationMs * value / 100);
+        if (index == 0)
+            gifStartMs = position;
+        else
+            gifEndMs = position;
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        // GIF export is offered where saving GIFs is enabled, like in the videos list
+        if (PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getString(R.string.preference_save_gif_key), false))
+            getMenuInflater().inflate(R.menu.edit_video_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.save_gif_range) {
+            // only the selected range is decoded, starting at the sync frame before it
+            GifExportService.enqueue(this, videoUri, gifStartMs, Math.max(gifStartMs, gifEndMs));
+            Toast.makeText(this, R.string.gif_export_queued, Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
@@ -52,6 +52,8 @@ import com.adadev.xrecorder.DonateActivity;
 import com.adadev.xrecorder.R;
 import com.adadev.xrecorder.ScreenCamApp;
 import com.adadev.xrecorder.interfaces.PermissionResultListener;
+import com.adadev.xrecorder.services.GifExportService;
+import com.adadev.xrecorder.services.GifOptimizeJobService;
 import com.adadev.xrecorder.services.RecorderService;
 
 import java.io.File;
@@ -190,6 +192,11 @@ public class MainActivity extends AppCompatActivity {
 
         prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
+        //Continue GIF exports that were queued when the app was last closed
+        GifExportService.resumePending(this);
+        if (prefs.getBoolean(getString(R.string.preference_gif_optimize_key), false))
+            GifOptimizeJobService.schedule(this);
+
         //Arbitrary "Write to external storage" permission since this permission is most important for the app
         requestPermissionStorage();
 
@@ -52,6 +52,7 @@ import com.adadev.xrecorder.ScreenCamBaseApp;
 import com.adadev.xrecorder.folderpicker.FolderChooser;
 import com.adadev.xrecorder.folderpicker.OnDirectorySelectedListerner;
 import com.adadev.xrecorder.interfaces.PermissionResultListener;
+import com.adadev.xrecorder.services.GifOptimizeJobService;
 import com.topjohnwu.superuser.Shell;
 
 import java.io.File;
@@ -617,6 +618,12 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Sh
             case R.string.preference_camera_overlay_title:
                 requestCameraPermission();
                 break;
+            case R.string.preference_gif_optimize_title:
+                if (((CheckBoxPreference) pref).isChecked())
+                    GifOptimizeJobService.schedule(getActivity());
+                else
+                    GifOptimizeJobService.cancel(getActivity());
+                break;
             case R.string.preference_sysui_demo_mode_title:
                 if (Shell.rootAccess())
                     checkDUMPPermission();
@@ -0,0 +1,114 @@
+package com.adadev.xrecorder.recorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the box layout of {@link FragmentedMp4Writer} output.
+ */
+public class FragmentedMp4WriterTest {
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void startsAFragmentAtEachSyncFrameAfterASecond() throws Exception {
+        File file = folder.newFile("fragmented.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file.getPath());
+        int video = writer.addVideoTrack(1280, 720, SPS, PPS);
+        int audio = writer.addAudioTrack(44100, 2, 128000, new byte[]{0x12, 0x10});
+        writer.start();
+        long audioUs = 0;
+        for (int frame = 0; frame < 75; frame++) {
+            long ptsUs = frame * 1000000L / 30;
+            boolean sync = frame % 30 == 0;
+            writer.writeSample(video, ByteBuffer.wrap(accessUnit(sync, frame)), ptsUs, sync);
+            for (; audioUs <= ptsUs; audioUs += 23220)
+                writer.writeSample(audio, ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6}), audioUs, true);
+        }
+        writer.stop();
+        writer.release();
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        List<String> types = new ArrayList<>();
+        for (int position = 0; position < data.length; position += readInt(data, position))
+            types.add(new String(data, position + 4, 4, "US-ASCII"));
+        // Sync frames at 0, 1 and 2 seconds
+        assertEquals(asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"), types);
+        assertFalse(Mp4Repair.needsRepair(file));
+
+        // The first video run: 30 frames, its data right after the mdat header
+        int moof = indexOfBox(data, "moof");
+        int trun = indexOfBox(data, "trun");
+        assertEquals(30, readInt(data, trun + 12));
+        assertEquals(readInt(data, moof) + 8, readInt(data, trun + 16));
+        int firstSize = readInt(data, trun + 24);
+
+        // Start codes became lengths and the parameter sets were left out
+        int sample = moof + readInt(data, moof) + 8;
+        byte[] expected = nal(0x65, 0);
+        assertEquals(4 + expected.length, firstSize);
+        assertEquals(expected.length, readInt(data, sample));
+        byte[] written = new byte[expected.length];
+        System.arraycopy(data, sample + 4, written, 0, written.length);
+        assertArrayEquals(expected, written);
+    }
+
+    // An Annex B access unit as an encoder gives it, with parameter sets before sync frames
+    private static byte[] accessUnit(boolean sync, int frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        if (sync) {
+            buffer.put(new byte[]{0, 0, 0, 1}).put(SPS);
+            buffer.put(new byte[]{0, 0, 0, 1}).put(PPS);
+        }
+        buffer.put(new byte[]{0, 0, 1}).put(nal(sync ? 0x65 : 0x41, frame));
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] nal(int header, int frame) {
+        return new byte[]{(byte) header, (byte) 0x88, (byte) frame, 0x11, 0x22};
+    }
+
+    private static List<String> asList(String... types) {
+        List<String> list = new ArrayList<>();
+        for (String type : types)
+            list.add(type);
+        return list;
+    }
+
+    static int readInt(byte[] data, int position) {
+        return (data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16
+                | (data[position + 2] & 0xff) << 8 | data[position + 3] & 0xff;
+    }
+
+    // Where the first box of the type starts, found by its name
+    static int indexOfBox(byte[] data, String type) throws Exception {
+        byte[] name = type.getBytes("US-ASCII");
+        outer:
+        for (int i = 4; i + 4 <= data.length; i++) {
+            for (int j = 0; j < 4; j++) {
+                if (data[i + j] != name[j])
+                    continue outer;
+            }
+            return i - 4;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,244 @@
+package com.adadev.xrecorder.recorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.adadev.xrecorder.recorder.FragmentedMp4WriterTest.indexOfBox;
+import static com.adadev.xrecorder.recorder.FragmentedMp4WriterTest.readInt;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link Mp4Repair} finds the frames of a recording cut off
+ * before its moov was written.
+ */
+public class Mp4RepairTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsTheSizeOfASequenceParameterSet() throws Exception {
+        assertArrayEquals(new int[]{1280, 720}, Mp4Repair.parseSpsSize(sps(80, 45, 0)));
+        // 1088 lines cropped by 4 chroma lines to 1080
+        assertArrayEquals(new int[]{1920, 1080}, Mp4Repair.parseSpsSize(sps(120, 68, 4)));
+    }
+
+    @Test
+    public void rebuildsTheFramesFromTheMediaData() throws Exception {
+        Stream stream = new Stream(true);
+        File damaged = stream.writeTo(folder.newFile("damaged.mp4"));
+        assertTrue(Mp4Repair.needsRepair(damaged));
+
+        File repaired = folder.newFile("repaired.mp4");
+        Mp4Repair.Result result = Mp4Repair.repair(damaged, repaired, null, "video/avc", 5 * 100000);
+        assertEquals(5, result.frames);
+        assertEquals(500000, result.durationUs);
+        stream.check(repaired);
+    }
+
+    @Test
+    public void takesTheSampleDescriptionFromAReference() throws Exception {
+        File reference = folder.newFile("reference.mp4");
+        Mp4Repair.repair(new Stream(true).writeTo(folder.newFile("first.mp4")), reference, null, null, 0);
+
+        Stream stream = new Stream(false);
+        File damaged = stream.writeTo(folder.newFile("damaged.mp4"));
+        assertEquals(reference, Mp4Repair.findReference(folder.getRoot(), damaged, "video/avc", 1280, 720));
+        assertNull(Mp4Repair.findReference(folder.getRoot(), damaged, "video/hevc", 1280, 720));
+        assertNull(Mp4Repair.findReference(folder.getRoot(), damaged, null, 1920, 1080));
+
+        File repaired = folder.newFile("repaired.mp4");
+        assertEquals(5, Mp4Repair.repair(damaged, repaired, reference, "video/avc", 0).frames);
+        stream.check(repaired);
+    }
+
+    @Test
+    public void onlyFindsNothingInEmptyMediaData() throws Exception {
+        File empty = writeMediaData(folder.newFile("empty.mp4"), new byte[0]);
+        assertTrue(Mp4Repair.needsRepair(empty));
+        assertEquals(0, Mp4Repair.repair(empty, folder.newFile("repaired.mp4"), null, null, 0).frames);
+
+        // H.265 can not be told apart without a reference, the file is not taken for having no frames
+        File damaged = new Stream(false).writeTo(folder.newFile("damaged.mp4"));
+        try {
+            Mp4Repair.repair(damaged, folder.newFile("hevc.mp4"), null, "video/hevc", 0);
+            fail();
+        } catch (IOException expected) {
+        }
+        byte[] noise = new byte[4096];
+        new Random(2).nextBytes(noise);
+        File audio = writeMediaData(folder.newFile("audio.mp4"), noise);
+        try {
+            Mp4Repair.repair(audio, folder.newFile("audio.repaired.mp4"), null, null, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    // An unfinished recording of the given media data and nothing else
+    private static File writeMediaData(File file, byte[] data) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new BoxBuilder().writeFileType().toByteArray());
+            out.write(new byte[]{0, 0, 0, 0, 'm', 'd', 'a', 't'});
+            out.write(data);
+        }
+        return file;
+    }
+
+    /* The mdat of an unfinished recording: a frame that can not be decoded, frames, a chunk of
+     * audio, more frames and one that was cut short */
+    private static class Stream {
+
+        private final ByteArrayOutputStream mdat = new ByteArrayOutputStream();
+
+        private final ByteArrayOutputStream[] frames = new ByteArrayOutputStream[5];
+
+        private final Random random = new Random(1);
+
+        Stream(boolean parameterSets) throws Exception {
+            for (int i = 0; i < frames.length; i++)
+                frames[i] = new ByteArrayOutputStream();
+            write(null, slice(0x41, 30));
+            if (parameterSets) {
+                write(frames[0], sps(80, 45, 0));
+                write(frames[0], new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+            }
+            write(frames[0], slice(0x65, 400));
+            write(frames[1], slice(0x41, 60));
+            write(frames[2], slice(0x41, 70));
+            byte[] audio = new byte[300];
+            random.nextBytes(audio);
+            mdat.write(audio);
+            write(frames[3], slice(0x65, 350));
+            write(frames[4], slice(0x41, 50));
+            mdat.write(new byte[]{0, 0, 0x13, (byte) 0x88, 0x41, (byte) 0x9a, 0x12, 0x34});
+        }
+
+        private void write(ByteArrayOutputStream frame, byte[] nal) throws Exception {
+            byte[] length = {0, 0, (byte) (nal.length >> 8), (byte) nal.length};
+            mdat.write(length);
+            mdat.write(nal);
+            if (frame != null) {
+                frame.write(length);
+                frame.write(nal);
+            }
+        }
+
+        private byte[] slice(int header, int size) {
+            byte[] nal = new byte[size];
+            random.nextBytes(nal);
+            nal[0] = (byte) header;
+            nal[1] |= 0x80; // first_mb_in_slice 0
+            return nal;
+        }
+
+        // ftyp, the space MediaMuxer keeps for the moov, and an mdat whose size was never set
+        File writeTo(File file) throws Exception {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new BoxBuilder().writeFileType().toByteArray());
+                out.write(new BoxBuilder().start("free").writeZeros(64).end().toByteArray());
+                out.write(new byte[]{0, 0, 0, 0, 'm', 'd', 'a', 't'});
+                mdat.writeTo(out);
+            }
+            return file;
+        }
+
+        void check(File repaired) throws Exception {
+            assertFalse(Mp4Repair.needsRepair(repaired));
+            byte[] data = Files.readAllBytes(repaired.toPath());
+
+            int tkhd = indexOfBox(data, "tkhd");
+            assertEquals(1280, readInt(data, tkhd + readInt(data, tkhd) - 8) >> 16);
+            assertEquals(720, readInt(data, tkhd + readInt(data, tkhd) - 4) >> 16);
+
+            int stss = indexOfBox(data, "stss");
+            assertEquals(2, readInt(data, stss + 12));
+            assertEquals(1, readInt(data, stss + 16));
+            assertEquals(4, readInt(data, stss + 20));
+
+            int stsz = indexOfBox(data, "stsz");
+            int stco = indexOfBox(data, "stco");
+            assertEquals(frames.length, readInt(data, stsz + 16));
+            for (int i = 0; i < frames.length; i++) {
+                byte[] expected = frames[i].toByteArray();
+                assertEquals(expected.length, readInt(data, stsz + 20 + i * 4));
+                byte[] actual = new byte[expected.length];
+                System.arraycopy(data, readInt(data, stco + 16 + i * 4), actual, 0, actual.length);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    /* A baseline sequence parameter set of the given size in macroblocks, with the bottom
+     * cropped by cropBottom chroma lines */
+    static byte[] sps(int widthMbs, int heightMbs, int cropBottom) {
+        BitWriter bits = new BitWriter();
+        bits.write(0x67, 8);
+        bits.write(66, 8); // profile
+        bits.write(0, 8);
+        bits.write(31, 8); // level
+        bits.writeUe(0); // id
+        bits.writeUe(0); // log2 of max frame number
+        bits.writeUe(0); // picture order count type
+        bits.writeUe(0);
+        bits.writeUe(1); // reference frames
+        bits.write(0, 1);
+        bits.writeUe(widthMbs - 1);
+        bits.writeUe(heightMbs - 1);
+        bits.write(1, 1); // frames only
+        bits.write(1, 1);
+        bits.write(cropBottom > 0 ? 1 : 0, 1);
+        if (cropBottom > 0) {
+            bits.writeUe(0);
+            bits.writeUe(0);
+            bits.writeUe(0);
+            bits.writeUe(cropBottom);
+        }
+        bits.write(0, 1); // no VUI
+        bits.write(1, 1); // stop bit
+        return bits.toByteArray();
+    }
+
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private int current, count;
+
+        void write(int value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = current << 1 | (value >> i) & 1;
+                if (++count == 8) {
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void writeUe(int value) {
+            int bits = 32 - Integer.numberOfLeadingZeros(value + 1);
+            write(0, bits - 1);
+            write(value + 1, bits);
+        }
+
+        byte[] toByteArray() {
+            if (count > 0)
+                write(0, 8 - count);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Frames the benchmarks encode. Without the <code>corpus</code> system
+ * property the frames are synthetic: a list scrolling under a status bar and
+ * an app bar, with text-like strokes, thumbnails and a photo-like gradient,
+ * generated from a fixed seed so every run encodes the same pixels. With
+ * <code>-Dcorpus=dir</code> the images in that directory (captured screens,
+ * PNG or JPEG, in name order) are scaled to the benchmarked size instead.
+ */
+final class FrameCorpus {
+
+    static final int FRAMES = 8;
+
+    private FrameCorpus() {
+    }
+
+    /**
+     * Returns the width and height of a resolution parameter: "720p",
+     * "1080p" and "1440p" are portrait phone screens
+     */
+    static int[] size(String resolution) {
+        switch (resolution) {
+            case "720p":
+                return new int[]{720, 1280};
+            case "1080p":
+                return new int[]{1080, 1920};
+            case "1440p":
+                return new int[]{1440, 2560};
+            default:
+                throw new IllegalArgumentException("Unknown resolution " + resolution);
+        }
+    }
+
+    static int[][] load(int width, int height) throws IOException {
+        String dir = System.getProperty("corpus");
+        return dir == null ? synthetic(width, height) : captured(new File(dir), width, height);
+    }
+
+    private static int[][] captured(File dir, int width, int height) throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.matches("(?i).*\\.(png|jpe?g)"));
+        if (files == null || files.length == 0)
+            throw new IOException("No PNG or JPEG frames in " + dir);
+        Arrays.sort(files);
+        List<int[]> frames = new ArrayList<>();
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null)
+                throw new IOException("Unreadable frame " + file);
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = scaled.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            frames.add(scaled.getRGB(0, 0, width, height, null, 0, width));
+        }
+        return frames.toArray(new int[0][]);
+    }
+
+    private static int[][] synthetic(int width, int height) {
+        int[][] frames = new int[FRAMES][];
+        for (int f = 0; f < FRAMES; f++) {
+            frames[f] = screen(width, height, f * height / 40);
+        }
+        return frames;
+    }
+
+    /**
+     * Draws the list scrolled up by the given number of pixels
+     */
+    private static int[] screen(int width, int height, int scroll) {
+        int[] pixels = new int[width * height];
+        int statusBar = height / 32;
+        int appBar = height / 14;
+        int row = height / 10;
+        int margin = width / 24;
+        Arrays.fill(pixels, 0xfffafafa);
+        for (int top = statusBar + appBar - scroll % row, item = scroll / row; top < height; top += row, item++) {
+            Random random = new Random(item);
+            int thumb = row - margin;
+            if (item % 5 == 3) {
+                photo(pixels, width, height, margin, top + margin / 2, width - 2 * margin, row - margin, random);
+            } else {
+                int hue = 0xff000000 | random.nextInt(0x1000000);
+                fill(pixels, width, height, margin, top + margin / 2, thumb, thumb, hue);
+                int left = 2 * margin + thumb;
+                text(pixels, width, height, left, top + row / 4, width - left - margin, row / 7, 0xff212121, random);
+                text(pixels, width, height, left, top + row / 2, (width - left - margin) * 2 / 3, row / 9, 0xff757575,
+                        random);
+            }
+            fill(pixels, width, height, margin, top + row - 1, width - 2 * margin, 1, 0xffe0e0e0);
+        }
+        fill(pixels, width, height, 0, 0, width, statusBar, 0xff303f9f);
+        fill(pixels, width, height, 0, statusBar, width, appBar, 0xff3f51b5);
+        Random random = new Random(-1);
+        text(pixels, width, height, margin, statusBar + appBar / 3, width / 3, appBar / 3, 0xffffffff, random);
+        for (int i = 0; i < 4; i++) {
+            fill(pixels, width, height, width - (i + 1) * statusBar, statusBar / 4, statusBar / 2, statusBar / 2,
+                    0xffffffff);
+        }
+        return pixels;
+    }
+
+    /**
+     * Draws words as blocks of vertical strokes with anti-aliased edges
+     */
+    private static void text(int[] pixels, int width, int height, int x, int y, int w, int h, int color,
+                             Random random) {
+        int edge = (color & 0xfefefe) / 2 + (0xfafafa / 2) | 0xff000000;
+        for (int pos = x; pos < x + w; ) {
+            int word = h * (2 + random.nextInt(6)) / 2;
+            for (int s = pos; s < Math.min(pos + word, x + w); s += 3) {
+                int top = y + random.nextInt(Math.max(1, h / 3));
+                fill(pixels, width, height, s, top, 2, y + h - top, color);
+                fill(pixels, width, height, s + 2, top, 1, y + h - top, edge);
+            }
+            pos += word + h / 2;
+        }
+    }
+
+    /**
+     * Draws a smooth gradient with some grain, the worst case for the quantizers
+     */
+    private static void photo(int[] pixels, int width, int height, int x, int y, int w, int h, Random random) {
+        int r0 = random.nextInt(256), g0 = random.nextInt(256), b0 = random.nextInt(256);
+        for (int j = Math.max(0, y); j < Math.min(height, y + h); j++) {
+            for (int i = x; i < x + w; i++) {
+                int r = clamp(r0 + (i - x) * 160 / w + random.nextInt(9) - 4);
+                int g = clamp(g0 + (j - y) * 160 / h + random.nextInt(9) - 4);
+                int b = clamp(b0 - (i - x) * 96 / w + random.nextInt(9) - 4);
+                pixels[j * width + i] = 0xff000000 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private static void fill(int[] pixels, int width, int height, int x, int y, int w, int h, int color) {
+        for (int j = Math.max(0, y); j < Math.min(height, y + h); j++) {
+            Arrays.fill(pixels, j * width + Math.max(0, x), j * width + Math.min(width, x + w), color);
+        }
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : c > 255 ? 255 : c;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds the corpus frames to a running GifEncoder over and over, one frame per
+ * operation, on the calling thread. "default" is the encoder as constructed,
+ * "screen" the settings Mp4toGIFConverter uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 4)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class GifEncoderBenchmark {
+
+    @Param({"720p", "1080p", "1440p"})
+    public String resolution;
+
+    @Param({"neuquant", "octree", "mediancut"})
+    public String quantizer;
+
+    @Param({"default", "screen"})
+    public String settings;
+
+    private ArgbPixelBuffer[] frames;
+
+    private int next;
+
+    private GifEncoder encoder;
+
+    private final CountingOutputStream out = new CountingOutputStream();
+
+    @Setup
+    public void setup() throws IOException {
+        int[] size = FrameCorpus.size(resolution);
+        int[][] pixels = FrameCorpus.load(size[0], size[1]);
+        frames = new ArgbPixelBuffer[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            frames[i] = new ArgbPixelBuffer(size[0], size[1], pixels[i]);
+        }
+        encoder = new GifEncoder();
+        encoder.setRepeat(0);
+        encoder.setQuality(15);
+        encoder.setFrameRate(20f);
+        if (quantizer.equals("octree")) {
+            encoder.setQuantizer(Quantizer.OCTREE);
+        } else if (quantizer.equals("mediancut")) {
+            encoder.setQuantizer(Quantizer.MEDIAN_CUT);
+        }
+        if (settings.equals("screen")) {
+            encoder.setColorMap(6, 0);
+            encoder.setPaletteReuse(3);
+            encoder.setDirtyRectangles(true);
+            encoder.setCoalesceDuplicates(true);
+            encoder.setDenseLZW(true);
+        }
+        if (!encoder.start(out))
+            throw new IOException("Encoder did not start");
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.finish();
+    }
+
+    @Benchmark
+    public boolean addFrame(ByteCounters counters) {
+        ArgbPixelBuffer frame = frames[next++ % frames.length];
+        long written = out.count;
+        boolean ok = encoder.addFrame(frame);
+        counters.inputBytes += 4L * frame.getWidth() * frame.getHeight();
+        counters.outputBytes += out.count - written;
+        return ok;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
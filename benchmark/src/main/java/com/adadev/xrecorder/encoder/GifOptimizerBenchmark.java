@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optimizes a GIF of the corpus frames, one whole file per operation, on the
+ * calling thread. The GIF is written once by GifEncoder with the "default" or
+ * "screen" settings of GifEncoderBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 4)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class GifOptimizerBenchmark {
+
+    @Param({"720p", "1080p"})
+    public String resolution;
+
+    @Param({"default", "screen"})
+    public String settings;
+
+    private File dir, source, destination;
+
+    @Setup
+    public void setup() throws IOException {
+        int[] size = FrameCorpus.size(resolution);
+        int[][] pixels = FrameCorpus.load(size[0], size[1]);
+        dir = Files.createTempDirectory("gifoptimizer").toFile();
+        source = new File(dir, "source.gif");
+        destination = new File(dir, "optimized.gif");
+        GifEncoder encoder = new GifEncoder();
+        encoder.setRepeat(0);
+        encoder.setQuality(15);
+        encoder.setFrameRate(20f);
+        if (settings.equals("screen")) {
+            encoder.setColorMap(6, 0);
+            encoder.setPaletteReuse(3);
+            encoder.setDirtyRectangles(true);
+            encoder.setCoalesceDuplicates(true);
+            encoder.setDenseLZW(true);
+        }
+        if (!encoder.start(source))
+            throw new IOException("Encoder did not start");
+        for (int[] frame : pixels) {
+            encoder.addFrame(new ArgbPixelBuffer(size[0], size[1], frame));
+        }
+        if (!encoder.finish())
+            throw new IOException("Unable to write " + source);
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.delete();
+        destination.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public GifOptimizer.Result optimize(ByteCounters counters) throws IOException {
+        GifOptimizer.Result result = new GifOptimizer().optimize(source, destination);
+        counters.inputBytes += result.sourceBytes;
+        counters.outputBytes += result.bytes;
+        return result;
+    }
+}
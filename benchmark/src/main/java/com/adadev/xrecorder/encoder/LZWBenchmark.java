@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LZW compresses a frame indexed to its NeuQuant palette, once per operation,
+ * with the hashed or the dense code table
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LZWBenchmark {
+
+    @Param({"720p", "1080p", "1440p"})
+    public String resolution;
+
+    @Param({"hashed", "dense"})
+    public String table;
+
+    private int width, height;
+
+    private byte[] indexed;
+
+    private LZWEncoder encoder;
+
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setup() throws IOException {
+        int[] size = FrameCorpus.size(resolution);
+        width = size[0];
+        height = size[1];
+        int[] pixels = FrameCorpus.load(width, height)[0];
+        Quantizer quantizer = Quantizer.NEUQUANT.create(pixels, width * height, 10);
+        quantizer.process();
+        indexed = new byte[width * height];
+        for (int i = 0; i < indexed.length; i++) {
+            int color = pixels[i];
+            indexed[i] = (byte) quantizer.map(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+        }
+        encoder = table.equals("dense") ? new DenseLZWEncoder() : new LZWEncoder();
+        out = new ByteArrayOutputStream(indexed.length);
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream encode(ByteCounters counters) throws IOException {
+        out.reset();
+        encoder.setImage(width, height, indexed, 8);
+        encoder.encode(out);
+        counters.inputBytes += indexed.length;
+        counters.outputBytes += out.size();
+        return out;
+    }
+}
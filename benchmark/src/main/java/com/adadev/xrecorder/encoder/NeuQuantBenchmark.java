@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains the NeuQuant network on a frame, once per operation. The sample
+ * parameter is the value given to GifEncoder.setQuality(). The refine
+ * benchmark trains on from the previous frame's network, as with
+ * GifEncoder.setWarmStart(true), at the change that gives the full schedule.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NeuQuantBenchmark {
+
+    @Param({"720p", "1080p", "1440p"})
+    public String resolution;
+
+    @Param({"1", "10", "20"})
+    public int sample;
+
+    private int[] pixels;
+
+    private int[] nextPixels; // the following frame of the corpus
+
+    private NeuQuant previous; // trained on pixels
+
+    private int count;
+
+    private int[][] unsorted; // trained and unbiased network, before inxbuild sorts it
+
+    private NeuQuant indexed;
+
+    @Setup
+    public void setup() throws IOException {
+        int[] size = FrameCorpus.size(resolution);
+        int[][] frames = FrameCorpus.load(size[0], size[1]);
+        pixels = frames[0];
+        nextPixels = frames[1];
+        count = size[0] * size[1];
+        previous = new NeuQuant(pixels, count, sample);
+        previous.process();
+        indexed = new NeuQuant(pixels, count, sample);
+        indexed.learn();
+        indexed.unbiasnet();
+        unsorted = new int[indexed.network.length][];
+        for (int i = 0; i < unsorted.length; i++) {
+            unsorted[i] = indexed.network[i].clone();
+        }
+    }
+
+    @Benchmark
+    public NeuQuant learn(ByteCounters counters) {
+        NeuQuant quantizer = new NeuQuant(pixels, count, sample);
+        quantizer.learn();
+        counters.inputBytes += 4L * count;
+        return quantizer;
+    }
+
+    @Benchmark
+    public NeuQuant refine(ByteCounters counters) {
+        NeuQuant quantizer = new NeuQuant(nextPixels, count, sample, previous, NeuQuant.refinefullerror);
+        quantizer.learn();
+        counters.inputBytes += 4L * count;
+        return quantizer;
+    }
+
+    /**
+     * Sorts the network and builds its index; includes restoring the 256
+     * unsorted entries first
+     */
+    @Benchmark
+    public int[] inxbuild() {
+        for (int i = 0; i < unsorted.length; i++) {
+            System.arraycopy(unsorted[i], 0, indexed.network[i], 0, 4);
+        }
+        indexed.inxbuild();
+        return indexed.netindex;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps every pixel of a frame to a trained NeuQuant palette, once per
+ * operation: through NeuQuant.map() itself or through an inverse color map
+ * of the given bits per channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaletteMappingBenchmark {
+
+    @Param({"720p", "1080p", "1440p"})
+    public String resolution;
+
+    @Param({"0", "5", "6"})
+    public int colorMapBits;
+
+    private int[] pixels;
+
+    private int count;
+
+    private NeuQuant quantizer;
+
+    private InverseColorMap colorMap;
+
+    private byte[] indexed;
+
+    @Setup
+    public void setup() throws IOException {
+        int[] size = FrameCorpus.size(resolution);
+        pixels = FrameCorpus.load(size[0], size[1])[0];
+        count = size[0] * size[1];
+        indexed = new byte[count];
+        quantizer = new NeuQuant(pixels, count, 10);
+        byte[] colorTab = quantizer.process();
+        for (int i = 0; i < colorTab.length; i += 3) {
+            byte temp = colorTab[i];
+            colorTab[i] = colorTab[i + 2];
+            colorTab[i + 2] = temp;
+        }
+        if (colorMapBits > 0) {
+            colorMap = new InverseColorMap(colorTab, quantizer, colorMapBits, 0);
+        }
+    }
+
+    @Benchmark
+    public byte[] map(ByteCounters counters) {
+        for (int i = 0; i < count; i++) {
+            int color = pixels[i];
+            int b = color & 0xff;
+            int g = (color >> 8) & 0xff;
+            int r = (color >> 16) & 0xff;
+            indexed[i] = (byte) (colorMap != null ? colorMap.map(b, g, r) : quantizer.map(b, g, r));
+        }
+        counters.inputBytes += 4L * count;
+        return indexed;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encodes the frames of a {@link FrameSource} within a wall clock budget, an
+ * output size budget or both, by trading output scale, color quality and
+ * frame rate for speed and size.
+ * <p>
+ * The first two frames are encoded once at full size, or at the maximum
+ * width set on the encoder, to measure the cost of a frame, which decides
+ * the output scale before the GIF is started. While
+ * encoding, the time and size the export is heading for are projected every
+ * few frames from the frames since the last change. When over budget, the
+ * quantizer sample interval is raised first and then more source frames are
+ * skipped per GIF frame; when well under budget, the last step is undone.
+ * The parameters used are reported as a {@link Result}.
+ * <p>
+ * The budgets can only be planned for when the number of source frames is
+ * known, see <code>setExpectedFrames</code>. Without it, frames are encoded
+ * at full size and quality.
+ */
+public class AdaptiveGifEncoder {
+
+    protected static final float[] SCALES = {1f, 0.75f, 0.5f, 0.375f, 0.25f}; // output scales, largest first
+
+    protected static final int[] SAMPLES = {20, 30}; // coarser sample intervals tried before skipping frames
+
+    protected static final int[] STEPS = {2, 3, 4, 6}; // source frames per GIF frame tried last
+
+    protected static final int ADAPT_INTERVAL = 5; // GIF frames encoded between budget checks
+
+    protected static final float HEADROOM = 0.8f; // share of the budget the scale is chosen for
+
+    protected static final float RELAX = 0.6f; // projected share of the budget below which a step is undone
+
+    protected GifEncoder encoder; // configured encoder, started by encode()
+
+    protected long timeBudget = 0; // wall clock budget in milliseconds, 0 = none
+
+    protected long sizeBudget = 0; // output size budget in bytes, 0 = none
+
+    protected float frameRate = 10f; // frames per second of the source
+
+    protected int expectedFrames = 0; // frames the source will provide, 0 = unknown
+
+    protected int quality = 10; // sample interval at the best level
+
+    protected int[][] levels; // {sample interval, frame step} from best to fastest
+
+    protected int level; // current entry of levels
+
+    protected long levelTime; // time the current level started at, in nanoseconds
+
+    protected int levelRead; // source frames read when the current level started
+
+    protected int levelKept; // GIF frames added when the current level started
+
+    protected long levelBytes; // bytes written when the current level started
+
+    protected int worstLevel; // coarsest level used
+
+    /**
+     * Creates an adaptive encoder around a configured but not yet started
+     * {@link GifEncoder}. Its quality, frame rate and size are set by
+     * <code>encode()</code>.
+     */
+    public AdaptiveGifEncoder(GifEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Sets the wall clock time the whole export, including decoding, should
+     * take.
+     *
+     * @param ms
+     *          long budget in milliseconds, 0 for none.
+     */
+    public void setTimeBudget(long ms) {
+        timeBudget = Math.max(0, ms);
+    }
+
+    /**
+     * Sets the size the GIF file should not exceed.
+     *
+     * @param bytes
+     *          long budget in bytes, 0 for none.
+     */
+    public void setSizeBudget(long bytes) {
+        sizeBudget = Math.max(0, bytes);
+    }
+
+    /**
+     * Sets the frame rate of the source. Skipped frames are made up for by
+     * showing the frames that are encoded longer.
+     *
+     * @param fps
+     *          float frames per second.
+     */
+    public void setFrameRate(float fps) {
+        if (fps > 0f)
+            frameRate = fps;
+    }
+
+    /**
+     * Sets the number of frames the source is going to provide, used to
+     * project time and size.
+     *
+     * @param frames
+     *          int number of frames, 0 if unknown.
+     */
+    public void setExpectedFrames(int frames) {
+        expectedFrames = Math.max(0, frames);
+    }
+
+    /**
+     * Sets the quantizer sample interval used while within budget, see
+     * {@link GifEncoder#setQuality(int)}.
+     *
+     * @param quality
+     *          int greater than 0.
+     */
+    public void setQuality(int quality) {
+        this.quality = Math.max(1, quality);
+    }
+
+    /**
+     * Encodes all frames of a source to a file. The source is not closed.
+     *
+     * @param source
+     *          FrameSource providing the frames in order.
+     * @param file
+     *          File to write the GIF to.
+     * @return the parameters used.
+     * @throws IOException
+     *          if the source fails or the GIF could not be written, in which
+     *          case no file is left behind.
+     */
+    public Result encode(FrameSource source, File file) throws IOException {
+        long begin = System.nanoTime();
+        PixelBuffer first = copy(source.nextFrame()); // sources may reuse their buffer
+        if (first == null)
+            throw new IOException("No frames to encode");
+        PixelBuffer next = copy(source.nextFrame());
+        levels = buildLevels();
+        int maxWidth = encoder.maxWidth;
+        float scale = maxWidth > 0 && first.getWidth() > maxWidth ? (float) maxWidth / first.getWidth() : 1f;
+        if (expectedFrames > 0 && (timeBudget > 0 || sizeBudget > 0)) {
+            scale *= chooseScale(first, next, begin);
+        }
+        FrameScaler scaler = new FrameScaler(first.getWidth(), first.getHeight(),
+                Math.max(1, Math.round(first.getWidth() * scale)),
+                Math.max(1, Math.round(first.getHeight() * scale)));
+        encoder.setSize(scaler.getWidth(), scaler.getHeight());
+        if (!encoder.start(file))
+            throw new IOException("Unable to create " + file);
+        boolean ok = false;
+        int read = 0, kept = 0;
+        try {
+            setLevel(0, System.nanoTime(), 0, 0);
+            worstLevel = 0;
+            int nextKept = 0; // source frame that goes into the GIF next
+            PixelBuffer frame = first;
+            first = null;
+            while (frame != null) {
+                if (read >= nextKept) {
+                    int step = levels[level][1];
+                    encoder.setQuality(levels[level][0]);
+                    encoder.setDelay(Math.round(step * 1000 / frameRate));
+                    if (!encoder.addFrame(scaler.scale(frame)))
+                        throw new IOException("Unable to encode frame " + read);
+                    kept++;
+                    nextKept = read + step;
+                }
+                read++;
+                if (kept - levelKept >= ADAPT_INTERVAL) {
+                    adapt(read, kept, begin);
+                }
+                frame = next != null ? next : source.nextFrame();
+                next = null;
+            }
+            ok = encoder.finish();
+            if (!ok)
+                throw new IOException("Unable to finish " + file);
+        } finally {
+            if (!ok) {
+                encoder.abort();
+            }
+        }
+        return new Result(scale, scaler.getWidth(), scaler.getHeight(), levels[worstLevel][0],
+                frameRate / levels[worstLevel][1], kept, file.length(), (System.nanoTime() - begin) / 1000000);
+    }
+
+    /**
+     * Returns the levels of quality from best to fastest: the configured
+     * sample interval, coarser sample intervals, then frame steps at the
+     * coarsest sample interval
+     */
+    protected int[][] buildLevels() {
+        List<int[]> list = new ArrayList<>();
+        list.add(new int[]{quality, 1});
+        int sample = quality;
+        for (int s : SAMPLES) {
+            if (s > sample) {
+                sample = s;
+                list.add(new int[]{sample, 1});
+            }
+        }
+        for (int step : STEPS) {
+            list.add(new int[]{sample, step});
+        }
+        return list.toArray(new int[0][]);
+    }
+
+    /**
+     * Encodes the first frames at the size the encoder gives them, see
+     * {@link GifEncoder#setMaxWidth(int)}, to a stream that discards them and
+     * returns the largest scale of that size that fits the budgets with some
+     * headroom, or the smallest scale if none does. Encoding time is taken to shrink with
+     * the pixel count and the encoder's parallelism, size with the pixel count;
+     * the frame steps correct the estimate later on.
+     */
+    protected float chooseScale(PixelBuffer first, PixelBuffer second, long begin) throws IOException {
+        int threads = encoder.parallelism;
+        File spoolDir = encoder.spoolDir;
+        encoder.setParallelism(1); // so the first frame is written before the second is added
+        encoder.setSpool(null, encoder.spoolCapacity, encoder.spoolWindow);
+        encoder.clearSize(); // first frame at the size it gets without a budget
+        encoder.setQuality(quality);
+        encoder.setFrameRate(frameRate);
+        long probe = System.nanoTime();
+        long header, firstBytes, bytes;
+        try {
+            encoder.start(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            header = encoder.getBytesWritten();
+            if (!encoder.addFrame(first) || (second != null && !encoder.addFrame(second)))
+                throw new IOException("Unable to encode the first frames");
+            firstBytes = encoder.getBytesWritten();
+            if (!encoder.finish())
+                throw new IOException("Unable to encode the first frames");
+            bytes = encoder.getBytesWritten();
+        } finally {
+            encoder.setParallelism(threads);
+            encoder.setSpool(spoolDir, encoder.spoolCapacity, encoder.spoolWindow);
+        }
+        long now = System.nanoTime();
+        int probed = second != null ? 2 : 1;
+        float decodeMs = (probe - begin) / 1e6f / probed;
+        float encodeMs = (now - probe) / 1e6f / probed;
+        float laterBytes;
+        if (second == null) {
+            laterBytes = firstBytes = bytes;
+        } else if (firstBytes == header) {
+            // the second frame was a duplicate and only made the first one longer
+            firstBytes = bytes;
+            laterBytes = 0;
+        } else {
+            laterBytes = bytes - firstBytes;
+        }
+        float spentMs = (now - begin) / 1e6f;
+        for (float scale : SCALES) {
+            float area = scale * scale;
+            boolean fits = true;
+            if (timeBudget > 0) {
+                fits = spentMs + expectedFrames * (decodeMs + encodeMs * area / threads) <= HEADROOM * timeBudget;
+            }
+            if (sizeBudget > 0) {
+                fits &= (firstBytes + laterBytes * (expectedFrames - 1)) * area <= HEADROOM * sizeBudget;
+            }
+            if (fits) {
+                return scale;
+            }
+        }
+        return SCALES[SCALES.length - 1];
+    }
+
+    /**
+     * Projects the time and size of the whole export from the frames encoded
+     * at the current level and moves one level up or down if needed
+     */
+    protected void adapt(int read, int kept, long begin) {
+        int remaining = expectedFrames - read;
+        if (remaining <= 0 || read <= levelRead) {
+            return;
+        }
+        long now = System.nanoTime();
+        long bytes = encoder.getBytesWritten();
+        boolean over = false, under = true;
+        if (timeBudget > 0) {
+            float perFrame = (now - levelTime) / 1e6f / (read - levelRead);
+            float projected = (now - begin) / 1e6f + perFrame * remaining;
+            over = projected > timeBudget;
+            under = projected < RELAX * timeBudget;
+        }
+        if (sizeBudget > 0) {
+            // frames still being encoded are not written yet, so this lags a little
+            float perFrame = (float) (bytes - levelBytes) / (read - levelRead);
+            float projected = bytes + perFrame * remaining;
+            over |= projected > sizeBudget;
+            under &= projected < RELAX * sizeBudget;
+        }
+        if (over && level < levels.length - 1) {
+            setLevel(level + 1, now, read, kept);
+            worstLevel = Math.max(worstLevel, level);
+        } else if (under && level > 0) {
+            setLevel(level - 1, now, read, kept);
+        } else {
+            // keep the level but only look at recent frames next time
+            setLevel(level, now, read, kept);
+        }
+    }
+
+    protected void setLevel(int level, long now, int read, int kept) {
+        this.level = level;
+        levelTime = now;
+        levelRead = read;
+        levelKept = kept;
+        levelBytes = encoder.getBytesWritten();
+    }
+
+    /**
+     * Copies a frame into a buffer of its own
+     */
+    protected static PixelBuffer copy(PixelBuffer frame) {
+        if (frame == null) {
+            return null;
+        }
+        int w = frame.getWidth(), h = frame.getHeight();
+        ArgbPixelBuffer copy = new ArgbPixelBuffer(w, h);
+        frame.getPixels(copy.getArray(), 0, w, 0, 0, w, h);
+        return copy;
+    }
+
+    /**
+     * Parameters an adaptive export ended up with. Quality and frame rate are
+     * those of the coarsest level used.
+     */
+    public static class Result {
+
+        public final float scale; // output size relative to the source
+
+        public final int width; // output size
+
+        public final int height;
+
+        public final int quality; // quantizer sample interval
+
+        public final float frameRate; // GIF frames per second
+
+        public final int frames; // frames added to the GIF
+
+        public final long bytes; // file size
+
+        public final long millis; // wall clock time of the export
+
+        Result(float scale, int width, int height, int quality, float frameRate, int frames, long bytes, long millis) {
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+            this.frameRate = frameRate;
+            this.frames = frames;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d (%d%%), quality %d, %.1f fps, %d frames, %.1f MB in %.1f s",
+                    width, height, Math.round(scale * 100), quality, frameRate, frames,
+                    bytes / (1024f * 1024f), millis / 1000f);
+        }
+    }
+}
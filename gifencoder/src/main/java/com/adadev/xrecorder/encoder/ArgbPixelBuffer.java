@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * {@link PixelBuffer} backed by an int array of ARGB colors, row by row. The
+ * array is not copied, so a buffer can be refilled and added again.
+ */
+public class ArgbPixelBuffer implements PixelBuffer {
+
+    private final int width;
+
+    private final int height;
+
+    private final int[] pixels; // ARGB colors, width per row
+
+    public ArgbPixelBuffer(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    public ArgbPixelBuffer(int width, int height, int[] pixels) {
+        if (width < 1 || height < 1 || pixels.length < width * height)
+            throw new IllegalArgumentException("Need " + width + "x" + height + " pixels, got " + pixels.length);
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the backing array, for filling in the next frame
+     */
+    public int[] getArray() {
+        return pixels;
+    }
+
+    @Override
+    public void getPixels(int[] dst, int offset, int stride, int x, int y, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, (y + row) * this.width + x, dst, offset + row * stride, width);
+        }
+    }
+}
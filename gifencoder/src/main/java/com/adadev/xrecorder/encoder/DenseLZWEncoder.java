@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * LZW encoder producing exactly the output of {@link LZWEncoder}, with the
+ * hashed code table replaced by a dense table holding the code of every
+ * prefix code and pixel pair, so each lookup is a single array access.
+ * <p>
+ * The table is never cleared: an entry is only trusted if its code is in use
+ * and was assigned to the same pair, which makes clearing it between code
+ * blocks nearly free. Only the owners of the codes below the first free one
+ * are reset, as an image of another color depth takes codes assigned by the
+ * last one as literals. Sub-blocks are collected in a larger buffer and
+ * written a few dozen at a time.
+ */
+class DenseLZWEncoder extends LZWEncoder {
+
+    private static final int CODES = 1 << BITS;
+
+    private final short[] child = new short[CODES * 256]; // code of prefix * 256 + pixel, may be stale
+
+    private final int[] owner = new int[CODES]; // slot of child a code was assigned to, -1 if none
+
+    private final byte[] blocks = new byte[255 * 64]; // sub-blocks waiting to be written
+
+    private int blockStart; // position of the size byte of the sub-block being filled
+
+    private int blockEnd; // end of the data in blocks
+
+    DenseLZWEncoder() {
+        Arrays.fill(owner, -1);
+    }
+
+    @Override
+    void compress(int init_bits, OutputStream outs) throws IOException {
+        g_init_bits = init_bits;
+
+        clear_flg = false;
+        n_bits = g_init_bits;
+        maxcode = MAXCODE(n_bits);
+
+        ClearCode = 1 << (init_bits - 1);
+        EOFCode = ClearCode + 1;
+        free_ent = ClearCode + 2;
+
+        a_count = 0; // clear packet
+        blockStart = 0;
+        blockEnd = 1;
+
+        cl_hash(hsize);
+
+        byte[] pixels = pixAry;
+        int count = imgW * imgH;
+        int ent = count > 0 ? pixels[0] & 0xff : -1;
+
+        output(ClearCode, outs);
+
+        for (int p = 1; p < count; p++) {
+            int c = pixels[p] & 0xff;
+            int slot = (ent << 8) | c;
+            int code = child[slot];
+            if (code < free_ent && owner[code] == slot) {
+                ent = code;
+                continue;
+            }
+            put(ent, outs);
+            if (free_ent < maxmaxcode) {
+                child[slot] = (short) free_ent;
+                owner[free_ent++] = slot;
+            } else
+                cl_block(outs);
+            ent = c;
+        }
+        // Put out the final code.
+        output(ent, outs);
+        output(EOFCode, outs);
+
+        outs.write(blocks, 0, blockStart);
+    }
+
+    /**
+     * Same as output() for codes other than EOFCode, without the calls per byte
+     */
+    private void put(int code, OutputStream outs) throws IOException {
+        int bits = cur_bits;
+        int acc = (cur_accum & masks[bits]) | (code << bits);
+        bits += n_bits;
+        while (bits >= 8) {
+            blocks[blockEnd++] = (byte) acc;
+            acc >>= 8;
+            bits -= 8;
+            if (++a_count >= 254)
+                flush_char(outs);
+        }
+        cur_accum = acc;
+        cur_bits = bits;
+
+        // If the next entry is going to be too big for the code size,
+        // then increase it, if possible.
+        if (free_ent > maxcode || clear_flg) {
+            if (clear_flg) {
+                maxcode = MAXCODE(n_bits = g_init_bits);
+                clear_flg = false;
+            } else {
+                ++n_bits;
+                if (n_bits == maxbits)
+                    maxcode = maxmaxcode;
+                else
+                    maxcode = MAXCODE(n_bits);
+            }
+        }
+    }
+
+    /* Stale entries of assignable codes are recognized by their code and owner. Codes below the
+     * first free one are never assigned in this image, but may have been in an earlier one */
+    @Override
+    void cl_hash(int hsize) {
+        Arrays.fill(owner, 0, ClearCode + 2, -1);
+    }
+
+    @Override
+    void char_out(byte c, OutputStream outs) throws IOException {
+        blocks[blockEnd++] = c;
+        if (++a_count >= 254)
+            flush_char(outs);
+    }
+
+    // Closes the current sub-block and writes the buffer once it can't take another one
+    @Override
+    void flush_char(OutputStream outs) throws IOException {
+        if (a_count > 0) {
+            blocks[blockStart] = (byte) a_count;
+            blockStart = blockEnd++;
+            a_count = 0;
+            if (blockEnd + 254 > blocks.length) {
+                outs.write(blocks, 0, blockStart);
+                blockStart = 0;
+                blockEnd = 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hands every frame to several outputs, so that a video decoded once can be
+ * written as GIFs of different sizes and other renditions in the same pass.
+ * <p>
+ * The outputs read each frame at the same time, one on the thread adding the
+ * frame and the others on a pool with a thread per further output, and the
+ * next frame is only taken once all of them are done with it. The frame's
+ * <code>getPixels</code> must therefore allow concurrent calls, as
+ * {@link ArgbPixelBuffer} and Android's Bitmap do. An output that fails is
+ * aborted and left out from then on, while the others carry on.
+ */
+public class FrameFanout implements FrameSink {
+
+    protected List<FrameSink> outputs = new ArrayList<>(); // in the order added
+
+    protected boolean[] failed; // outputs aborted after an error, by index
+
+    protected ExecutorService pool; // runs all outputs but the first, created by the first frame
+
+    protected List<Future<Boolean>> pending = new ArrayList<>(); // calls running on the pool, by index
+
+    protected boolean finished; // finish() was called
+
+    /**
+     * Adds an output. Outputs must be added before the first frame.
+     *
+     * @param output
+     *          FrameSink ready to take frames, such as a started GifEncoder.
+     */
+    public void addOutput(FrameSink output) {
+        outputs.add(output);
+    }
+
+    /**
+     * Adds the frame to every output that has not failed.
+     *
+     * @param im
+     *          PixelBuffer containing the frame, read by all outputs before
+     *          returning.
+     * @return false if no output is left.
+     */
+    @Override
+    public boolean addFrame(PixelBuffer im) {
+        if (im == null || finished) {
+            return false;
+        }
+        start();
+        return forEachOutput(output -> output.addFrame(im));
+    }
+
+    /**
+     * Adds every frame of a source, see <code>addFrame</code>. The source is
+     * not closed.
+     *
+     * @param source
+     *          FrameSource providing the frames in order.
+     * @return false if reading the source failed or no output is left.
+     */
+    public boolean addFrames(FrameSource source) {
+        try {
+            PixelBuffer frame;
+            while ((frame = source.nextFrame()) != null) {
+                if (!addFrame(frame)) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finishes every output that has not failed, at the same time.
+     *
+     * @return true if all outputs were written, see <code>isWritten</code>
+     *         for each.
+     */
+    @Override
+    public boolean finish() {
+        if (finished) {
+            return false;
+        }
+        start();
+        forEachOutput(FrameSink::finish);
+        finished = true;
+        shutdown();
+        for (boolean f : failed) {
+            if (f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Aborts every output.
+     */
+    @Override
+    public void abort() {
+        if (finished) {
+            return;
+        }
+        start();
+        for (int i = 0; i < outputs.size(); i++) {
+            if (!failed[i]) {
+                failed[i] = true;
+                outputs.get(i).abort();
+            }
+        }
+        finished = true;
+        shutdown();
+    }
+
+    /**
+     * Returns whether an output was finished without failing.
+     *
+     * @param index
+     *          int position of the output in the order added.
+     */
+    public boolean isWritten(int index) {
+        return finished && !failed[index];
+    }
+
+    /**
+     * Sets up the state and pool for the outputs added, once
+     */
+    protected void start() {
+        if (failed == null) {
+            failed = new boolean[outputs.size()];
+            if (outputs.size() > 1) {
+                pool = Executors.newFixedThreadPool(outputs.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Lets the pool threads end once the last call is done
+     */
+    protected void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Calls each output that has not failed, all but the first on the pool,
+     * and waits for all of them. Outputs whose call fails are aborted.
+     *
+     * @return false if no output is left.
+     */
+    protected boolean forEachOutput(Call call) {
+        int first = -1;
+        for (int i = 0; i < outputs.size(); i++) {
+            if (failed[i]) {
+                pending.add(null);
+            } else if (first < 0) {
+                first = i;
+                pending.add(null);
+            } else {
+                FrameSink output = outputs.get(i);
+                pending.add(pool.submit(() -> call.apply(output)));
+            }
+        }
+        if (first < 0) {
+            pending.clear();
+            return false;
+        }
+        boolean firstOk;
+        try {
+            firstOk = call.apply(outputs.get(first));
+        } catch (RuntimeException e) {
+            firstOk = false;
+        }
+        boolean left = false;
+        for (int i = 0; i < outputs.size(); i++) {
+            boolean ok = i == first ? firstOk : !failed[i] && result(pending.get(i));
+            if (!ok && !failed[i]) {
+                failed[i] = true;
+                outputs.get(i).abort();
+            }
+            left |= ok;
+        }
+        pending.clear();
+        return left;
+    }
+
+    /**
+     * Waits for a call on the pool. An interrupt is kept for the caller, but
+     * the call is still waited for, since its output must not be aborted or
+     * called again while it runs.
+     */
+    protected boolean result(Future<Boolean> call) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return call.get();
+                } catch (ExecutionException e) {
+                    return false;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The method called on each output
+     */
+    protected interface Call {
+        boolean apply(FrameSink output);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.util.Arrays;
+
+/**
+ * Scales frames of one size down to a smaller size by area averaging: every
+ * output pixel is the mean of the source pixels it covers, weighted by how
+ * much of each it covers. Averaging in 8 bits per channel keeps gradients
+ * smooth for the quantizer, and halving the size quarters the pixels it has
+ * to process. Frames are read one row at a time, so scaling needs a few rows
+ * of memory rather than a copy of the frame. Alpha is not kept, frames are
+ * taken as opaque.
+ */
+public class FrameScaler {
+
+    private final int srcWidth;
+
+    private final int srcHeight;
+
+    private final int dstWidth;
+
+    private final int dstHeight;
+
+    private ArgbPixelBuffer output; // scaled frame returned by scale(PixelBuffer), created when needed
+
+    private final int[] row; // source row being read
+
+    private final int[] columnOut; // first output column covered by each source column
+
+    private final int[] columnWeight; // part of that column covered, out of dstWidth
+
+    private final int[] rowR, rowG, rowB; // source row scaled horizontally, 8 bits fraction
+
+    private final int[] sumR, sumG, sumB; // weighted rows of the output row being built
+
+    public FrameScaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (dstWidth < 1 || dstHeight < 1 || dstWidth > srcWidth || dstHeight > srcHeight)
+            throw new IllegalArgumentException("Cannot scale " + srcWidth + "x" + srcHeight
+                    + " to " + dstWidth + "x" + dstHeight);
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        row = new int[srcWidth];
+        // source column i spans [i * dstWidth, (i + 1) * dstWidth) and output
+        // column x spans [x * srcWidth, (x + 1) * srcWidth), so overlaps are whole
+        columnOut = new int[srcWidth];
+        columnWeight = new int[srcWidth];
+        for (int i = 0; i < srcWidth; i++) {
+            long start = (long) i * dstWidth;
+            int x = (int) (start / srcWidth);
+            columnOut[i] = x;
+            columnWeight[i] = (int) (Math.min(start + dstWidth, (long) (x + 1) * srcWidth) - start);
+        }
+        rowR = new int[dstWidth];
+        rowG = new int[dstWidth];
+        rowB = new int[dstWidth];
+        sumR = new int[dstWidth];
+        sumG = new int[dstWidth];
+        sumB = new int[dstWidth];
+    }
+
+    public int getWidth() {
+        return dstWidth;
+    }
+
+    public int getHeight() {
+        return dstHeight;
+    }
+
+    /**
+     * Returns true if a frame has the size this scaler scales from
+     */
+    public boolean accepts(PixelBuffer frame) {
+        return frame.getWidth() == srcWidth && frame.getHeight() == srcHeight;
+    }
+
+    /**
+     * Scales a frame of the source size into a buffer that is reused for every
+     * frame. Frames are passed through untouched when the sizes are the same.
+     *
+     * @param frame
+     *          PixelBuffer of the source size.
+     * @return the scaled frame, valid until the next call.
+     */
+    public PixelBuffer scale(PixelBuffer frame) {
+        if (dstWidth == srcWidth && dstHeight == srcHeight) {
+            return frame;
+        }
+        if (output == null) {
+            output = new ArgbPixelBuffer(dstWidth, dstHeight);
+        }
+        scale(frame, output.getArray());
+        return output;
+    }
+
+    /**
+     * Scales a frame of the source size into an array, row by row.
+     *
+     * @param frame
+     *          PixelBuffer of the source size.
+     * @param dst
+     *          int array receiving the ARGB pixels of the scaled frame.
+     */
+    public void scale(PixelBuffer frame, int[] dst) {
+        if (!accepts(frame))
+            throw new IllegalArgumentException("Expected a " + srcWidth + "x" + srcHeight + " frame, got "
+                    + frame.getWidth() + "x" + frame.getHeight());
+        int y = 0; // output row being built
+        for (int sy = 0; sy < srcHeight; sy++) {
+            frame.getPixels(row, 0, srcWidth, 0, sy, srcWidth, 1);
+            scaleRow();
+            // source row sy spans [sy * dstHeight, (sy + 1) * dstHeight), output
+            // row y spans [y * srcHeight, (y + 1) * srcHeight)
+            long start = (long) sy * dstHeight, end = start + dstHeight;
+            long rowEnd = (long) (y + 1) * srcHeight;
+            int weight = (int) (Math.min(end, rowEnd) - start);
+            addRow(weight);
+            if (end >= rowEnd) {
+                emitRow(dst, y++);
+                if (end > rowEnd) {
+                    addRow((int) (end - rowEnd));
+                }
+            }
+        }
+    }
+
+    /**
+     * Averages the source row horizontally into rowR, rowG and rowB
+     */
+    private void scaleRow() {
+        int[] r = rowR, g = rowG, b = rowB;
+        Arrays.fill(r, 0);
+        Arrays.fill(g, 0);
+        Arrays.fill(b, 0);
+        int last = dstWidth - 1;
+        for (int i = 0; i < srcWidth; i++) {
+            int color = row[i];
+            int red = (color >> 16) & 0xff, green = (color >> 8) & 0xff, blue = color & 0xff;
+            int x = columnOut[i], w = columnWeight[i];
+            r[x] += red * w;
+            g[x] += green * w;
+            b[x] += blue * w;
+            if (w < dstWidth && x < last) {
+                int rest = dstWidth - w;
+                r[x + 1] += red * rest;
+                g[x + 1] += green * rest;
+                b[x + 1] += blue * rest;
+            }
+        }
+        // each output column got a total weight of srcWidth
+        for (int x = 0; x < dstWidth; x++) {
+            r[x] = (r[x] << 8) / srcWidth;
+            g[x] = (g[x] << 8) / srcWidth;
+            b[x] = (b[x] << 8) / srcWidth;
+        }
+    }
+
+    private void addRow(int weight) {
+        for (int x = 0; x < dstWidth; x++) {
+            sumR[x] += rowR[x] * weight;
+            sumG[x] += rowG[x] * weight;
+            sumB[x] += rowB[x] * weight;
+        }
+    }
+
+    /**
+     * Writes the finished output row, which got a total weight of srcHeight,
+     * and clears the sums for the next one
+     */
+    private void emitRow(int[] dst, int y) {
+        int half = srcHeight << 7;
+        for (int x = 0, k = y * dstWidth; x < dstWidth; x++, k++) {
+            int r = (sumR[x] + half) / srcHeight >> 8;
+            int g = (sumG[x] + half) / srcHeight >> 8;
+            int b = (sumB[x] + half) / srcHeight >> 8;
+            dst[k] = 0xff000000 | r << 16 | g << 8 | b;
+            sumR[x] = 0;
+            sumG[x] = 0;
+            sumB[x] = 0;
+        }
+    }
+}
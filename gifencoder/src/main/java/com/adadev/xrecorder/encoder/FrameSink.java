@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * Receives frames one after another and writes them out, such as a GIF file
+ * or a contact sheet. A frame is only valid during <code>addFrame</code>, an
+ * output that needs it later must copy what it needs.
+ */
+public interface FrameSink {
+
+    /**
+     * Adds the next frame.
+     *
+     * @param im
+     *          PixelBuffer containing the frame, read before returning.
+     * @return true if successful.
+     */
+    boolean addFrame(PixelBuffer im);
+
+    /**
+     * Writes out everything added so far and closes the output.
+     *
+     * @return true if the output was written completely.
+     */
+    boolean finish();
+
+    /**
+     * Stops without completing the output, leaving nothing partially written
+     * behind.
+     */
+    void abort();
+}
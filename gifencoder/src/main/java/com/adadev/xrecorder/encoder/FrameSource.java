@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sequence of frames, such as the decoded frames of a video, that can be
+ * added to {@link GifEncoder} in one go with
+ * {@link GifEncoder#addFrames(FrameSource)}.
+ */
+public interface FrameSource extends Closeable {
+
+    /**
+     * Returns the next frame. The buffer may be reused for the following
+     * frame, so it is only valid until the next call.
+     *
+     * @return the next frame, or null after the last one.
+     */
+    PixelBuffer nextFrame() throws IOException;
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Queue of analyzed frames in a memory-mapped temporary file, between the
+ * thread that quantizes frames and the thread that compresses and writes
+ * them. A frame takes one byte per pixel plus its color table. The file is
+ * used as a ring of fixed capacity of which only one window is mapped for
+ * writing and one for reading at a time, so memory use is the same for any
+ * length of animation and quantizing can run ahead of writing until the ring
+ * is full. One thread puts frames and one thread takes them.
+ */
+class FrameSpool implements Closeable {
+
+    private static final int HEADER = 11 * 4; // frame fields ahead of the color table
+
+    private final File file; // temporary file, deleted on close
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final int window; // bytes mapped at a time
+
+    private final long capacity; // bytes of the ring, a multiple of window
+
+    private final FrameWorkspace workspace; // provides the indexed pixels of frames taken
+
+    private final byte[] headerOut = new byte[HEADER]; // header being written
+
+    private final byte[] headerIn = new byte[HEADER]; // header being read
+
+    private byte[] firstColorTab; // palette of the first frame put, not spooled again
+
+    private byte[] firstColorTabIn; // the same palette as read back
+
+    private MappedByteBuffer writeMap; // window being written
+
+    private long writeMapStart = -1; // file offset of writeMap
+
+    private MappedByteBuffer readMap; // window being read
+
+    private long readMapStart = -1; // file offset of readMap
+
+    private long writePos; // ring position of the next byte put
+
+    private long readPos; // ring position of the next byte taken
+
+    private long committed; // end of the last complete frame put
+
+    private long released; // end of the last frame taken
+
+    private boolean finished; // no more frames will be put
+
+    private boolean closed;
+
+    /**
+     * Creates the spool file in a directory.
+     *
+     * @param dir
+     *          File directory for the temporary file.
+     * @param capacity
+     *          long bytes of frames that may be waiting to be written.
+     * @param window
+     *          int bytes mapped at a time for writing and for reading.
+     * @param workspace
+     *          FrameWorkspace of the encoder.
+     */
+    FrameSpool(File dir, long capacity, int window, FrameWorkspace workspace) throws IOException {
+        this.workspace = workspace;
+        this.window = Math.max(4096, window);
+        this.capacity = Math.max(1, (capacity + this.window - 1) / this.window) * this.window;
+        file = File.createTempFile("frames", ".spool", dir);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    /**
+     * Appends an analyzed frame, waiting while the ring is full. The frame's
+     * indexed pixels can be reused once this returns.
+     */
+    void put(GifFrame frame) throws IOException {
+        int nPix = frame.width * frame.height;
+        if (firstColorTab == null) {
+            firstColorTab = frame.colorTab;
+        }
+        boolean first = frame.colorTab == firstColorTab && writePos > 0;
+        long size = HEADER + (first ? 0 : frame.colorTab.length) + nPix;
+        if (size > capacity)
+            throw new IOException("Frame of " + size + " bytes does not fit a spool of " + capacity);
+        synchronized (this) {
+            while (!closed && writePos + size - released > capacity) {
+                await();
+            }
+            if (closed)
+                throw new IOException("Spool closed");
+        }
+        ByteBuffer.wrap(headerOut)
+                .putInt(frame.x).putInt(frame.y).putInt(frame.width).putInt(frame.height)
+                .putInt(frame.delay).putInt(frame.dispose).putInt(frame.transparent)
+                .putInt(frame.transIndex).putInt(frame.colorDepth).putInt(frame.palSize)
+                .putInt(first ? -1 : frame.colorTab.length);
+        write(headerOut, HEADER);
+        if (!first) {
+            write(frame.colorTab, frame.colorTab.length);
+        }
+        write(frame.indexedPixels, nPix);
+        synchronized (this) {
+            committed = writePos;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Takes the oldest frame, waiting until one is put. Its indexed pixels are
+     * a buffer from the workspace.
+     *
+     * @return the frame, or null once all frames are taken and
+     *          <code>finish()</code> was called.
+     */
+    GifFrame take() throws IOException {
+        synchronized (this) {
+            while (!closed && !finished && readPos == committed) {
+                await();
+            }
+            if (closed)
+                throw new IOException("Spool closed");
+            if (readPos == committed) {
+                return null;
+            }
+        }
+        read(headerIn, HEADER);
+        ByteBuffer header = ByteBuffer.wrap(headerIn);
+        int x = header.getInt(), y = header.getInt(), width = header.getInt(), height = header.getInt();
+        GifFrame frame = new GifFrame(null, header.getInt(), header.getInt(), header.getInt(), 0);
+        frame.setBounds(x, y, width, height);
+        frame.transIndex = header.getInt();
+        frame.colorDepth = header.getInt();
+        frame.palSize = header.getInt();
+        int colors = header.getInt();
+        if (colors < 0) {
+            frame.colorTab = firstColorTabIn;
+        } else {
+            frame.colorTab = new byte[colors];
+            read(frame.colorTab, colors);
+            if (firstColorTabIn == null) {
+                firstColorTabIn = frame.colorTab;
+            }
+        }
+        frame.indexedPixels = workspace.takeIndexed();
+        read(frame.indexedPixels, width * height);
+        synchronized (this) {
+            released = readPos;
+            notifyAll();
+        }
+        return frame;
+    }
+
+    /**
+     * Marks the end of the frames, <code>take()</code> returns null once the
+     * remaining ones are taken
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Releases waiting threads with an exception and deletes the file
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the spool");
+        }
+    }
+
+    private void write(byte[] src, int len) throws IOException {
+        for (int off = 0; off < len; ) {
+            long offset = writePos % capacity;
+            long start = offset - offset % window;
+            if (writeMap == null || writeMapStart != start) {
+                writeMap = channel.map(FileChannel.MapMode.READ_WRITE, start, window);
+                writeMapStart = start;
+            }
+            int n = (int) Math.min(len - off, start + window - offset);
+            writeMap.position((int) (offset - start));
+            writeMap.put(src, off, n);
+            off += n;
+            writePos += n;
+        }
+    }
+
+    private void read(byte[] dst, int len) throws IOException {
+        for (int off = 0; off < len; ) {
+            long offset = readPos % capacity;
+            long start = offset - offset % window;
+            if (readMap == null || readMapStart != start) {
+                readMap = channel.map(FileChannel.MapMode.READ_ONLY, start, window);
+                readMapStart = start;
+            }
+            int n = (int) Math.min(len - off, start + window - offset);
+            readMap.position((int) (offset - start));
+            readMap.get(dst, off, n);
+            off += n;
+            readPos += n;
+        }
+    }
+}
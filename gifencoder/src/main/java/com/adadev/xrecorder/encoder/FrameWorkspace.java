@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Recycles the per-frame buffers of {@link GifEncoder}. All frames of an
+ * animation have the same size, so once the pipeline is full every pixel,
+ * index and output buffer is reused and steady-state encoding allocates no
+ * frame buffers. Buffers are taken and returned from the encoding threads,
+ * hence the synchronization.
+ */
+class FrameWorkspace {
+
+    private final int size; // pixels per frame
+
+    private final boolean denseLZW; // create DenseLZWEncoders
+
+    private final ArrayDeque<int[]> pixels = new ArrayDeque<>(); // ARGB frames and crops
+
+    private final ArrayDeque<byte[]> indexed = new ArrayDeque<>(); // frames indexed to a palette
+
+    private final ArrayDeque<ByteArrayOutputStream> data = new ArrayDeque<>(); // compressed frames
+
+    private final ArrayDeque<LZWEncoder> encoders = new ArrayDeque<>();
+
+    FrameWorkspace(int size, boolean denseLZW) {
+        this.size = size;
+        this.denseLZW = denseLZW;
+    }
+
+    int size() {
+        return size;
+    }
+
+    synchronized int[] takePixels() {
+        int[] buffer = pixels.poll();
+        return buffer != null ? buffer : new int[size];
+    }
+
+    synchronized void recycle(int[] buffer) {
+        if (buffer != null && buffer.length == size)
+            pixels.push(buffer);
+    }
+
+    synchronized byte[] takeIndexed() {
+        byte[] buffer = indexed.poll();
+        return buffer != null ? buffer : new byte[size];
+    }
+
+    synchronized void recycle(byte[] buffer) {
+        if (buffer != null && buffer.length == size)
+            indexed.push(buffer);
+    }
+
+    synchronized ByteArrayOutputStream takeData() {
+        ByteArrayOutputStream buffer = data.poll();
+        return buffer != null ? buffer : new ByteArrayOutputStream(size / 4);
+    }
+
+    synchronized void recycle(ByteArrayOutputStream buffer) {
+        if (buffer != null) {
+            buffer.reset();
+            data.push(buffer);
+        }
+    }
+
+    synchronized LZWEncoder takeEncoder() {
+        LZWEncoder encoder = encoders.poll();
+        if (encoder == null)
+            encoder = denseLZW ? new DenseLZWEncoder() : new LZWEncoder();
+        return encoder;
+    }
+
+    synchronized void recycle(LZWEncoder encoder) {
+        if (encoder != null)
+            encoders.push(encoder);
+    }
+}
@@ -0,0 +1,1285 @@
+/*
+ * Copyright (c) 2016-2017. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * Created by vijai on 31-08-2017.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+public class GifEncoder implements FrameSink {
+
+    protected int width; // image size
+
+    protected int height;
+
+    protected int x = 0;
+
+    protected int y = 0;
+
+    protected int transparent = -1; // transparent color if given
+
+    protected int transIndex; // transparent index in color table
+
+    protected int repeat = -1; // no repeat
+
+    protected int delay = 0; // frame delay (hundredths)
+
+    protected boolean started = false; // ready to output frames
+
+    protected OutputStream out;
+
+    protected ByteCounter counter; // counts the bytes written to out, kept after finish
+
+    protected FileChannel outChannel; // channel backing out when writing to a file
+
+    protected File outFile; // destination file, written through tempFile
+
+    protected File tempFile; // partially written GIF, renamed to outFile on finish
+
+    protected PixelBuffer image; // current frame
+
+    protected int[] pixels; // ARGB pixels of the current frame
+
+    protected FrameWorkspace workspace; // recycled frame buffers
+
+    protected int colorDepth; // number of bit planes
+
+    protected int palSize = 7; // color table size (bits-1)
+
+    protected int dispose = -1; // disposal code (-1 = use default)
+
+    protected boolean closeStream = false; // close stream when finished
+
+    protected boolean firstFrame = true;
+
+    protected boolean sizeSet = false; // if false, get size from first frame
+
+    protected int maxWidth = 0; // wider first frames set a scaled down size, 0 = no limit
+
+    protected FrameScaler scaler; // scales frames to the size derived from maxWidth
+
+    protected static final int PALETTE_ERROR_SAMPLES = 4096; // pixels checked before reusing a palette
+
+    protected int sample = 10; // default sample interval for quantizer
+
+    protected Quantizer.Factory quantizer = Quantizer.NEUQUANT; // color reduction backend
+
+    protected int colorMapBits = 0; // bits per channel of the inverse color map, 0 = exact search
+
+    protected int colorMapTolerance = 0; // accepted mapping error of the inverse color map
+
+    protected int paletteThreshold = -1; // extra palette error accepted before retraining, -1 = never reuse
+
+    protected boolean warmStart = false; // train NeuQuant on from the previous frame's network
+
+    protected static final int WARM_RESTART_ERROR = 48; // extra palette error taken as a new scene, trained from scratch
+
+    protected Palette lastPalette; // palette of the last frame analyzed serially
+
+    protected ForkJoinTask<Palette> lastPaletteTask; // palette of the last frame submitted to the pool
+
+    protected byte[] globalColorTab; // palette written as global color table
+
+    protected boolean dirtyRects = false; // only encode the part of a frame that changed
+
+    protected int[] prevPixels; // ARGB pixels of the previous frame, for dirty rectangles and coalescing
+
+    protected boolean coalesce = false; // merge identical consecutive frames
+
+    protected long prevHash; // sampled hash of prevPixels
+
+    protected GifFrame heldFrame; // last frame added, held back until its delay is final
+
+    protected boolean denseLZW = false; // LZW compress with DenseLZWEncoder
+
+    protected int parallelism = 1; // frames quantized and compressed concurrently
+
+    protected ForkJoinPool pool; // encodes frames when parallelism > 1
+
+    protected ArrayDeque<ForkJoinTask<GifFrame>> pendingFrames = new ArrayDeque<>(); // in flight, oldest first
+
+    protected File spoolDir; // directory of the frame spool, null to write frames from memory
+
+    protected long spoolCapacity; // bytes of analyzed frames the spool holds
+
+    protected int spoolWindow; // bytes of the spool mapped at a time
+
+    protected FrameSpool spool; // analyzed frames waiting for spoolWriter
+
+    protected Thread spoolWriter; // compresses and writes the frames from the spool
+
+    protected volatile IOException spoolError; // failure of spoolWriter
+
+    /**
+     * Sets the delay time between each frame, or changes it for subsequent frames
+     * (applies to last frame added).
+     *
+     * @param ms
+     *          int delay time in milliseconds
+     */
+    public void setDelay(int ms) {
+        delay = ms / 10;
+    }
+
+    /**
+     * Sets the GIF frame disposal code for the last added frame and any
+     * subsequent frames. Default is 0 if no transparent color has been set,
+     * otherwise 2.
+     *
+     * @param code
+     *          int disposal code.
+     */
+    public void setDispose(int code) {
+        if (code >= 0) {
+            dispose = code;
+        }
+    }
+
+    /**
+     * Sets the number of times the set of GIF frames should be played. Default is
+     * 1; 0 means play indefinitely. Must be invoked before the first image is
+     * added.
+     *
+     * @param iter
+     *          int number of iterations.
+     * @return
+     */
+    public void setRepeat(int iter) {
+        if (iter >= 0) {
+            repeat = iter;
+        }
+    }
+
+    /**
+     * Sets the transparent color for the last added frame and any subsequent
+     * frames. Since all colors are subject to modification in the quantization
+     * process, the color in the final palette for each frame closest to the given
+     * color becomes the transparent color for that frame. May be set to null to
+     * indicate no transparent color.
+     *
+     * @param c
+     *          Color to be treated as transparent on display.
+     */
+    public void setTransparent(int c) {
+        transparent = c;
+    }
+
+    /**
+     * Adds next GIF frame. The frame is not written immediately, but is actually
+     * deferred until the next frame is received so that timing data can be
+     * inserted. Invoking <code>finish()</code> flushes all frames. If
+     * <code>setSize</code> was not invoked, the size of the first image is used
+     * for all subsequent frames.
+     *
+     * @param im
+     *          PixelBuffer containing frame to write.
+     * @return true if successful.
+     */
+    public boolean addFrame(PixelBuffer im) {
+        if ((im == null) || !started) {
+            return false;
+        }
+        boolean ok = true;
+        try {
+            if (!sizeSet) {
+                // use first frame's size
+                int w = im.getWidth(), h = im.getHeight();
+                if (maxWidth > 0 && w > maxWidth) {
+                    h = Math.max(1, Math.round((float) h * maxWidth / w));
+                    w = maxWidth;
+                    scaler = new FrameScaler(im.getWidth(), im.getHeight(), w, h);
+                }
+                setSize(w, h);
+            }
+            if (workspace == null) {
+                workspace = new FrameWorkspace(width * height, denseLZW);
+                if (spoolDir != null) {
+                    spool = new FrameSpool(spoolDir, spoolCapacity, spoolWindow, workspace);
+                    spoolWriter = new Thread(this::drainSpool, "GifEncoder spool");
+                    spoolWriter.start();
+                }
+            }
+            image = im;
+            getImagePixels(); // convert to correct format if necessary
+            image = null;
+            long hash = coalesce ? sampledHash(pixels) : 0;
+            if (coalesce && heldFrame != null && hash == prevHash
+                    && heldFrame.delay + delay <= 0xffff && Arrays.equals(pixels, prevPixels)) {
+                // same picture again, show the previous frame longer instead
+                heldFrame.delay += delay;
+                workspace.recycle(pixels);
+                pixels = null;
+                return true;
+            }
+            prevHash = hash;
+            GifFrame frame = createFrame();
+            if (heldFrame != null) {
+                encodeFrame(heldFrame);
+            }
+            heldFrame = frame;
+        } catch (IOException e) {
+            ok = false;
+        }
+
+        return ok;
+    }
+
+    /**
+     * Adds every frame of a source, see <code>addFrame</code>. The source is
+     * not closed.
+     *
+     * @param source
+     *          FrameSource providing the frames in order.
+     * @return true if all frames were added.
+     */
+    public boolean addFrames(FrameSource source) {
+        try {
+            PixelBuffer frame;
+            while ((frame = source.nextFrame()) != null) {
+                if (!addFrame(frame)) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a frame whose delay is final, either right away or on the pool
+     */
+    protected void encodeFrame(GifFrame frame) throws IOException {
+        if (pool == null) {
+            lastPalette = choosePalette(frame, lastPalette); // build color table
+            analyzePixels(frame, lastPalette); // map pixels
+            if (spool != null) {
+                spoolFrame(frame);
+            } else {
+                writeFrame(frame);
+            }
+            return;
+        }
+        // palettes are chosen in frame order when they may be reused or
+        // trained on, everything else runs independently per frame
+        ForkJoinTask<Palette> palette = pool.submit(
+                new PaletteTask(frame, paletteThreshold >= 0 || warmStart ? lastPaletteTask : null));
+        lastPaletteTask = palette;
+        pendingFrames.add(pool.submit(() -> {
+            analyzePixels(frame, palette.join());
+            if (spool == null) {
+                compressPixels(frame);
+            }
+            return frame;
+        }));
+        // keep every worker busy without holding too many frames in memory
+        writePendingFrames(2 * parallelism);
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of about 4096 evenly spaced pixels, used to
+     * rule out duplicate frames before comparing them completely
+     */
+    protected long sampledHash(int[] pixels) {
+        int nPix = width * height;
+        int step = Math.max(1, nPix / 4096);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < nPix; i += step) {
+            hash = (hash ^ (pixels[i] & 0xffffff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Creates the next frame from the extracted pixels. With dirty rectangles
+     * enabled, the frame is cropped to the pixels that changed since the
+     * previous frame and unchanged pixels inside the crop are masked by a zero
+     * alpha. The previous frame's pixels are kept for the next comparison, so
+     * the frame then encodes a copy from the workspace.
+     */
+    protected GifFrame createFrame() {
+        GifFrame frame;
+        int[] box = dirtyRects && prevPixels != null ? changedBounds(prevPixels, pixels) : null;
+        boolean keep = dirtyRects || coalesce;
+        if (box == null) {
+            int[] own = pixels;
+            if (keep) {
+                own = workspace.takePixels();
+                System.arraycopy(pixels, 0, own, 0, width * height);
+            }
+            if (dirtyRects) {
+                // first frame is complete and must stay in place for the next ones
+                frame = new GifFrame(own, delay, 1, -1, sample);
+            } else {
+                frame = new GifFrame(own, delay, dispose, transparent, sample);
+            }
+            frame.setBounds(x, y, width, height);
+        } else {
+            int left = box[0], top = box[1];
+            int w = box[2] - left, h = box[3] - top;
+            int[] sub = workspace.takePixels();
+            for (int row = 0, k = 0; row < h; row++) {
+                for (int i = (top + row) * width + left, end = i + w; i < end; i++, k++) {
+                    int color = pixels[i];
+                    sub[k] = color == prevPixels[i] ? color & 0xffffff : color | 0xff000000;
+                }
+            }
+            frame = new GifFrame(sub, delay, 1, -1, sample);
+            frame.setBounds(x + left, y + top, w, h);
+            frame.masked = true;
+        }
+        workspace.recycle(prevPixels);
+        prevPixels = keep ? pixels : null;
+        pixels = null;
+        return frame;
+    }
+
+    /**
+     * Returns the bounding box {left, top, right, bottom} of the pixels that
+     * differ between two frames. An unchanged frame yields the top left
+     * pixel, since every GIF image needs at least one.
+     */
+    protected int[] changedBounds(int[] previous, int[] current) {
+        int left = width, top = height, right = 0, bottom = 0;
+        for (int row = 0; row < height; row++) {
+            int start = row * width;
+            int first = -1;
+            for (int k = start; k < start + width; k++) {
+                if (previous[k] != current[k]) {
+                    first = k;
+                    break;
+                }
+            }
+            if (first < 0) {
+                continue;
+            }
+            int last = first;
+            for (int k = start + width - 1; k > first; k--) {
+                if (previous[k] != current[k]) {
+                    last = k;
+                    break;
+                }
+            }
+            left = Math.min(left, first - start);
+            right = Math.max(right, last - start + 1);
+            if (top == height) {
+                top = row;
+            }
+            bottom = row + 1;
+        }
+        if (top == height) {
+            return new int[]{0, 0, 1, 1};
+        }
+        return new int[]{left, top, right, bottom};
+    }
+
+    /**
+     * Writes the blocks of an analyzed frame
+     */
+    protected void writeFrame(GifFrame frame) throws IOException {
+        colorDepth = frame.colorDepth;
+        palSize = frame.palSize;
+        if (frame.transIndex >= 0) {
+            transIndex = frame.transIndex;
+        }
+        boolean localPalette = !firstFrame && frame.colorTab != globalColorTab;
+        if (firstFrame) {
+            writeLSD(); // logical screen descriptior
+            writePalette(frame.colorTab); // global color table
+            globalColorTab = frame.colorTab;
+            if (repeat >= 0) {
+                // use NS app extension to indicate reps
+                writeNetscapeExt();
+            }
+        }
+        writeGraphicCtrlExt(frame); // write graphic control extension
+        writeImageDesc(frame, localPalette); // image descriptor
+        if (localPalette) {
+            writePalette(frame.colorTab); // local color table
+        }
+        writePixels(frame); // encode and write pixel data
+        firstFrame = false;
+    }
+
+    /**
+     * Writes encoded frames in the order they were added until no more than
+     * <code>maxPending</code> frames are still being encoded. Blocks on the
+     * oldest frame if it is not done yet.
+     */
+    protected void writePendingFrames(int maxPending) throws IOException {
+        while (!pendingFrames.isEmpty()
+                && (pendingFrames.size() > maxPending || pendingFrames.peek().isDone())) {
+            GifFrame frame;
+            try {
+                frame = pendingFrames.poll().join();
+            } catch (RuntimeException e) {
+                throw new IOException("Frame encoding failed", e);
+            }
+            if (spool != null) {
+                spoolFrame(frame);
+            } else {
+                writeFrame(frame);
+            }
+        }
+    }
+
+    /**
+     * Queues an analyzed frame on the spool, waiting while it is full
+     */
+    protected void spoolFrame(GifFrame frame) throws IOException {
+        if (spoolError != null) {
+            throw spoolError;
+        }
+        try {
+            spool.put(frame);
+        } catch (IOException e) {
+            // report why the writer closed the spool
+            throw spoolError != null ? spoolError : e;
+        }
+        workspace.recycle(frame.indexedPixels);
+        frame.indexedPixels = null;
+    }
+
+    /**
+     * Body of spoolWriter: compresses and writes spooled frames in order until
+     * the spool is finished. A failure closes the spool, which stops the
+     * threads adding frames.
+     */
+    protected void drainSpool() {
+        try {
+            GifFrame frame;
+            while ((frame = spool.take()) != null) {
+                writeFrame(frame);
+            }
+        } catch (IOException e) {
+            spoolError = e;
+            spool.close();
+        } catch (RuntimeException e) {
+            spoolError = new IOException("Frame writing failed", e);
+            spool.close();
+        }
+    }
+
+    /**
+     * Flushes any pending data and closes output file. If writing to an
+     * OutputStream, the stream is not closed. If writing to a file, the
+     * temporary file is synced and renamed to the destination.
+     */
+    public boolean finish() {
+        if (!started)
+            return false;
+        boolean ok = true;
+        started = false;
+        try {
+            if (heldFrame != null) {
+                encodeFrame(heldFrame);
+            }
+            if (pool != null) {
+                writePendingFrames(0);
+            }
+            if (spool != null) {
+                spool.finish();
+                spoolWriter.join();
+                if (spoolError != null) {
+                    throw spoolError;
+                }
+            }
+            out.write(0x3b); // gif trailer
+            out.flush();
+            if (outChannel != null) {
+                outChannel.force(true); // data must be on disk before the rename
+            }
+        } catch (IOException e) {
+            ok = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        } finally {
+            // closed even when writing failed, before the file is renamed or deleted
+            if (closeStream) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    ok = false;
+                }
+            }
+        }
+        if (tempFile != null) {
+            if (ok) {
+                ok = tempFile.renameTo(outFile);
+            }
+            if (!ok) {
+                tempFile.delete();
+            }
+        }
+
+        reset();
+        return ok;
+    }
+
+    /**
+     * Stops encoding without writing the trailer. When writing to a file, the
+     * temporary file is deleted and the destination is left untouched.
+     */
+    public void abort() {
+        if (closeStream && out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing more to do, the file is discarded anyway
+            }
+        }
+        if (tempFile != null) {
+            tempFile.delete();
+        }
+        started = false;
+        reset();
+    }
+
+    /**
+     * Resets the encoder state for subsequent use
+     */
+    protected void reset() {
+        if (pool != null) {
+            // tasks of an aborted animation use the workspace and the buffers
+            // it hands out, they must be done before the next start
+            for (ForkJoinTask<GifFrame> task : pendingFrames) {
+                task.cancel(false);
+            }
+            pool.shutdownNow();
+            boolean interrupted = false;
+            while (!pool.isTerminated()) {
+                try {
+                    pool.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            pool = null;
+        }
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+        if (spoolWriter != null) {
+            try {
+                spoolWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            spoolWriter = null;
+        }
+        spoolError = null;
+        pendingFrames.clear();
+        lastPalette = null;
+        lastPaletteTask = null;
+        globalColorTab = null;
+        prevPixels = null;
+        heldFrame = null;
+        workspace = null;
+        transIndex = 0;
+        out = null;
+        outChannel = null;
+        outFile = null;
+        tempFile = null;
+        image = null;
+        pixels = null;
+        closeStream = false;
+        firstFrame = true;
+    }
+
+    /**
+     * Sets frame rate in frames per second. Equivalent to
+     * <code>setDelay(1000/fps)</code>.
+     *
+     * @param fps
+     *          float frame rate (frames per second)
+     */
+    public void setFrameRate(float fps) {
+        if (fps != 0f) {
+            delay = (int)(100 / fps);
+        }
+    }
+
+    /**
+     * Sets quality of color quantization (conversion of images to the maximum 256
+     * colors allowed by the GIF specification). Lower values (minimum = 1)
+     * produce better colors, but slow processing significantly. 10 is the
+     * default, and produces good color mapping at reasonable speeds. Values
+     * greater than 20 do not yield significant improvements in speed. The
+     * quality may be changed between frames and applies to frames added
+     * afterwards.
+     *
+     * @param quality
+     *          int greater than 0.
+     * @return
+     */
+    public void setQuality(int quality) {
+        if (quality < 1)
+            quality = 1;
+        sample = quality;
+    }
+
+    /**
+     * Sets the color quantizer. {@link Quantizer#NEUQUANT} (the default) gives
+     * the best colors; {@link Quantizer#OCTREE} and {@link Quantizer#MEDIAN_CUT}
+     * work on a color histogram in a single pass and are much faster, especially
+     * on screen recordings made of flat UI colors.
+     *
+     * @param factory
+     *          Quantizer.Factory creating the quantizer for each frame.
+     */
+    public void setQuantizer(Quantizer.Factory factory) {
+        if (factory != null) {
+            quantizer = factory;
+        }
+    }
+
+    /**
+     * Enables mapping pixels to the palette through a lookup table built once
+     * per palette, instead of searching the palette for every pixel. Cells of
+     * the table that lie on a boundary between palette colors are refined by
+     * the exact search, so with a tolerance of 0 the output is identical to
+     * exact mapping. 5 or 6 bits work well; 0 disables the table. Only used
+     * with {@link Quantizer#NEUQUANT}: the other quantizers already map
+     * through a table of their color histogram.
+     *
+     * @param bits
+     *          int bits per color channel of the table, 0 to 7.
+     * @param tolerance
+     *          int accepted extra color error per pixel (sum of the absolute
+     *          channel differences) before a cell is refined.
+     */
+    public void setColorMap(int bits, int tolerance) {
+        colorMapBits = Math.max(0, Math.min(7, bits));
+        colorMapTolerance = Math.max(0, tolerance);
+    }
+
+    /**
+     * Enables reusing the previous frame's palette. Before training a new
+     * palette, a sample of the frame's pixels is mapped to the previous one; the
+     * palette is kept unless its mean error (sum of the absolute channel
+     * differences per pixel) exceeds the error it had on the frame it was built
+     * for by more than the threshold. Frames using the first frame's palette
+     * are written without a local color table. Default is -1 (never reuse).
+     *
+     * @param threshold
+     *          int accepted increase of the mean error, -1 to disable.
+     */
+    public void setPaletteReuse(int threshold) {
+        paletteThreshold = Math.max(-1, threshold);
+    }
+
+    /**
+     * Enables incremental NeuQuant training. Instead of starting from a grey
+     * ramp, the network of each frame is seeded with the previous frame's and
+     * refined with a shorter pass at a lower learning rate, sized by how much
+     * worse the previous palette maps the new frame. A new scene is trained
+     * from scratch. Palettes change less from frame to frame, which reduces
+     * flicker, and training costs a fraction of a full pass. With parallelism,
+     * palettes are then built one after the other. Only applies to
+     * {@link Quantizer#NEUQUANT}. Default is false.
+     *
+     * @param enabled
+     *          boolean true to train on from the previous frame.
+     */
+    public void setWarmStart(boolean enabled) {
+        warmStart = enabled;
+    }
+
+    /**
+     * Enables inter-frame differencing. Each frame after the first is cropped
+     * to the bounding box of the pixels that changed since the previous frame,
+     * and unchanged pixels inside the box are written with a transparent index
+     * when the palette has a free entry. Frames are never disposed so that
+     * unchanged content stays visible. Only the changed region is quantized
+     * and compressed. Overrides <code>setDispose</code> and
+     * <code>setTransparent</code> while enabled. Must be invoked before the
+     * first frame is added.
+     *
+     * @param enabled
+     *          boolean true to only encode changed regions.
+     */
+    public void setDirtyRectangles(boolean enabled) {
+        dirtyRects = enabled;
+    }
+
+    /**
+     * Enables merging identical consecutive frames. A repeated frame is not
+     * encoded again; its delay is added to the frame it repeats instead. Frames
+     * are recognized by a sampled hash and confirmed by a full comparison.
+     * Must be invoked before the first frame is added.
+     *
+     * @param enabled
+     *          boolean true to merge duplicate frames.
+     */
+    public void setCoalesceDuplicates(boolean enabled) {
+        coalesce = enabled;
+    }
+
+    /**
+     * Selects the LZW code table. The dense table finds every code with a
+     * single lookup instead of probing a hash table, which compresses detailed
+     * frames about twice as fast, at the cost of 2 MB per frame compressed
+     * concurrently. The output is identical either way. Must be invoked before
+     * the first frame is added.
+     *
+     * @param enabled
+     *          boolean true to use the dense code table.
+     */
+    public void setDenseLZW(boolean enabled) {
+        denseLZW = enabled;
+    }
+
+    /**
+     * Sets the number of frames that are quantized and LZW compressed at the
+     * same time. With more than one thread, frames are encoded on a fork-join
+     * pool and a single writer emits them in the order they were added, so the
+     * output is identical to the serial encoder. Must be invoked before
+     * <code>start</code>. Default is 1 (encode on the calling thread).
+     *
+     * @param threads
+     *          int number of frames encoded concurrently, usually the core count.
+     */
+    public void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
+    /**
+     * Enables spooling analyzed frames to disk. Frames are quantized and mapped
+     * on the threads adding them (or on the pool) and queued in a
+     * memory-mapped temporary file at one byte per pixel, while a separate
+     * thread LZW compresses and writes them. Adding frames only waits when the
+     * spool is full, and memory use is the same for short and long animations.
+     * Must be invoked before <code>start</code>.
+     *
+     * @param dir
+     *          File directory for the spool file, null to disable.
+     * @param capacity
+     *          long bytes of frames the spool holds, at least one frame.
+     * @param window
+     *          int bytes of the spool file mapped into memory at a time, for
+     *          writing and for reading each.
+     */
+    public void setSpool(File dir, long capacity, int window) {
+        spoolDir = dir;
+        spoolCapacity = capacity;
+        spoolWindow = window;
+    }
+
+    /**
+     * Limits the width taken from the first frame when no size was set. A
+     * wider first frame sets a size of this width and the same aspect ratio,
+     * and frames of its size are scaled down by area averaging before they
+     * are quantized, which saves work in proportion to the pixels dropped.
+     * Default is 0 (no limit).
+     *
+     * @param width
+     *          int maximum width in pixels, 0 for no limit.
+     */
+    public void setMaxWidth(int width) {
+        maxWidth = Math.max(0, width);
+    }
+
+    /**
+     * Sets the GIF frame size. The default size is the size of the first frame
+     * added if this method is not invoked.
+     *
+     * @param w
+     *          int frame width.
+     * @param h
+     *          int frame width.
+     */
+    public void setSize(int w, int h) {
+        width = w;
+        height = h;
+        if (width < 1)
+            width = 320;
+        if (height < 1)
+            height = 240;
+        sizeSet = true;
+    }
+
+    /**
+     * Takes the frame size from the first frame added again, as if
+     * <code>setSize</code> had not been invoked. Must be invoked before
+     * <code>start</code>.
+     */
+    public void clearSize() {
+        sizeSet = false;
+    }
+
+    /**
+     * Sets the GIF frame position. The position is 0,0 by default.
+     * Useful for only updating a section of the image
+     *
+     * @param w
+     *          int frame width.
+     * @param h
+     *          int frame width.
+     */
+    public void setPosition(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Initiates GIF file creation on the given stream. The stream is not closed
+     * automatically.
+     *
+     * @param os
+     *          OutputStream on which GIF images are written.
+     * @return false if initial write failed.
+     */
+    public boolean start(OutputStream os) {
+        if (os == null)
+            return false;
+        boolean ok = true;
+        closeStream = false;
+        out = counter = new ByteCounter(os);
+        try {
+            writeString("GIF89a"); // header
+        } catch (IOException e) {
+            ok = false;
+        }
+        if (ok && parallelism > 1) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return started = ok;
+    }
+
+    /**
+     * Initiates writing of a GIF file. Encoded frames are streamed through a
+     * buffered file channel to a temporary file in the same directory, which is
+     * renamed to the given file by <code>finish()</code>. A failed or aborted
+     * export never leaves a partially written file behind.
+     *
+     * @param file
+     *          File to write the GIF to.
+     * @return false if the file could not be opened or the initial write failed.
+     */
+    public boolean start(File file) {
+        if (file == null)
+            return false;
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileChannel channel;
+        try {
+            channel = new FileOutputStream(temp).getChannel();
+        } catch (IOException e) {
+            return false;
+        }
+        if (!start(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024))) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore, start already failed
+            }
+            temp.delete();
+            return false;
+        }
+        closeStream = true;
+        outChannel = channel;
+        outFile = file;
+        tempFile = temp;
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes written so far by the current or last
+     * export. Frames still being encoded or held back for their delay are not
+     * counted yet.
+     *
+     * @return bytes written since <code>start</code>.
+     */
+    public long getBytesWritten() {
+        return counter != null ? counter.count : 0;
+    }
+
+    /**
+     * Returns the palette for a frame: the previous palette if it may be reused
+     * and still fits the frame, otherwise a newly built one
+     */
+    protected Palette choosePalette(GifFrame frame, Palette previous) {
+        boolean measure = paletteThreshold >= 0 || warmStart;
+        Quantizer nq = null;
+        if (previous != null && measure) {
+            int error = previous.sampledError(frame.pixels, frame.width * frame.height, PALETTE_ERROR_SAMPLES);
+            if (paletteThreshold >= 0 && error <= previous.error + paletteThreshold) {
+                return previous;
+            }
+            int change = error - previous.error;
+            if (warmStart && quantizer == Quantizer.NEUQUANT && previous.quantizer instanceof NeuQuant
+                    && change < WARM_RESTART_ERROR) {
+                nq = new NeuQuant(frame.pixels, frame.width * frame.height, frame.sample,
+                        (NeuQuant) previous.quantizer, Math.max(0, change));
+            }
+        }
+        Palette palette = nq != null ? buildPalette(nq) : buildPalette(frame);
+        if (measure) {
+            palette.error = palette.sampledError(frame.pixels, frame.width * frame.height, PALETTE_ERROR_SAMPLES);
+        }
+        return palette;
+    }
+
+    /**
+     * Analyzes image colors and creates color map.
+     */
+    protected Palette buildPalette(GifFrame frame) {
+        // initialize quantizer
+        return buildPalette(quantizer.create(frame.pixels, frame.width * frame.height, frame.sample));
+    }
+
+    /**
+     * Creates the color map with a quantizer set up for a frame
+     */
+    protected Palette buildPalette(Quantizer nq) {
+        byte[] colorTab = nq.process(); // create reduced palette
+        // convert map from BGR to RGB
+        for (int i = 0; i < colorTab.length; i += 3) {
+            byte temp = colorTab[i];
+            colorTab[i] = colorTab[i + 2];
+            colorTab[i + 2] = temp;
+        }
+        // the histogram quantizers map a pixel by its bucket through a table of their own, which
+        // the cells of the inverse color map do not follow
+        InverseColorMap colorMap = null;
+        if (colorMapBits > 0 && nq instanceof NeuQuant) {
+            colorMap = new InverseColorMap(colorTab, nq, colorMapBits, colorMapTolerance);
+        }
+        return new Palette(nq, colorTab, colorMap);
+    }
+
+    /**
+     * Maps the frame's pixels to a palette. Only touches the given frame, so
+     * frames can be analyzed concurrently.
+     */
+    protected void analyzePixels(GifFrame frame, Palette palette) {
+        int[] pixels = frame.pixels;
+        int nPix = frame.width * frame.height;
+        byte[] indexedPixels = workspace.takeIndexed();
+        boolean[] usedEntry = frame.usedEntry;
+        boolean masked = frame.masked;
+        // map image pixels to new palette
+        for (int i = 0; i < nPix; i++) {
+            int color = pixels[i];
+            if (masked && (color >>> 24) == 0) {
+                continue;
+            }
+            int index = palette.map(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+            usedEntry[index] = true;
+            indexedPixels[i] = (byte) index;
+        }
+        if (masked) {
+            // unchanged pixels become transparent if a palette entry is free,
+            // otherwise they are drawn again
+            int free = -1;
+            for (int i = 0; i < usedEntry.length && free < 0; i++) {
+                if (!usedEntry[i])
+                    free = i;
+            }
+            for (int i = 0; i < nPix; i++) {
+                int color = pixels[i];
+                if ((color >>> 24) != 0) {
+                    continue;
+                }
+                if (free >= 0) {
+                    indexedPixels[i] = (byte) free;
+                } else {
+                    int index = palette.map(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+                    usedEntry[index] = true;
+                    indexedPixels[i] = (byte) index;
+                }
+            }
+            frame.transIndex = free;
+        }
+        workspace.recycle(pixels);
+        frame.pixels = null;
+        frame.indexedPixels = indexedPixels;
+        frame.colorTab = palette.colorTab;
+        frame.colorDepth = 8;
+        frame.palSize = 7;
+        // get closest match to transparent color if specified
+        if (frame.transparent != -1) {
+            frame.transIndex = findClosest(frame, frame.transparent);
+        }
+    }
+
+    /**
+     * Returns index of palette color closest to c
+     *
+     */
+    protected int findClosest(GifFrame frame, int c) {
+        byte[] colorTab = frame.colorTab;
+        boolean[] usedEntry = frame.usedEntry;
+        if (colorTab == null)
+            return -1;
+        int r = (c >> 16) & 0xff;
+        int g = (c >> 8) & 0xff;
+        int b = (c >> 0) & 0xff;
+        int minpos = 0;
+        int dmin = 256 * 256 * 256;
+        int len = colorTab.length;
+        for (int i = 0; i < len;) {
+            int dr = r - (colorTab[i++] & 0xff);
+            int dg = g - (colorTab[i++] & 0xff);
+            int db = b - (colorTab[i] & 0xff);
+            int d = dr * dr + dg * dg + db * db;
+            int index = i / 3;
+            if (usedEntry[index] && (d < dmin)) {
+                dmin = d;
+                minpos = index;
+            }
+            i++;
+        }
+        return minpos;
+    }
+
+    /**
+     * Extracts image pixels into the workspace buffer "pixels". Images of the
+     * size that was scaled down for <code>setMaxWidth</code> are area
+     * averaged, images of another size are cropped or padded with black.
+     */
+    protected void getImagePixels() {
+        pixels = workspace.takePixels();
+        if (scaler != null && scaler.accepts(image)
+                && scaler.getWidth() == width && scaler.getHeight() == height) {
+            scaler.scale(image, pixels);
+            return;
+        }
+        int w = Math.min(width, image.getWidth());
+        int h = Math.min(height, image.getHeight());
+        if ((w != width) || (h != height)) {
+            Arrays.fill(pixels, 0, width * height, 0xff000000);
+        }
+        image.getPixels(pixels, 0, width, 0, 0, w, h);
+    }
+
+    /**
+     * Writes Graphic Control Extension
+     */
+    protected void writeGraphicCtrlExt(GifFrame frame) throws IOException {
+        out.write(0x21); // extension introducer
+        out.write(0xf9); // GCE label
+        out.write(4); // data block size
+        int transp, disp;
+        if (frame.transparent == -1 && frame.transIndex < 0) {
+            transp = 0;
+            disp = 0; // dispose = no action
+        } else {
+            transp = 1;
+            disp = 2; // force clear if using transparent color
+        }
+        if (frame.dispose >= 0) {
+            disp = frame.dispose & 7; // user override
+        }
+        disp <<= 2;
+
+        // packed fields
+        out.write(0 | // 1:3 reserved
+                disp | // 4:6 disposal
+                0 | // 7 user input - 0 = none
+                transp); // 8 transparency flag
+
+        writeShort(frame.delay); // delay x 1/100 sec
+        out.write(transIndex); // transparent color index
+        out.write(0); // block terminator
+    }
+
+    /**
+     * Writes Image Descriptor
+     */
+    protected void writeImageDesc(GifFrame frame, boolean localPalette) throws IOException {
+        out.write(0x2c); // image separator
+        writeShort(frame.x); // image position
+        writeShort(frame.y);
+        writeShort(frame.width); // image size
+        writeShort(frame.height);
+        // packed fields
+        if (!localPalette) {
+            // no LCT - GCT is used for first (or only) frame
+            out.write(0);
+        } else {
+            // specify normal LCT
+            out.write(0x80 | // 1 local color table 1=yes
+                    0 | // 2 interlace - 0=no
+                    0 | // 3 sorted - 0=no
+                    0 | // 4-5 reserved
+                    palSize); // 6-8 size of color table
+        }
+    }
+
+    /**
+     * Writes Logical Screen Descriptor
+     */
+    protected void writeLSD() throws IOException {
+        // logical screen size
+        writeShort(width);
+        writeShort(height);
+        // packed fields
+        out.write((0x80 | // 1 : global color table flag = 1 (gct used)
+                0x70 | // 2-4 : color resolution = 7
+                0x00 | // 5 : gct sort flag = 0
+                palSize)); // 6-8 : gct size
+
+        out.write(0); // background color index
+        out.write(0); // pixel aspect ratio - assume 1:1
+    }
+
+    /**
+     * Writes Netscape application extension to define repeat count.
+     */
+    protected void writeNetscapeExt() throws IOException {
+        out.write(0x21); // extension introducer
+        out.write(0xff); // app extension label
+        out.write(11); // block size
+        writeString("NETSCAPE" + "2.0"); // app id + auth code
+        out.write(3); // sub-block size
+        out.write(1); // loop sub-block id
+        writeShort(repeat); // loop count (extra iterations, 0=repeat forever)
+        out.write(0); // block terminator
+    }
+
+    /**
+     * Writes color table
+     */
+    protected void writePalette(byte[] colorTab) throws IOException {
+        out.write(colorTab, 0, colorTab.length);
+        int n = (3 * 256) - colorTab.length;
+        for (int i = 0; i < n; i++) {
+            out.write(0);
+        }
+    }
+
+    /**
+     * Encodes and writes pixel data, unless it was already compressed by
+     * <code>compressPixels</code>
+     */
+    protected void writePixels(GifFrame frame) throws IOException {
+        if (frame.data != null) {
+            frame.data.writeTo(out);
+            workspace.recycle(frame.data);
+            frame.data = null;
+            return;
+        }
+        LZWEncoder encoder = workspace.takeEncoder();
+        encoder.setImage(frame.width, frame.height, frame.indexedPixels, frame.colorDepth);
+        encoder.encode(out);
+        workspace.recycle(encoder);
+        workspace.recycle(frame.indexedPixels);
+        frame.indexedPixels = null;
+    }
+
+    /**
+     * LZW compresses the frame's pixel data into memory so that it can be
+     * written later by the ordered writer
+     */
+    protected void compressPixels(GifFrame frame) throws IOException {
+        ByteArrayOutputStream data = workspace.takeData();
+        LZWEncoder encoder = workspace.takeEncoder();
+        encoder.setImage(frame.width, frame.height, frame.indexedPixels, frame.colorDepth);
+        encoder.encode(data);
+        workspace.recycle(encoder);
+        workspace.recycle(frame.indexedPixels);
+        frame.indexedPixels = null;
+        frame.data = data;
+    }
+
+    /**
+     * Write 16-bit value to output stream, LSB first
+     */
+    protected void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+
+    /**
+     * Writes string to output stream
+     */
+    protected void writeString(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            out.write((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * Chooses the palette of a frame once the palette of the previous frame is
+     * known. Drops its references when done so finished tasks don't keep a
+     * chain of frames alive.
+     */
+    protected class PaletteTask extends RecursiveTask<Palette> {
+        private static final long serialVersionUID = 1L;
+
+        private GifFrame frame;
+        private ForkJoinTask<Palette> previous;
+
+        PaletteTask(GifFrame frame, ForkJoinTask<Palette> previous) {
+            this.frame = frame;
+            this.previous = previous;
+        }
+
+        @Override
+        protected Palette compute() {
+            Palette palette = choosePalette(frame, previous != null ? previous.join() : null);
+            frame = null;
+            previous = null;
+            return palette;
+        }
+    }
+
+    /**
+     * Passes writes through to a stream and counts the bytes
+     */
+    protected static class ByteCounter extends FilterOutputStream {
+        volatile long count; // written by the spool writer, read by others
+
+        ByteCounter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
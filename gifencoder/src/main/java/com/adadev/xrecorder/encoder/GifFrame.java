@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * State of a single frame on its way through {@link GifEncoder}. The frame
+ * settings are captured when the frame is added, so frames can be analyzed
+ * and compressed independently of each other and of the encoder.
+ */
+class GifFrame {
+
+    int delay; // frame delay (hundredths), grows when duplicates are merged
+
+    final int dispose; // disposal code (-1 = use default)
+
+    final int transparent; // transparent color if given
+
+    final int sample; // quantizer sample interval when the frame was added
+
+    int x, y; // image position
+
+    int width, height; // image size
+
+    int[] pixels; // ARGB pixels, a workspace buffer that may be larger than the frame
+
+    boolean masked; // pixels with zero alpha are unchanged from the previous frame
+
+    byte[] indexedPixels; // converted frame indexed to palette
+
+    byte[] colorTab; // RGB palette
+
+    boolean[] usedEntry = new boolean[256]; // active palette entries
+
+    int colorDepth; // number of bit planes
+
+    int palSize = 7; // color table size (bits-1)
+
+    int transIndex = -1; // transparent index in color table, -1 if none
+
+    ByteArrayOutputStream data; // LZW compressed pixels, if compressed ahead of writing
+
+    GifFrame(int[] pixels, int delay, int dispose, int transparent, int sample) {
+        this.pixels = pixels;
+        this.delay = delay;
+        this.dispose = dispose;
+        this.transparent = transparent;
+        this.sample = sample;
+    }
+
+    void setBounds(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Shrinks an existing GIF without changing a single pixel of any frame as it
+ * is shown. The file is decoded twice, memory mapped, so memory use does not
+ * grow with the number of frames:
+ * <ol>
+ * <li>Each frame is compared to the one shown before it. Frames that show the
+ * same picture again are merged into the previous one by adding up their
+ * delays, the others are cropped to the rectangle that changed. The colors
+ * each rectangle needs are collected, and the color table shared by the
+ * most frames becomes the global color table.</li>
+ * <li>The frames are written again, left in place for the next frame to
+ * draw over. Pixels inside a rectangle that did not change are written as
+ * a transparent index when the color table has one to spare and that
+ * leaves longer runs for LZW, or always when their color is not in the
+ * table, and frames whose colors are all in the
+ * global table drop their local table.</li>
+ * </ol>
+ * The optimized GIF is decoded again and compared to the source frame by
+ * frame before it replaces anything. Frames drawn onto a canvas that is not
+ * fully opaque, such as GIFs with transparent areas, cannot be written this
+ * way and are refused.
+ */
+public class GifOptimizer {
+
+    protected volatile boolean cancelled; // set by cancel() from another thread
+
+    /**
+     * Stops an optimization running on another thread, which then throws
+     * an InterruptedIOException and leaves the destination alone.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Outcome of an optimization
+     */
+    public static class Result {
+        public int frames; // frames in the source
+
+        public int framesWritten; // frames after merging identical ones
+
+        public long sourceBytes; // size of the source file
+
+        public long bytes; // size of the optimized GIF
+
+        public boolean written; // the destination was written
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d to %d frames, %d to %d bytes%s", frames, framesWritten,
+                    sourceBytes, bytes, written ? "" : ", not written");
+        }
+    }
+
+    /**
+     * A frame of the optimized GIF, as planned by the first pass
+     */
+    protected static class Frame {
+        int source; // index of the source frame that starts it
+        int x, y, width, height; // changed rectangle
+        int delay; // hundredths, summed over merged frames
+        int[] colors; // distinct colors of the changed pixels
+        int[] table; // color table, padded to a power of 2, null to use the global one
+        int transIndex = -1; // index free to mark unchanged pixels, -1 if none
+    }
+
+    /**
+     * Optimizes a GIF. The optimized GIF is written to a temporary file next
+     * to the destination and renamed to it, but only when it is smaller than
+     * the source and shows the same frames, so the source and destination may
+     * be the same file.
+     *
+     * @param source
+     *          File holding a GIF.
+     * @param destination
+     *          File to write the optimized GIF to.
+     * @return sizes and frame counts before and after.
+     * @throws IOException
+     *           if the source is not a valid GIF, has transparent areas or
+     *           could not be read, the optimized GIF does not show the same
+     *           frames, or the destination could not be written.
+     */
+    public Result optimize(File source, File destination) throws IOException {
+        Result result = new Result();
+        // not the .tmp of GifEncoder, a GIF may be optimized while it is encoded again
+        File temp = new File(destination.getParentFile(), destination.getName() + ".opt.tmp");
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             FileChannel channel = in.getChannel()) {
+            result.sourceBytes = channel.size();
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, result.sourceBytes);
+            List<Frame> frames = plan(new GifReader(data), result);
+            int[] global = chooseGlobalTable(frames);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+                write(new GifReader(data), frames, global, out);
+            }
+            result.framesWritten = frames.size();
+            result.bytes = temp.length();
+            if (result.bytes < result.sourceBytes) {
+                verify(new GifReader(data), temp, frames);
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        if (result.bytes < result.sourceBytes) {
+            result.written = temp.renameTo(destination);
+            if (!result.written) {
+                temp.delete();
+                throw new IOException("Unable to rename " + temp + " to " + destination);
+            }
+        } else {
+            temp.delete();
+        }
+        return result;
+    }
+
+    /**
+     * First pass: finds the changed rectangle and colors of every frame and
+     * merges frames that change nothing
+     */
+    protected List<Frame> plan(GifReader reader, Result result) throws IOException {
+        int width = reader.getWidth(), height = reader.getHeight();
+        int[] shown = new int[width * height]; // canvas of the previous frame
+        int[] colors = new int[256];
+        ColorIndex seen = new ColorIndex();
+        List<Frame> frames = new ArrayList<>();
+        Frame last = null;
+        while (reader.nextFrame()) {
+            checkCancelled();
+            int[] canvas = reader.getCanvas();
+            int[] bounds = last == null ? new int[]{0, 0, width, height} : changedBounds(shown, canvas, width, height);
+            if (bounds == null && last.delay + reader.getDelay() <= 0xffff) {
+                // same picture again, show the previous frame longer instead
+                last.delay += reader.getDelay();
+                result.frames++;
+                continue;
+            }
+            if (bounds == null) {
+                bounds = new int[]{0, 0, 1, 1}; // too long to merge, redraw a pixel
+            }
+            Frame frame = new Frame();
+            frame.source = result.frames++;
+            frame.x = bounds[0];
+            frame.y = bounds[1];
+            frame.width = bounds[2];
+            frame.height = bounds[3];
+            frame.delay = reader.getDelay();
+            int count = 0;
+            int previous = 0; // last color added, most pixels repeat the one before
+            seen.clear();
+            for (int y = frame.y; y < frame.y + frame.height; y++) {
+                for (int p = y * width + frame.x, end = p + frame.width; p < end; p++) {
+                    int c = canvas[p];
+                    if ((last != null && c == shown[p]) || (count > 0 && c == previous)) {
+                        continue;
+                    }
+                    if ((c >>> 24) != 0xff) {
+                        throw new IOException("Transparent pixels in frame " + frame.source);
+                    }
+                    previous = c;
+                    if (seen.get(c) < 0) {
+                        if (count == 256) {
+                            throw new IOException("More than 256 colors in frame " + frame.source);
+                        }
+                        seen.put(c, count);
+                        colors[count++] = c;
+                    }
+                }
+                System.arraycopy(canvas, y * width + frame.x, shown, y * width + frame.x, frame.width);
+            }
+            frame.colors = Arrays.copyOf(colors, count);
+            int[] table = reader.getColorTable();
+            frame.table = covers(table, frame.colors) ? table : pad(frame.colors);
+            frames.add(frame);
+            last = frame;
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("GIF without frames");
+        }
+        return frames;
+    }
+
+    /**
+     * Picks the color table used by the most frames as the global table and
+     * lets every frame whose colors it holds use it. Chooses the index each
+     * frame can spare for unchanged pixels.
+     */
+    protected int[] chooseGlobalTable(List<Frame> frames) {
+        Map<TableKey, Integer> uses = new HashMap<>();
+        TableKey best = null;
+        int bestUses = 0;
+        for (Frame frame : frames) {
+            TableKey key = new TableKey(frame.table);
+            int n = uses.containsKey(key) ? uses.get(key) + 1 : 1;
+            uses.put(key, n);
+            if (n > bestUses) {
+                best = key;
+                bestUses = n;
+            }
+        }
+        int[] global = best.table;
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            if (frame.table == global || covers(global, frame.colors)) {
+                frame.table = null;
+            }
+            if (i > 0) {
+                frame.transIndex = spareIndex(frame.table != null ? frame.table : global, frame.colors);
+            }
+        }
+        return global;
+    }
+
+    /**
+     * Second pass: writes the planned frames
+     */
+    protected void write(GifReader reader, List<Frame> frames, int[] global, OutputStream out) throws IOException {
+        int width = reader.getWidth(), height = reader.getHeight();
+        int[] shown = new int[width * height];
+        byte[] indices = new byte[width * height];
+        DenseLZWEncoder encoder = null;
+        int encoderBits = 0;
+        ColorIndex globalIndex = new ColorIndex(global);
+
+        out.write("GIF89a".getBytes("US-ASCII"));
+        writeShort(out, width);
+        writeShort(out, height);
+        out.write(0x80 | 0x70 | (tableBits(global) - 1)); // global table, color resolution 7
+        out.write(0); // background color index
+        out.write(0); // pixel aspect ratio
+
+        writeTable(out, global);
+        int index = 0;
+        boolean loopWritten = false;
+        while (index < frames.size() && reader.nextFrame()) {
+            checkCancelled();
+            if (!loopWritten && reader.getLoopCount() >= 0) {
+                writeNetscapeExt(out, reader.getLoopCount());
+                loopWritten = true;
+            }
+            Frame frame = frames.get(index);
+            if (frame.source != reader.frames - 1) {
+                continue; // merged into the frame before
+            }
+            index++;
+            int[] canvas = reader.getCanvas();
+            int[] table = frame.table != null ? frame.table : global;
+            ColorIndex colorIndex = frame.table != null ? new ColorIndex(table) : globalIndex;
+            int trans = frame.transIndex;
+            int i = 0;
+            int previous = 0, previousIndex = -1; // most pixels repeat the color before them
+            int breaks = 0, transBreaks = 0; // index changes from one pixel to the next, without and with trans
+            int last = -1, lastTrans = -1;
+            boolean missing = false; // an unchanged pixel of a color not in the table
+            for (int y = frame.y; y < frame.y + frame.height; y++) {
+                for (int p = y * width + frame.x, end = p + frame.width; p < end; p++) {
+                    int c = canvas[p];
+                    if (c != previous || previousIndex < 0) {
+                        previous = c;
+                        previousIndex = colorIndex.get(c);
+                    }
+                    indices[i++] = (byte) previousIndex;
+                    missing |= previousIndex < 0;
+                    breaks += previousIndex != last ? 1 : 0;
+                    last = previousIndex;
+                    int t = trans >= 0 && c == shown[p] ? trans : previousIndex;
+                    transBreaks += t != lastTrans ? 1 : 0;
+                    lastTrans = t;
+                }
+            }
+            // the table only holds the colors of changed pixels, others can only be left in place
+            if (missing && trans < 0) {
+                throw new IOException("No index to spare for unchanged pixels in frame " + frame.source);
+            }
+            // scattered unchanged pixels break up runs instead of making them, so
+            // transparency is only used where it leaves fewer runs for LZW
+            if (trans >= 0 && !missing && transBreaks >= breaks) {
+                trans = -1;
+            }
+            i = 0;
+            for (int y = frame.y; y < frame.y + frame.height; y++) {
+                int row = y * width + frame.x;
+                if (trans >= 0) {
+                    for (int p = row, end = p + frame.width; p < end; p++, i++) {
+                        if (canvas[p] == shown[p]) {
+                            indices[i] = (byte) trans;
+                        }
+                    }
+                }
+                System.arraycopy(canvas, row, shown, row, frame.width);
+            }
+
+            // graphic control extension: leave in place, transparency if used
+            out.write(0x21);
+            out.write(0xf9);
+            out.write(4);
+            out.write((1 << 2) | (trans >= 0 ? 1 : 0));
+            writeShort(out, frame.delay);
+            out.write(Math.max(0, trans));
+            out.write(0);
+
+            out.write(0x2c);
+            writeShort(out, frame.x);
+            writeShort(out, frame.y);
+            writeShort(out, frame.width);
+            writeShort(out, frame.height);
+            int bits = tableBits(table);
+            out.write(frame.table != null ? 0x80 | (bits - 1) : 0);
+            if (frame.table != null) {
+                writeTable(out, table);
+            }
+            if (bits != encoderBits) {
+                // the codes of one code size are literals of another, start with an empty table
+                encoder = new DenseLZWEncoder();
+                encoderBits = bits;
+            }
+            encoder.setImage(frame.width, frame.height, indices, bits);
+            encoder.encode(out);
+        }
+        out.write(0x3b); // trailer
+    }
+
+    /**
+     * Decodes the optimized GIF along with the source and checks that each
+     * source frame shows the same picture, for the same time in total.
+     *
+     * @throws IOException
+     *           if they differ or the optimized GIF can not be decoded.
+     */
+    protected void verify(GifReader source, File optimized, List<Frame> frames) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(optimized, "r");
+             FileChannel channel = in.getChannel()) {
+            GifReader reader = new GifReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (reader.getWidth() != source.getWidth() || reader.getHeight() != source.getHeight()) {
+                throw new IOException("Optimized GIF has another size than the source");
+            }
+            int index = 0;
+            int delay = 0; // of the optimized frame, less the source frames shown during it
+            while (source.nextFrame()) {
+                checkCancelled();
+                int frame = source.frames - 1;
+                if (index < frames.size() && frames.get(index).source == frame) {
+                    if (delay != 0 || !reader.nextFrame()) {
+                        throw new IOException("Optimized GIF has other timing than the source at frame " + frame);
+                    }
+                    delay = reader.getDelay();
+                    index++;
+                }
+                delay -= source.getDelay();
+                if (!Arrays.equals(source.getCanvas(), reader.getCanvas())) {
+                    throw new IOException("Optimized GIF differs from the source in frame " + frame);
+                }
+            }
+            if (delay != 0 || reader.nextFrame() || reader.getLoopCount() != source.getLoopCount()) {
+                throw new IOException("Optimized GIF has other timing than the source at the end");
+            }
+        }
+    }
+
+    protected void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("GIF optimization cancelled");
+        }
+    }
+
+    /**
+     * Returns the bounds {x, y, width, height} of the pixels that differ,
+     * null if none do
+     */
+    protected static int[] changedBounds(int[] previous, int[] current, int width, int height) {
+        int top = 0;
+        while (top < height && rowEquals(previous, current, top * width, width)) {
+            top++;
+        }
+        if (top == height) {
+            return null;
+        }
+        int bottom = height - 1;
+        while (rowEquals(previous, current, bottom * width, width)) {
+            bottom--;
+        }
+        int left = width, right = -1;
+        for (int y = top; y <= bottom; y++) {
+            int row = y * width;
+            int x = 0;
+            while (x < left && previous[row + x] == current[row + x]) {
+                x++;
+            }
+            left = Math.min(left, x);
+            x = width - 1;
+            while (x > right && previous[row + x] == current[row + x]) {
+                x--;
+            }
+            right = Math.max(right, x);
+        }
+        return new int[]{left, top, right - left + 1, bottom - top + 1};
+    }
+
+    private static boolean rowEquals(int[] a, int[] b, int start, int length) {
+        for (int i = start, end = start + length; i < end; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(int[] colors, int count, int c) {
+        for (int i = 0; i < count; i++) {
+            if (colors[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean covers(int[] table, int[] colors) {
+        for (int c : colors) {
+            if (indexOf(table, table.length, c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an index of the table that none of the colors is mapped to,
+     * -1 if every index is needed
+     */
+    protected static int spareIndex(int[] table, int[] colors) {
+        boolean[] used = new boolean[table.length];
+        for (int c : colors) {
+            used[indexOf(table, table.length, c)] = true; // first index of a color, as ColorIndex maps it
+        }
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the colors as a color table with a power of 2 entries, at least
+     * 4 so that the table and the LZW code size agree
+     */
+    protected static int[] pad(int[] colors) {
+        int size = 4;
+        while (size < colors.length + 1 && size < 256) {
+            size <<= 1; // keep an entry to spare for unchanged pixels
+        }
+        int[] table = Arrays.copyOf(colors, size);
+        Arrays.fill(table, colors.length, size, 0xff000000);
+        return table;
+    }
+
+    /**
+     * Returns the bits per index of a table, from 1 to 8
+     */
+    protected static int tableBits(int[] table) {
+        int bits = 1;
+        while ((1 << bits) < table.length) {
+            bits++;
+        }
+        return bits;
+    }
+
+    protected static void writeTable(OutputStream out, int[] table) throws IOException {
+        int size = 1 << tableBits(table);
+        byte[] rgb = new byte[3 * size];
+        for (int i = 0; i < table.length; i++) {
+            rgb[3 * i] = (byte) (table[i] >> 16);
+            rgb[3 * i + 1] = (byte) (table[i] >> 8);
+            rgb[3 * i + 2] = (byte) table[i];
+        }
+        out.write(rgb);
+    }
+
+    protected static void writeNetscapeExt(OutputStream out, int repeat) throws IOException {
+        out.write(0x21); // extension introducer
+        out.write(0xff); // app extension label
+        out.write(11); // block size
+        out.write("NETSCAPE2.0".getBytes("US-ASCII")); // app id + auth code
+        out.write(3); // sub-block size
+        out.write(1); // loop sub-block id
+        writeShort(out, repeat); // loop count (extra iterations, 0=repeat forever)
+        out.write(0); // block terminator
+    }
+
+    protected static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+
+    /**
+     * Color table compared by content, to count the frames sharing one
+     */
+    protected static class TableKey {
+        final int[] table;
+        final int hash;
+
+        TableKey(int[] table) {
+            this.table = table;
+            hash = Arrays.hashCode(table);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && Arrays.equals(table, ((TableKey) o).table);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Maps colors to their first index in a table with open addressing
+     */
+    protected static class ColorIndex {
+        private final int[] keys = new int[1024];
+        private final short[] values = new short[1024];
+
+        ColorIndex() {
+            clear();
+        }
+
+        ColorIndex(int[] table) {
+            this();
+            for (int i = 0; i < table.length; i++) {
+                put(table[i], i);
+            }
+        }
+
+        void clear() {
+            Arrays.fill(values, (short) -1);
+        }
+
+        /**
+         * Maps a color to an index unless it is mapped already
+         */
+        void put(int c, int index) {
+            int slot = slot(c);
+            if (values[slot] < 0) {
+                keys[slot] = c;
+                values[slot] = (short) index;
+            }
+        }
+
+        private int slot(int c) {
+            int slot = (c * 0x9e3779b1) >>> 22;
+            while (values[slot] >= 0 && keys[slot] != c) {
+                slot = (slot + 1) & 1023;
+            }
+            return slot;
+        }
+
+        /**
+         * Returns the index of a color, -1 if it is not mapped
+         */
+        int get(int c) {
+            return values[slot(c)];
+        }
+    }
+}
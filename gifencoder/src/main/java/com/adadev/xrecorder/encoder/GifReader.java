@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decodes a GIF held in a buffer, frame by frame, onto a canvas of ARGB
+ * colors as it is shown, with the disposal methods and transparency of each
+ * frame applied. Pixels no frame has drawn, or that were disposed to the
+ * background, are left transparent (0).
+ */
+class GifReader {
+
+    protected static final int MAX_CODES = 4096; // LZW codes are at most 12 bits
+
+    protected ByteBuffer data; // whole file, positioned at the next block
+
+    protected int width, height; // logical screen size
+
+    protected int[] globalTable; // global color table as ARGB, null if none
+
+    protected int loopCount = -1; // from the Netscape extension, -1 if none
+
+    protected int[] canvas; // pixels shown after the last frame
+
+    protected int[] saved; // canvas below the last frame, for disposal 3
+
+    protected byte[] indices; // color indices of the last frame, row by row
+
+    protected byte[] block = new byte[4096]; // LZW data of a frame, sub-blocks joined
+
+    protected short[] prefix = new short[MAX_CODES]; // code a code extends
+
+    protected byte[] suffix = new byte[MAX_CODES]; // index a code adds to its prefix
+
+    protected byte[] stack = new byte[MAX_CODES + 1]; // indices of a code, last first
+
+    protected int frameX, frameY, frameW, frameH; // bounds of the last frame
+
+    protected int[] colorTable; // color table of the last frame
+
+    protected int delay; // delay of the last frame (hundredths)
+
+    protected int dispose; // disposal of the last frame, applied before the next
+
+    protected int transIndex = -1; // transparent index of the last frame, -1 if none
+
+    protected int frames; // frames read so far
+
+    /**
+     * Reads the header, screen descriptor and global color table.
+     *
+     * @throws IOException
+     *           if the buffer does not hold a GIF.
+     */
+    GifReader(ByteBuffer buffer) throws IOException {
+        data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        data.position(0);
+        try {
+            byte[] header = new byte[6];
+            data.get(header);
+            String signature = new String(header, "US-ASCII");
+            if (!signature.equals("GIF87a") && !signature.equals("GIF89a")) {
+                throw new IOException("Not a GIF file");
+            }
+            width = data.getShort() & 0xffff;
+            height = data.getShort() & 0xffff;
+            int packed = data.get() & 0xff;
+            data.get(); // background color index, disposing clears to transparent
+            data.get(); // pixel aspect ratio
+            if ((packed & 0x80) != 0) {
+                globalTable = readColorTable(2 << (packed & 7));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated GIF header");
+        }
+        if (width == 0 || height == 0) {
+            throw new IOException("Empty GIF screen");
+        }
+        canvas = new int[width * height];
+        indices = new byte[width * height];
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the repeat count of the Netscape extension read so far, -1 if
+     * there is none. It usually comes before the first frame.
+     */
+    int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * Returns the canvas as shown after the last frame. The array is updated
+     * in place by <code>nextFrame</code>.
+     */
+    int[] getCanvas() {
+        return canvas;
+    }
+
+    /**
+     * Returns the color table the last frame was drawn with, as ARGB colors
+     */
+    int[] getColorTable() {
+        return colorTable;
+    }
+
+    /**
+     * Returns the delay of the last frame in hundredths of a second
+     */
+    int getDelay() {
+        return delay;
+    }
+
+    /**
+     * Disposes the last frame and draws the next one onto the canvas.
+     *
+     * @return false after the last frame.
+     * @throws IOException
+     *           if the data is not a valid GIF.
+     */
+    boolean nextFrame() throws IOException {
+        try {
+            disposeFrame();
+            int gceDelay = 0, gceDispose = 0, gceTrans = -1;
+            while (true) {
+                int code = data.hasRemaining() ? data.get() & 0xff : 0x3b; // a missing trailer ends the GIF
+                switch (code) {
+                    case 0x21: // extension
+                        int label = data.get() & 0xff;
+                        if (label == 0xf9) {
+                            int size = data.get() & 0xff;
+                            int start = data.position();
+                            int packed = data.get() & 0xff;
+                            gceDelay = data.getShort() & 0xffff;
+                            int trans = data.get() & 0xff;
+                            gceDispose = (packed >> 2) & 7;
+                            gceTrans = (packed & 1) != 0 ? trans : -1;
+                            data.position(start + size);
+                            skipSubBlocks();
+                        } else if (label == 0xff) {
+                            readApplicationExt();
+                        } else {
+                            skipSubBlocks();
+                        }
+                        break;
+                    case 0x2c: // image
+                        delay = gceDelay;
+                        dispose = gceDispose;
+                        transIndex = gceTrans;
+                        readImage();
+                        frames++;
+                        return true;
+                    case 0x3b: // trailer
+                        return false;
+                    default:
+                        throw new IOException("Invalid GIF block " + code + " after frame " + frames);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated GIF after frame " + frames);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Invalid GIF data in frame " + frames, e);
+        }
+    }
+
+    /**
+     * Applies the disposal method of the last frame to its area of the canvas
+     */
+    protected void disposeFrame() {
+        if (frames == 0) {
+            return;
+        }
+        if (dispose == 2) {
+            int right = Math.min(width, frameX + frameW);
+            for (int y = frameY; y < Math.min(height, frameY + frameH); y++) {
+                if (frameX < right) {
+                    Arrays.fill(canvas, y * width + frameX, y * width + right, 0);
+                }
+            }
+        } else if (dispose == 3 && saved != null) {
+            System.arraycopy(saved, 0, canvas, 0, canvas.length);
+        }
+    }
+
+    protected void readApplicationExt() throws IOException {
+        int size = data.get() & 0xff;
+        byte[] id = new byte[size];
+        data.get(id);
+        boolean netscape = new String(id, "US-ASCII").equals("NETSCAPE2.0");
+        int length;
+        while ((length = data.get() & 0xff) != 0) {
+            int start = data.position();
+            if (netscape && length >= 3 && data.get() == 1) {
+                loopCount = data.getShort() & 0xffff;
+            }
+            data.position(start + length);
+        }
+    }
+
+    protected void skipSubBlocks() {
+        int length;
+        while ((length = data.get() & 0xff) != 0) {
+            data.position(data.position() + length);
+        }
+    }
+
+    protected int[] readColorTable(int size) {
+        int[] table = new int[size];
+        for (int i = 0; i < size; i++) {
+            int r = data.get() & 0xff, g = data.get() & 0xff, b = data.get() & 0xff;
+            table[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+        }
+        return table;
+    }
+
+    /**
+     * Reads an image descriptor and its data, and draws the image
+     */
+    protected void readImage() throws IOException {
+        frameX = data.getShort() & 0xffff;
+        frameY = data.getShort() & 0xffff;
+        frameW = data.getShort() & 0xffff;
+        frameH = data.getShort() & 0xffff;
+        int packed = data.get() & 0xff;
+        boolean interlaced = (packed & 0x40) != 0;
+        colorTable = (packed & 0x80) != 0 ? readColorTable(2 << (packed & 7)) : globalTable;
+        if (colorTable == null) {
+            throw new IOException("No color table for frame " + frames);
+        }
+        int minCodeSize = data.get() & 0xff;
+        if (minCodeSize < 2 || minCodeSize > 8) {
+            throw new IOException("Invalid LZW code size " + minCodeSize);
+        }
+        int length = readSubBlocks();
+        if ((long) frameW * frameH > Integer.MAX_VALUE) {
+            throw new IOException("Frame " + frames + " too large");
+        }
+        int count = frameW * frameH;
+        if (indices.length < count) {
+            indices = new byte[count];
+        }
+        decode(minCodeSize, length, count);
+        if (dispose == 3) {
+            if (saved == null) {
+                saved = new int[canvas.length];
+            }
+            System.arraycopy(canvas, 0, saved, 0, canvas.length);
+        }
+        draw(interlaced);
+    }
+
+    /**
+     * Joins the data sub-blocks of an image into block
+     *
+     * @return the number of bytes joined.
+     */
+    protected int readSubBlocks() {
+        int length = 0, size;
+        while ((size = data.get() & 0xff) != 0) {
+            if (length + size > block.length) {
+                block = Arrays.copyOf(block, Math.max(2 * block.length, length + size));
+            }
+            data.get(block, length, size);
+            length += size;
+        }
+        return length;
+    }
+
+    /**
+     * Decompresses the LZW data in block into count color indices. Missing
+     * data leaves the rest of the frame at index 0.
+     *
+     * @throws IOException
+     *           if a code is not in the table yet.
+     */
+    protected void decode(int minCodeSize, int length, int count) throws IOException {
+        byte[] block = this.block, indices = this.indices, suffix = this.suffix, stack = this.stack;
+        short[] prefix = this.prefix;
+        int clear = 1 << minCodeSize;
+        // the codes the last frame added may overlap this frame's literals
+        for (int i = 0; i < clear; i++) {
+            suffix[i] = (byte) i;
+        }
+        int end = clear + 1;
+        int codeSize = minCodeSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        int available = clear + 2;
+        int old = -1;
+        byte first = 0;
+        int datum = 0, bits = 0, pos = 0, out = 0;
+        while (out < count) {
+            while (bits < codeSize) {
+                if (pos == length) {
+                    Arrays.fill(indices, out, count, (byte) 0);
+                    return;
+                }
+                datum |= (block[pos++] & 0xff) << bits;
+                bits += 8;
+            }
+            int code = datum & codeMask;
+            datum >>>= codeSize;
+            bits -= codeSize;
+            if (code == clear) {
+                codeSize = minCodeSize + 1;
+                codeMask = (1 << codeSize) - 1;
+                available = clear + 2;
+                old = -1;
+                continue;
+            }
+            if (code == end) {
+                break;
+            }
+            if (old == -1) {
+                first = code < clear ? (byte) code : 0;
+                indices[out++] = first;
+                old = code < clear ? code : 0;
+                continue;
+            }
+            if (code > available) {
+                throw new IOException("Invalid LZW code " + code + " in frame " + frames);
+            }
+            int in = code;
+            int top = 0;
+            if (code == available) {
+                stack[top++] = first;
+                code = old;
+            }
+            while (code > end) {
+                stack[top++] = suffix[code];
+                code = prefix[code];
+            }
+            first = suffix[code];
+            stack[top++] = first;
+            if (available < MAX_CODES) {
+                prefix[available] = (short) old;
+                suffix[available] = first;
+                available++;
+                if ((available & codeMask) == 0 && available < MAX_CODES) {
+                    codeSize++;
+                    codeMask = (1 << codeSize) - 1;
+                }
+            }
+            old = in;
+            while (top > 0 && out < count) {
+                indices[out++] = stack[--top];
+            }
+        }
+        if (out < count) {
+            Arrays.fill(indices, out, count, (byte) 0);
+        }
+    }
+
+    /**
+     * Draws the decoded indices onto the canvas, leaving transparent pixels
+     * and the parts outside the screen alone
+     */
+    protected void draw(boolean interlaced) {
+        int[] table = colorTable;
+        int right = Math.min(width, frameX + frameW);
+        int pass = 0, step = interlaced ? 8 : 1, row = 0;
+        for (int r = 0; r < frameH; r++) {
+            int y = frameY + row;
+            if (y < height) {
+                int src = r * frameW, dst = y * width;
+                for (int x = frameX; x < right; x++, src++) {
+                    int index = indices[src] & 0xff;
+                    if (index != transIndex) {
+                        canvas[dst + x] = index < table.length ? table[index] : 0xff000000;
+                    }
+                }
+            }
+            row += step;
+            while (interlaced && row >= frameH && pass < 3) {
+                pass++;
+                row = pass == 1 ? 4 : pass == 2 ? 2 : 1;
+                step = pass == 1 ? 8 : pass == 2 ? 4 : 2;
+            }
+        }
+    }
+}
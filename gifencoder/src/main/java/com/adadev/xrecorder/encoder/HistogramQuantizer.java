@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+
+/**
+ * Base of the quantizers that work on a color histogram instead of the
+ * pixels. The histogram is collected in a single pass with 5 bits per
+ * channel; every bucket also sums its colors so that flat colors survive
+ * exactly. Subclasses turn the histogram into a palette, pixels are mapped to
+ * the palette entry nearest to their bucket.
+ * <p>
+ * The histogram is only needed until the palette is built. Its arrays are
+ * then cleared and handed to the quantizer of the next frame, so a frame
+ * does not allocate them again; mapping keeps the mean color of every
+ * bucket in its cache instead.
+ */
+abstract class HistogramQuantizer implements Quantizer {
+
+    protected static final int HIST_BITS = 5;
+
+    protected static final int HIST_SHIFT = 8 - HIST_BITS;
+
+    protected static final int HIST_SIZE = 1 << (3 * HIST_BITS);
+
+    protected static final int MAX_COLORS = 256;
+
+    private static final int MEAN = 0x80000000; // mapCache flag of a bucket mean not mapped yet
+
+    private static final ArrayDeque<SoftReference<Histogram>> recycled = new ArrayDeque<>();
+
+    /**
+     * The per bucket totals, all zero when taken
+     */
+    protected static class Histogram {
+
+        final int[] count = new int[HIST_SIZE];
+
+        final long[] sumR = new long[HIST_SIZE];
+
+        final long[] sumG = new long[HIST_SIZE];
+
+        final long[] sumB = new long[HIST_SIZE];
+
+        final int[] work = new int[HIST_SIZE]; // for subclasses while building the palette
+    }
+
+    protected Histogram histogram; // null once the palette is built
+
+    protected int[] count; // pixels per bucket
+
+    protected long[] sumR;
+
+    protected long[] sumG;
+
+    protected long[] sumB;
+
+    protected int[] palR = new int[MAX_COLORS]; // palette filled by buildPalette
+
+    protected int[] palG = new int[MAX_COLORS];
+
+    protected int[] palB = new int[MAX_COLORS];
+
+    protected int palSize;
+
+    // palette index + 1 per bucket, MEAN | rgb for a sampled bucket and 0 for an empty one not mapped yet
+    private int[] mapCache = new int[HIST_SIZE];
+
+    HistogramQuantizer(int[] pixels, int len, int sample) {
+        histogram = take();
+        count = histogram.count;
+        sumR = histogram.sumR;
+        sumG = histogram.sumG;
+        sumB = histogram.sumB;
+        int step = Math.max(1, sample);
+        for (int i = 0; i < len; i += step) {
+            int color = pixels[i];
+            int b = color & 0xff;
+            int g = (color >> 8) & 0xff;
+            int r = (color >> 16) & 0xff;
+            int bucket = bucket(b, g, r);
+            count[bucket]++;
+            sumR[bucket] += r;
+            sumG[bucket] += g;
+            sumB[bucket] += b;
+        }
+    }
+
+    private static Histogram take() {
+        synchronized (recycled) {
+            while (!recycled.isEmpty()) {
+                Histogram histogram = recycled.pop().get();
+                if (histogram != null) {
+                    return histogram;
+                }
+            }
+        }
+        return new Histogram();
+    }
+
+    private static void recycle(Histogram histogram) {
+        synchronized (recycled) {
+            recycled.push(new SoftReference<>(histogram));
+        }
+    }
+
+    protected static int bucket(int b, int g, int r) {
+        return (((r >> HIST_SHIFT) << HIST_BITS | (g >> HIST_SHIFT)) << HIST_BITS) | (b >> HIST_SHIFT);
+    }
+
+    /**
+     * Adds a palette entry with the mean color of the given totals
+     */
+    protected void addColor(long n, long r, long g, long b) {
+        palR[palSize] = (int) (r / n);
+        palG[palSize] = (int) (g / n);
+        palB[palSize] = (int) (b / n);
+        palSize++;
+    }
+
+    /**
+     * Fills palR/palG/palB with at most MAX_COLORS entries
+     */
+    protected abstract void buildPalette();
+
+    @Override
+    public byte[] process() {
+        palSize = 0;
+        buildPalette();
+        if (palSize == 0) {
+            addColor(1, 0, 0, 0);
+        }
+        // keep the bucket means for mapping and give the cleared histogram to the next frame
+        for (int i = 0; i < HIST_SIZE; i++) {
+            int n = count[i];
+            if (n > 0) {
+                mapCache[i] = MEAN | (int) (sumR[i] / n) << 16 | (int) (sumG[i] / n) << 8 | (int) (sumB[i] / n);
+                count[i] = 0;
+                sumR[i] = 0;
+                sumG[i] = 0;
+                sumB[i] = 0;
+            }
+        }
+        recycle(histogram);
+        histogram = null;
+        count = null;
+        sumR = sumG = sumB = null;
+        byte[] map = new byte[3 * palSize];
+        for (int i = 0, k = 0; i < palSize; i++) {
+            map[k++] = (byte) palB[i];
+            map[k++] = (byte) palG[i];
+            map[k++] = (byte) palR[i];
+        }
+        return map;
+    }
+
+    @Override
+    public int map(int b, int g, int r) {
+        int bucket = bucket(b, g, r);
+        int index = mapCache[bucket];
+        if (index <= 0) {
+            index = mapCache[bucket] = nearest(bucket, index) + 1;
+        }
+        return index - 1;
+    }
+
+    /**
+     * Returns the palette entry closest to the mean color of a bucket, or to
+     * its center if no sampled pixel fell into it
+     */
+    private int nearest(int bucket, int cached) {
+        int r, g, b;
+        if (cached != 0) {
+            r = (cached >> 16) & 0xff;
+            g = (cached >> 8) & 0xff;
+            b = cached & 0xff;
+        } else {
+            int half = 1 << (HIST_SHIFT - 1);
+            int mask = (1 << HIST_BITS) - 1;
+            r = ((bucket >> (2 * HIST_BITS)) << HIST_SHIFT) + half;
+            g = (((bucket >> HIST_BITS) & mask) << HIST_SHIFT) + half;
+            b = ((bucket & mask) << HIST_SHIFT) + half;
+        }
+        int best = 0;
+        int bestd = Integer.MAX_VALUE;
+        for (int i = 0; i < palSize; i++) {
+            int dr = r - palR[i];
+            int dg = g - palG[i];
+            int db = b - palB[i];
+            int d = dr * dr + dg * dg + db * db;
+            if (d < bestd) {
+                bestd = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
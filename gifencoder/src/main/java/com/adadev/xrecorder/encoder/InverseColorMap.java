@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * Dense RGB to palette index lookup table, built once per palette so that
+ * pixels map with a single array read instead of a network search.
+ *
+ * <p>The color cube is split into cells of <code>bits</code> bits per channel.
+ * A cell is resolved lazily the first time a pixel falls into it: if one
+ * palette entry is closer than all others to every color in the cell, the
+ * cell stores that entry. Cells near a boundary between palette entries are
+ * marked for refinement and their pixels are mapped exactly by the quantizer.
+ * With a tolerance of 0 the result is identical to exact mapping; a larger
+ * tolerance accepts cells whose entry is at most that much further (sum of
+ * absolute channel differences) from a pixel than the exact match.
+ *
+ * <p>Distances are sums of absolute channel differences, as NeuQuant maps
+ * pixels, so the table is only exact for a NeuQuant palette.
+ */
+class InverseColorMap {
+
+    private static final short UNRESOLVED = 0;
+
+    private static final short REFINE = -1;
+
+    private final byte[] colorTab; // RGB palette
+
+    private final Quantizer exact; // exact mapping for boundary cells
+
+    private final int bits; // bits per channel
+
+    private final int shift;
+
+    private final int radius; // max distance of a cell color from the cell center, doubled
+
+    private final int tolerance; // accepted extra error, doubled
+
+    private final short[] cells; // palette index + 1, UNRESOLVED or REFINE
+
+    /**
+     * @param colorTab
+     *          RGB palette, 3 bytes per entry.
+     * @param exact
+     *          quantizer the palette came from, used for boundary cells.
+     * @param bits
+     *          int bits per channel of the lookup table, 1 to 8.
+     * @param tolerance
+     *          int accepted extra error per pixel, 0 for exact mapping.
+     */
+    InverseColorMap(byte[] colorTab, Quantizer exact, int bits, int tolerance) {
+        this.colorTab = colorTab;
+        this.exact = exact;
+        this.bits = bits;
+        this.shift = 8 - bits;
+        this.radius = 3 * ((1 << shift) - 1);
+        this.tolerance = 2 * Math.max(0, tolerance);
+        this.cells = new short[1 << (3 * bits)];
+    }
+
+    /**
+     * Returns the palette index for a color
+     */
+    int map(int b, int g, int r) {
+        int cell = (((r >> shift) << bits | (g >> shift)) << bits) | (b >> shift);
+        short v = cells[cell];
+        if (v == UNRESOLVED) {
+            v = cells[cell] = resolve(r >> shift, g >> shift, b >> shift);
+        }
+        if (v == REFINE) {
+            return exact.map(b, g, r);
+        }
+        return v - 1;
+    }
+
+    /**
+     * Finds the palette entry for a whole cell, or REFINE if the cell
+     * straddles a boundary between palette entries
+     */
+    private short resolve(int cr, int cg, int cb) {
+        // work with doubled coordinates so that the cell center is an integer
+        int size = 1 << shift;
+        int r2 = (cr << shift) * 2 + size - 1;
+        int g2 = (cg << shift) * 2 + size - 1;
+        int b2 = (cb << shift) * 2 + size - 1;
+        int best = -1;
+        int bestd = Integer.MAX_VALUE;
+        int secondd = Integer.MAX_VALUE;
+        for (int i = 0, k = 0; k < colorTab.length; i++) {
+            int d = Math.abs(r2 - 2 * (colorTab[k++] & 0xff));
+            d += Math.abs(g2 - 2 * (colorTab[k++] & 0xff));
+            d += Math.abs(b2 - 2 * (colorTab[k++] & 0xff));
+            if (d < bestd) {
+                secondd = bestd;
+                bestd = d;
+                best = i;
+            } else if (d < secondd) {
+                secondd = d;
+            }
+        }
+        // every color in the cell is within radius of the center, so the
+        // center's best entry wins for the whole cell if it leads by 2 * radius
+        if ((long) secondd - bestd > 2 * radius - tolerance) {
+            return (short) (best + 1);
+        }
+        return REFINE;
+    }
+}
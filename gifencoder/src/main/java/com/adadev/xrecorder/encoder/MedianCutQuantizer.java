@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.util.Arrays;
+
+/**
+ * Median cut quantizer. Starts with one box holding every histogram bucket
+ * and keeps splitting the box with the most pixels times extent at the
+ * pixel median of its longest axis, until there are 256 boxes. Each box
+ * becomes the mean color of its pixels.
+ */
+class MedianCutQuantizer extends HistogramQuantizer {
+
+    private static final int MASK = (1 << HIST_BITS) - 1;
+
+    private int[] buckets; // non-empty buckets, grouped by box, while building the palette
+
+    private int[] boxLo = new int[MAX_COLORS]; // first bucket of each box
+
+    private int[] boxHi = new int[MAX_COLORS]; // end of each box, exclusive
+
+    private long[] boxScore = new long[MAX_COLORS]; // split priority, 0 if the box can't be split
+
+    private int[] boxAxis = new int[MAX_COLORS]; // longest axis of each box
+
+    MedianCutQuantizer(int[] pixels, int len, int sample) {
+        super(pixels, len, sample);
+    }
+
+    @Override
+    protected void buildPalette() {
+        buckets = histogram.work;
+        int n = 0;
+        for (int i = 0; i < HIST_SIZE; i++) {
+            if (count[i] > 0)
+                buckets[n++] = i;
+        }
+        if (n == 0)
+            return;
+
+        int boxes = 1;
+        boxLo[0] = 0;
+        boxHi[0] = n;
+        measure(0);
+        while (boxes < MAX_COLORS) {
+            // split the box with the largest pixel count times extent
+            int split = -1;
+            for (int i = 0; i < boxes; i++) {
+                if (boxScore[i] > 0 && (split < 0 || boxScore[i] > boxScore[split]))
+                    split = i;
+            }
+            if (split < 0)
+                break;
+            int mid = median(boxLo[split], boxHi[split], boxAxis[split]);
+            boxLo[boxes] = mid;
+            boxHi[boxes] = boxHi[split];
+            boxHi[split] = mid;
+            measure(split);
+            measure(boxes);
+            boxes++;
+        }
+
+        for (int i = 0; i < boxes; i++) {
+            long pixels = 0, r = 0, g = 0, b = 0;
+            for (int j = boxLo[i]; j < boxHi[i]; j++) {
+                int bucket = buckets[j];
+                pixels += count[bucket];
+                r += sumR[bucket];
+                g += sumG[bucket];
+                b += sumB[bucket];
+            }
+            addColor(pixels, r, g, b);
+        }
+    }
+
+    /**
+     * Returns the coordinate of a bucket on an axis, 0 = red, 1 = green, 2 = blue
+     */
+    private static int coord(int bucket, int axis) {
+        return (bucket >> (HIST_BITS * (2 - axis))) & MASK;
+    }
+
+    /**
+     * Finds the longest axis and the split priority of a box
+     */
+    private void measure(int box) {
+        int lo = boxLo[box], hi = boxHi[box];
+        boxScore[box] = 0;
+        if (hi - lo < 2)
+            return;
+        int axis = 0, longest = -1;
+        for (int a = 0; a < 3; a++) {
+            int min = MASK, max = 0;
+            for (int j = lo; j < hi; j++) {
+                int c = coord(buckets[j], a);
+                if (c < min)
+                    min = c;
+                if (c > max)
+                    max = c;
+            }
+            if (max - min > longest) {
+                longest = max - min;
+                axis = a;
+            }
+        }
+        boxAxis[box] = axis;
+        boxScore[box] = pixelCount(lo, hi) * (longest + 1);
+    }
+
+    private long pixelCount(int lo, int hi) {
+        long pixels = 0;
+        for (int j = lo; j < hi; j++)
+            pixels += count[buckets[j]];
+        return pixels;
+    }
+
+    /**
+     * Sorts the buckets of a box along an axis and returns the split position
+     * that halves its pixels, leaving at least one bucket on each side
+     */
+    private int median(int lo, int hi, int axis) {
+        int shift = 3 * HIST_BITS;
+        for (int j = lo; j < hi; j++)
+            buckets[j] |= coord(buckets[j], axis) << shift;
+        Arrays.sort(buckets, lo, hi);
+        for (int j = lo; j < hi; j++)
+            buckets[j] &= HIST_SIZE - 1;
+
+        long half = pixelCount(lo, hi) / 2;
+        long seen = 0;
+        int mid = lo + 1;
+        for (int j = lo; j < hi - 1; j++) {
+            seen += count[buckets[j]];
+            mid = j + 1;
+            if (seen >= half)
+                break;
+        }
+        return mid;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Octree quantizer. Every histogram bucket becomes a leaf of an octree five
+ * levels deep, then the least populated nodes of the deepest level are folded
+ * into their parents until at most 256 leaves are left. Each leaf becomes the
+ * mean color of its pixels.
+ */
+class OctreeQuantizer extends HistogramQuantizer {
+
+    private int leafCount;
+
+    private List<List<Node>> reducible = new ArrayList<>(); // nodes with children, per level
+
+    OctreeQuantizer(int[] pixels, int len, int sample) {
+        super(pixels, len, sample);
+    }
+
+    @Override
+    protected void buildPalette() {
+        for (int level = 0; level < HIST_BITS; level++)
+            reducible.add(new ArrayList<>());
+        Node root = new Node();
+        for (int i = 0; i < HIST_SIZE; i++) {
+            if (count[i] > 0)
+                insert(root, i);
+        }
+
+        for (int level = HIST_BITS - 1; level >= 0 && leafCount > MAX_COLORS; level--) {
+            List<Node> nodes = reducible.get(level);
+            Collections.sort(nodes, (a, b) -> Long.compare(a.pixels, b.pixels));
+            for (int i = 0; i < nodes.size() && leafCount > MAX_COLORS; i++) {
+                Node node = nodes.get(i);
+                leafCount -= node.childCount - 1;
+                node.children = null;
+            }
+        }
+        addLeaves(root);
+    }
+
+    private void insert(Node root, int bucket) {
+        int r = bucket >> (2 * HIST_BITS);
+        int g = (bucket >> HIST_BITS) & ((1 << HIST_BITS) - 1);
+        int b = bucket & ((1 << HIST_BITS) - 1);
+        Node node = root;
+        for (int level = 0; ; level++) {
+            node.pixels += count[bucket];
+            node.r += sumR[bucket];
+            node.g += sumG[bucket];
+            node.b += sumB[bucket];
+            if (level == HIST_BITS)
+                break;
+            if (node.children == null) {
+                node.children = new Node[8];
+                reducible.get(level).add(node);
+            }
+            int bit = HIST_BITS - 1 - level;
+            int child = ((r >> bit) & 1) << 2 | ((g >> bit) & 1) << 1 | ((b >> bit) & 1);
+            if (node.children[child] == null) {
+                node.children[child] = new Node();
+                node.childCount++;
+                if (level == HIST_BITS - 1)
+                    leafCount++;
+            }
+            node = node.children[child];
+        }
+    }
+
+    private void addLeaves(Node node) {
+        if (node.children == null) {
+            if (node.pixels > 0)
+                addColor(node.pixels, node.r, node.g, node.b);
+            return;
+        }
+        for (Node child : node.children) {
+            if (child != null)
+                addLeaves(child);
+        }
+    }
+
+    private static class Node {
+        long pixels, r, g, b; // totals of every bucket below this node
+        Node[] children; // null for leaves
+        int childCount;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * A color table and everything needed to map pixels to it. Palettes are
+ * immutable once built, so one palette can be shared by several frames.
+ */
+class Palette {
+
+    final Quantizer quantizer; // quantizer that built the palette
+
+    final byte[] colorTab; // RGB palette
+
+    final InverseColorMap colorMap; // lookup table, null to map through the quantizer
+
+    int error; // sampled mean error on the frame the palette was built for
+
+    Palette(Quantizer quantizer, byte[] colorTab, InverseColorMap colorMap) {
+        this.quantizer = quantizer;
+        this.colorTab = colorTab;
+        this.colorMap = colorMap;
+    }
+
+    /**
+     * Returns the palette index for a color
+     */
+    int map(int b, int g, int r) {
+        return colorMap != null ? colorMap.map(b, g, r) : quantizer.map(b, g, r);
+    }
+
+    /**
+     * Returns the mean error (sum of absolute channel differences) of mapping
+     * about <code>samples</code> evenly spaced pixels of an ARGB frame
+     */
+    int sampledError(int[] pixels, int nPix, int samples) {
+        int step = Math.max(1, nPix / samples);
+        long error = 0;
+        int n = 0;
+        for (int i = 0; i < nPix; i += step, n++) {
+            int color = pixels[i];
+            int b = color & 0xff;
+            int g = (color >> 8) & 0xff;
+            int r = (color >> 16) & 0xff;
+            int j = map(b, g, r) * 3;
+            error += Math.abs(r - (colorTab[j] & 0xff))
+                    + Math.abs(g - (colorTab[j + 1] & 0xff))
+                    + Math.abs(b - (colorTab[j + 2] & 0xff));
+        }
+        return n == 0 ? 0 : (int) (error / n);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * A frame handed to {@link GifEncoder}. Implementations wrap whatever holds
+ * the pixels, a plain int array on any JVM or a Bitmap on Android, so the
+ * encoder itself does not depend on a platform image class.
+ */
+public interface PixelBuffer {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Copies a rectangle of the frame as ARGB colors, with the same arguments
+     * as Android's Bitmap.getPixels
+     *
+     * @param pixels
+     *          int array receiving the colors.
+     * @param offset
+     *          int index in pixels of the first color written.
+     * @param stride
+     *          int number of entries in pixels between rows.
+     * @param x
+     *          int left edge of the rectangle.
+     * @param y
+     *          int top edge of the rectangle.
+     * @param width
+     *          int width of the rectangle.
+     * @param height
+     *          int height of the rectangle.
+     */
+    void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+}
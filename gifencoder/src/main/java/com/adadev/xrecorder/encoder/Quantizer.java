@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016-2018. Vijai Chandra Prasad R.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses
+ */
+
+package com.adadev.xrecorder.encoder;
+
+/**
+ * Reduces the colors of a frame to a palette of at most 256 entries and maps
+ * pixels to it. A quantizer is created for every frame through a
+ * {@link Factory}, see {@link GifEncoder#setQuantizer(Factory)}.
+ */
+public interface Quantizer {
+
+    /**
+     * Kohonen neural network quantizer. Best quality, slowest.
+     */
+    Factory NEUQUANT = NeuQuant::new;
+
+    /**
+     * Octree reduction of the frame's color histogram. Fast, good for flat UI colors.
+     */
+    Factory OCTREE = OctreeQuantizer::new;
+
+    /**
+     * Median cut of the frame's color histogram. Fast, better gradients than octree.
+     */
+    Factory MEDIAN_CUT = MedianCutQuantizer::new;
+
+    /**
+     * Builds the palette
+     *
+     * @return BGR color map, 3 bytes per entry and at most 256 entries.
+     */
+    byte[] process();
+
+    /**
+     * Returns the index of the palette entry for a color. Only valid after
+     * <code>process()</code>.
+     */
+    int map(int b, int g, int r);
+
+    interface Factory {
+        /**
+         * @param pixels
+         *          ARGB pixels of the frame, alpha is ignored.
+         * @param len
+         *          int number of pixels to use.
+         * @param sample
+         *          int sampling interval, 1 uses every pixel.
+         */
+        Quantizer create(int[] pixels, int len, int sample);
+    }
+}
@@ -0,0 +1,50 @@
+package com.adadev.xrecorder.encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the area averages of {@link FrameScaler}.
+ */
+public class FrameScalerTest {
+
+    @Test
+    public void halvesByAveragingBlocks() {
+        // 2x2 blocks of black and white average to the middle grey
+        int[] pixels = new int[8 * 6];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = ((i % 8) + (i / 8)) % 2 == 0 ? 0xffffffff : 0xff000000;
+        }
+        PixelBuffer scaled = new FrameScaler(8, 6, 4, 3).scale(new ArgbPixelBuffer(8, 6, pixels));
+        int[] out = new int[4 * 3];
+        scaled.getPixels(out, 0, 4, 0, 0, 4, 3);
+        for (int color : out) {
+            assertEquals(0xff808080, color);
+        }
+    }
+
+    @Test
+    public void weighsPartlyCoveredPixels() {
+        // three columns to two: each output covers one column fully and half
+        // of the middle one
+        int[] pixels = {0xff000000, 0xff646464, 0xffc8c8c8};
+        int[] out = new int[2];
+        new FrameScaler(3, 1, 2, 1).scale(new ArgbPixelBuffer(3, 1, pixels), out);
+        assertEquals(0xff212121, out[0]); // (0 * 2 + 100) / 3 = 33
+        assertEquals(0xffa7a7a7, out[1]); // (100 + 200 * 2) / 3 = 167
+    }
+
+    @Test
+    public void keepsFlatColorsAtAnyRatio() {
+        int[] pixels = new int[37 * 23];
+        Arrays.fill(pixels, 0xff3f51b5);
+        int[] out = new int[10 * 7];
+        new FrameScaler(37, 23, 10, 7).scale(new ArgbPixelBuffer(37, 23, pixels), out);
+        for (int color : out) {
+            assertEquals(0xff3f51b5, color);
+        }
+    }
+}
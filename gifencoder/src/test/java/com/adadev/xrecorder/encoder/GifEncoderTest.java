@@ -0,0 +1,251 @@
+package com.adadev.xrecorder.encoder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes synthetic screen-like frames on the JVM.
+ */
+public class GifEncoderTest {
+
+    private static final int WIDTH = 320, HEIGHT = 240, FRAMES = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns frames with a gradient background, a moving box and a few
+     * repeated frames
+     */
+    private static int[][] frames() {
+        Random random = new Random(7);
+        int[][] frames = new int[FRAMES][WIDTH * HEIGHT];
+        for (int f = 0; f < FRAMES; f++) {
+            if (f % 3 == 2) {
+                frames[f] = frames[f - 1].clone();
+                continue;
+            }
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                int x = i % WIDTH, y = i / WIDTH;
+                boolean box = x >= 20 * f && x < 20 * f + 60 && y >= 80 && y < 140;
+                frames[f][i] = box ? 0xffe04020 : 0xff000000 | (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8
+                        | random.nextInt(4);
+            }
+        }
+        return frames;
+    }
+
+    private static byte[] encode(GifEncoder encoder, int[][] frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.setDelay(100);
+        encoder.setRepeat(0);
+        assertTrue(encoder.start(out));
+        for (int[] frame : frames) {
+            assertTrue(encoder.addFrame(new ArgbPixelBuffer(WIDTH, HEIGHT, frame)));
+        }
+        assertTrue(encoder.finish());
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a source handing out the frames in one reused buffer
+     */
+    private static FrameSource source(int[][] frames) {
+        ArgbPixelBuffer buffer = new ArgbPixelBuffer(WIDTH, HEIGHT);
+        return new FrameSource() {
+            int next;
+
+            @Override
+            public PixelBuffer nextFrame() {
+                if (next == frames.length)
+                    return null;
+                System.arraycopy(frames[next++], 0, buffer.getArray(), 0, WIDTH * HEIGHT);
+                return buffer;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static GifEncoder screenEncoder(int parallelism) {
+        GifEncoder encoder = new GifEncoder();
+        encoder.setQuantizer(Quantizer.MEDIAN_CUT);
+        encoder.setColorMap(6, 0);
+        encoder.setPaletteReuse(3);
+        encoder.setDirtyRectangles(true);
+        encoder.setCoalesceDuplicates(true);
+        encoder.setDenseLZW(true);
+        encoder.setParallelism(parallelism);
+        return encoder;
+    }
+
+    @Test
+    public void writesCompleteGif() throws Exception {
+        byte[] gif = encode(new GifEncoder(), frames());
+        assertEquals("GIF89a", new String(gif, 0, 6, "US-ASCII"));
+        assertEquals(WIDTH, (gif[6] & 0xff) | (gif[7] & 0xff) << 8);
+        assertEquals(HEIGHT, (gif[8] & 0xff) | (gif[9] & 0xff) << 8);
+        assertEquals(0x3b, gif[gif.length - 1]);
+    }
+
+    @Test
+    public void colorMapMatchesExactMapping() {
+        int[][] frames = frames();
+        for (Quantizer.Factory quantizer : new Quantizer.Factory[]{Quantizer.NEUQUANT, Quantizer.OCTREE, Quantizer.MEDIAN_CUT}) {
+            GifEncoder exact = new GifEncoder();
+            exact.setQuantizer(quantizer);
+            GifEncoder mapped = new GifEncoder();
+            mapped.setQuantizer(quantizer);
+            mapped.setColorMap(6, 0);
+            assertArrayEquals(encode(exact, frames), encode(mapped, frames));
+        }
+    }
+
+    @Test
+    public void parallelOutputMatchesSerial() {
+        int[][] frames = frames();
+        assertArrayEquals(encode(screenEncoder(1), frames), encode(screenEncoder(4), frames));
+    }
+
+    @Test
+    public void spooledOutputMatchesMemory() throws Exception {
+        int[][] frames = frames();
+        byte[] expected = encode(screenEncoder(1), frames);
+        for (int parallelism : new int[]{1, 4}) {
+            GifEncoder encoder = screenEncoder(parallelism);
+            // room for little more than one frame, so the ring wraps and fills up
+            encoder.setSpool(folder.getRoot(), WIDTH * HEIGHT + 1024, 4096);
+            assertArrayEquals(expected, encode(encoder, frames));
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void startAfterAbortMatchesFreshEncoder() {
+        int[][] frames = frames();
+        GifEncoder encoder = screenEncoder(4);
+        assertTrue(encoder.start(new ByteArrayOutputStream()));
+        for (int[] frame : frames) {
+            assertTrue(encoder.addFrame(new ArgbPixelBuffer(WIDTH, HEIGHT, frame)));
+        }
+        encoder.abort();
+        assertArrayEquals(encode(screenEncoder(4), frames), encode(encoder, frames));
+    }
+
+    @Test
+    public void warmStartParallelMatchesSerial() {
+        int[][] frames = frames();
+        GifEncoder serial = new GifEncoder();
+        serial.setWarmStart(true);
+        GifEncoder parallel = new GifEncoder();
+        parallel.setWarmStart(true);
+        parallel.setParallelism(4);
+        byte[] warm = encode(serial, frames);
+        assertArrayEquals(warm, encode(parallel, frames));
+        assertEquals(0x3b, warm[warm.length - 1]);
+    }
+
+    @Test
+    public void frameSourceMatchesAddFrame() {
+        int[][] frames = frames();
+        byte[] expected = encode(new GifEncoder(), frames);
+
+        GifEncoder encoder = new GifEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.setDelay(100);
+        encoder.setRepeat(0);
+        encoder.start(out);
+        assertTrue(encoder.addFrames(source(frames)));
+        encoder.finish();
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void adaptiveWithoutBudgetMatchesAddFrame() throws Exception {
+        int[][] frames = frames();
+        byte[] expected = encode(new GifEncoder(), frames);
+
+        GifEncoder encoder = new GifEncoder();
+        encoder.setRepeat(0);
+        AdaptiveGifEncoder adaptive = new AdaptiveGifEncoder(encoder);
+        File file = folder.newFile("plain.gif");
+        AdaptiveGifEncoder.Result result = adaptive.encode(source(frames), file);
+        assertEquals(1f, result.scale, 0f);
+        assertEquals(FRAMES, result.frames);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void sizeBudgetScalesDown() throws Exception {
+        int[][] frames = frames();
+        int full = encode(screenEncoder(1), frames).length;
+
+        AdaptiveGifEncoder adaptive = new AdaptiveGifEncoder(screenEncoder(2));
+        adaptive.setExpectedFrames(FRAMES);
+        adaptive.setSizeBudget(full / 4);
+        File file = folder.newFile("budget.gif");
+        AdaptiveGifEncoder.Result result = adaptive.encode(source(frames), file);
+        assertTrue(result.scale < 1f);
+        assertEquals(Math.round(WIDTH * result.scale), result.width);
+        assertEquals(file.length(), result.bytes);
+        assertTrue(result.bytes < full);
+    }
+
+    @Test
+    public void fanoutMatchesSeparateEncoders() {
+        int[][] frames = frames();
+        GifEncoder small = screenEncoder(1);
+        small.setMaxWidth(WIDTH / 2);
+        byte[] expectedSmall = encode(small, frames);
+        byte[] expectedFull = encode(screenEncoder(2), frames);
+
+        ByteArrayOutputStream fullOut = new ByteArrayOutputStream(), smallOut = new ByteArrayOutputStream();
+        GifEncoder full = screenEncoder(2);
+        small = screenEncoder(1);
+        small.setMaxWidth(WIDTH / 2);
+        FrameFanout fanout = new FrameFanout();
+        for (GifEncoder encoder : new GifEncoder[]{full, small}) {
+            encoder.setDelay(100);
+            encoder.setRepeat(0);
+            fanout.addOutput(encoder);
+        }
+        assertTrue(full.start(fullOut));
+        assertTrue(small.start(smallOut));
+        // a failing output is dropped without stopping the others
+        fanout.addOutput(new FrameSink() {
+            @Override
+            public boolean addFrame(PixelBuffer im) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public boolean finish() {
+                return true;
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+        assertTrue(fanout.addFrames(source(frames)));
+        assertFalse(fanout.finish());
+        assertTrue(fanout.isWritten(0));
+        assertTrue(fanout.isWritten(1));
+        assertFalse(fanout.isWritten(2));
+        assertArrayEquals(expectedFull, fullOut.toByteArray());
+        assertArrayEquals(expectedSmall, smallOut.toByteArray());
+    }
+}
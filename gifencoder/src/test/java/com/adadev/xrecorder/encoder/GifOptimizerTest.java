@@ -0,0 +1,291 @@
+package com.adadev.xrecorder.encoder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes GIFs written by {@link GifEncoder} and checks that
+ * {@link GifOptimizer} keeps every frame as shown.
+ */
+public class GifOptimizerTest {
+
+    private static final int WIDTH = 160, HEIGHT = 120, FRAMES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns frames of a box moving over stripes, every third frame a repeat
+     */
+    private static int[][] frames(boolean noise) {
+        Random random = new Random(3);
+        int[][] frames = new int[FRAMES][WIDTH * HEIGHT];
+        for (int f = 0; f < FRAMES; f++) {
+            if (f % 3 == 2) {
+                frames[f] = frames[f - 1].clone();
+                continue;
+            }
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                int x = i % WIDTH, y = i / WIDTH;
+                boolean box = x >= 10 * f && x < 10 * f + 30 && y >= 40 && y < 70;
+                frames[f][i] = box ? 0xffe04020 : (y / 10) % 2 == 0 ? 0xff2060c0 : 0xfff0f0f0;
+                if (noise && !box)
+                    frames[f][i] ^= random.nextInt(16);
+            }
+        }
+        return frames;
+    }
+
+    private static File encode(GifEncoder encoder, int[][] frames, File file) {
+        encoder.setDelay(100);
+        encoder.setRepeat(0);
+        assertTrue(encoder.start(file));
+        for (int[] frame : frames) {
+            assertTrue(encoder.addFrame(new ArgbPixelBuffer(WIDTH, HEIGHT, frame)));
+        }
+        assertTrue(encoder.finish());
+        return file;
+    }
+
+    /**
+     * Writes full screen frames of random colors, each with a local color
+     * table of 2^bits entries, so the LZW code size changes between frames.
+     * A frame with as many bits as the one before repeats it. Returns the
+     * frames as shown.
+     */
+    private static int[][] writeLocalTables(File file, int... bits) throws IOException {
+        Random random = new Random(5);
+        int[][] frames = new int[bits.length][WIDTH * HEIGHT];
+        byte[] indices = new byte[WIDTH * HEIGHT];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("GIF89a".getBytes("US-ASCII"));
+        GifOptimizer.writeShort(out, WIDTH);
+        GifOptimizer.writeShort(out, HEIGHT);
+        out.write(new byte[]{0, 0, 0}); // no global table
+        int[] table = null;
+        for (int f = 0; f < bits.length; f++) {
+            if (f == 0 || bits[f] != bits[f - 1]) {
+                table = new int[1 << bits[f]];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = 0xff000000 | random.nextInt(0x1000000);
+                }
+                for (int i = 0; i < indices.length; i++) {
+                    indices[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(table.length) : i / 7 % table.length);
+                }
+            }
+            for (int i = 0; i < indices.length; i++) {
+                frames[f][i] = table[indices[i] & 0xff];
+            }
+            out.write(new byte[]{0x21, (byte) 0xf9, 4, 0, 10, 0, 0, 0}); // 10 hundredths
+            out.write(0x2c);
+            GifOptimizer.writeShort(out, 0);
+            GifOptimizer.writeShort(out, 0);
+            GifOptimizer.writeShort(out, WIDTH);
+            GifOptimizer.writeShort(out, HEIGHT);
+            out.write(0x80 | (bits[f] - 1));
+            GifOptimizer.writeTable(out, table);
+            LZWEncoder encoder = new LZWEncoder();
+            encoder.setImage(WIDTH, HEIGHT, indices, bits[f]);
+            encoder.encode(out);
+        }
+        out.write(0x3b);
+        Files.write(file.toPath(), out.toByteArray());
+        return frames;
+    }
+
+    /**
+     * Writes a frame of stripes, then twice a frame with a table of other
+     * colors that only draws the two opposite corners and leaves the stripes
+     * showing through its transparent index. Returns the frames as shown.
+     */
+    private static int[][] writeCorners(File file) throws IOException {
+        int[] stripes = {0xff2060c0, 0xfff0f0f0, 0xff102030, 0xffc0c0c0};
+        int[] corners = {0xffe04020, 0xff40e020, 0xff2040e0, 0xff000000}; // the last is transparent
+        int[][] frames = new int[3][WIDTH * HEIGHT];
+        byte[] first = new byte[WIDTH * HEIGHT];
+        byte[] next = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < first.length; i++) {
+            int x = i % WIDTH, y = i / WIDTH;
+            first[i] = (byte) (y / 10 % 4);
+            frames[0][i] = stripes[first[i]];
+            boolean corner = x < 20 && y < 20 || x >= WIDTH - 20 && y >= HEIGHT - 20;
+            next[i] = (byte) (corner ? (x + y) / 8 % 3 : 3);
+            frames[1][i] = frames[2][i] = corner ? corners[next[i]] : frames[0][i];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("GIF89a".getBytes("US-ASCII"));
+        GifOptimizer.writeShort(out, WIDTH);
+        GifOptimizer.writeShort(out, HEIGHT);
+        out.write(new byte[]{0, 0, 0}); // no global table
+        for (int f = 0; f < frames.length; f++) {
+            int[] table = f == 0 ? stripes : corners;
+            out.write(new byte[]{0x21, (byte) 0xf9, 4, (byte) (f == 0 ? 0 : 1), 10, 0, 3, 0});
+            out.write(0x2c);
+            GifOptimizer.writeShort(out, 0);
+            GifOptimizer.writeShort(out, 0);
+            GifOptimizer.writeShort(out, WIDTH);
+            GifOptimizer.writeShort(out, HEIGHT);
+            out.write(0x80 | 1);
+            GifOptimizer.writeTable(out, table);
+            LZWEncoder encoder = new LZWEncoder();
+            encoder.setImage(WIDTH, HEIGHT, f == 0 ? first : next, 2);
+            encoder.encode(out);
+        }
+        out.write(0x3b);
+        Files.write(file.toPath(), out.toByteArray());
+        return frames;
+    }
+
+    /**
+     * Returns the canvas after every frame, repeated once per hundredth of a
+     * second it is shown, so files that merge frames compare equal
+     */
+    private static List<int[]> timeline(File file) throws Exception {
+        List<int[]> shown = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+             FileChannel channel = in.getChannel()) {
+            GifReader reader = new GifReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            while (reader.nextFrame()) {
+                int[] canvas = reader.getCanvas().clone();
+                for (int i = 0; i < reader.getDelay(); i++) {
+                    shown.add(canvas);
+                }
+            }
+        }
+        return shown;
+    }
+
+    @Test
+    public void readerDecodesFlatColors() throws Exception {
+        int[][] frames = frames(false);
+        GifEncoder encoder = new GifEncoder();
+        encoder.setQuantizer(Quantizer.MEDIAN_CUT);
+        List<int[]> shown = timeline(encode(encoder, frames, folder.newFile("flat.gif")));
+        assertEquals(FRAMES * 10, shown.size());
+        for (int f = 0; f < FRAMES; f++) {
+            assertArrayEquals(frames[f], shown.get(f * 10));
+        }
+    }
+
+    @Test
+    public void readerDecodesLocalTablesOfDifferentSizes() throws Exception {
+        File file = folder.newFile("local.gif");
+        int[][] frames = writeLocalTables(file, 8, 2, 8);
+        List<int[]> shown = timeline(file);
+        assertEquals(frames.length * 10, shown.size());
+        for (int f = 0; f < frames.length; f++) {
+            assertArrayEquals("frame " + f, frames[f], shown.get(f * 10));
+        }
+    }
+
+    @Test
+    public void readerRejectsCorruptDataWithIOException() throws Exception {
+        File file = folder.newFile("corrupt.gif");
+        writeLocalTables(file, 8, 2, 8);
+        byte[] gif = Files.readAllBytes(file.toPath());
+        Random random = new Random(6);
+        for (int round = 0; round < 50; round++) {
+            byte[] corrupt = gif.clone();
+            for (int i = 0; i < 20; i++) {
+                corrupt[13 + random.nextInt(corrupt.length - 13)] = (byte) random.nextInt(256);
+            }
+            Files.write(file.toPath(), corrupt);
+            try {
+                timeline(file);
+            } catch (IOException expected) {
+                // anything but a RuntimeException
+            }
+        }
+    }
+
+    @Test
+    public void optimizedGifShowsSameFrames() throws Exception {
+        GifEncoder plain = new GifEncoder();
+        GifEncoder screen = new GifEncoder();
+        screen.setQuantizer(Quantizer.MEDIAN_CUT);
+        screen.setDirtyRectangles(true);
+        screen.setDenseLZW(true);
+        for (GifEncoder encoder : new GifEncoder[]{plain, screen}) {
+            File source = encode(encoder, frames(true), folder.newFile());
+            File optimized = new File(folder.getRoot(), source.getName() + ".opt.gif");
+            List<int[]> expected = timeline(source);
+
+            GifOptimizer.Result result = new GifOptimizer().optimize(source, optimized);
+            assertEquals(FRAMES, result.frames);
+            assertEquals(FRAMES - FRAMES / 3, result.framesWritten);
+            assertTrue(result.written);
+            assertEquals(optimized.length(), result.bytes);
+            assertTrue(result.bytes < source.length());
+            List<int[]> shown = timeline(optimized);
+            assertEquals(expected.size(), shown.size());
+            for (int i = 0; i < shown.size(); i++) {
+                assertTrue("hundredth " + i, Arrays.equals(expected.get(i), shown.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void optimizesLocalTablesOfDifferentSizes() throws Exception {
+        File source = folder.newFile("local.gif");
+        File optimized = new File(folder.getRoot(), "local.opt.gif");
+        int[][] frames = writeLocalTables(source, 8, 8, 2, 2, 8, 8, 1, 1);
+
+        GifOptimizer.Result result = new GifOptimizer().optimize(source, optimized);
+        assertEquals(8, result.frames);
+        assertEquals(4, result.framesWritten);
+        assertTrue(result.written);
+        List<int[]> shown = timeline(optimized);
+        assertEquals(frames.length * 10, shown.size());
+        for (int f = 0; f < frames.length; f++) {
+            assertArrayEquals("frame " + f, frames[f], shown.get(f * 10));
+        }
+    }
+
+    @Test
+    public void keepsUnchangedPixelsOfColorsMissingFromTheTable() throws Exception {
+        File source = folder.newFile("corners.gif");
+        File optimized = new File(folder.getRoot(), "corners.opt.gif");
+        int[][] frames = writeCorners(source);
+        assertArrayEquals(frames[1], timeline(source).get(10));
+
+        GifOptimizer.Result result = new GifOptimizer().optimize(source, optimized);
+        assertEquals(3, result.frames);
+        assertEquals(2, result.framesWritten);
+        assertTrue(result.written);
+        List<int[]> shown = timeline(optimized);
+        assertEquals(frames.length * 10, shown.size());
+        for (int f = 0; f < frames.length; f++) {
+            assertArrayEquals("frame " + f, frames[f], shown.get(f * 10));
+        }
+    }
+
+    @Test
+    public void optimizesInPlace() throws Exception {
+        File file = encode(new GifEncoder(), frames(true), folder.newFile());
+        List<int[]> expected = timeline(file);
+        long size = file.length();
+        GifOptimizer.Result result = new GifOptimizer().optimize(file, file);
+        assertTrue(result.written);
+        assertTrue(file.length() < size);
+        assertEquals(expected.size(), timeline(file).size());
+        // nothing left to gain the second time, the file stays as it is
+        assertTrue(!new GifOptimizer().optimize(file, file).written);
+        assertEquals(1, folder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,94 @@
+package com.adadev.xrecorder.encoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that {@link DenseLZWEncoder} writes exactly what {@link LZWEncoder} writes.
+ */
+public class LZWEncoderTest {
+
+    private final LZWEncoder hashed = new LZWEncoder();
+
+    private final LZWEncoder dense = new DenseLZWEncoder();
+
+    private void assertSameOutput(int width, int height, byte[] pixels, int colorDepth) throws IOException {
+        assertArrayEquals(encode(hashed, width, height, pixels, colorDepth),
+                encode(dense, width, height, pixels, colorDepth));
+    }
+
+    private static byte[] encode(LZWEncoder encoder, int width, int height, byte[] pixels, int colorDepth)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.setImage(width, height, pixels, colorDepth);
+        encoder.encode(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void randomPixels() throws Exception {
+        Random random = new Random(1);
+        byte[] pixels = new byte[1920 * 1080];
+        random.nextBytes(pixels);
+        assertSameOutput(1920, 1080, pixels, 8);
+    }
+
+    @Test
+    public void flatAndBandedPixels() throws Exception {
+        byte[] pixels = new byte[1920 * 1080];
+        assertSameOutput(1920, 1080, pixels, 8);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) ((i / 1920) / 8 + (i % 1920) / 240);
+        }
+        assertSameOutput(1920, 1080, pixels, 8);
+    }
+
+    @Test
+    public void fewColors() throws Exception {
+        Random random = new Random(2);
+        byte[] pixels = new byte[640 * 360];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (random.nextInt(8) < 6 ? 0 : random.nextInt(4));
+        }
+        assertSameOutput(640, 360, pixels, 2);
+    }
+
+    @Test
+    public void tinyImages() throws Exception {
+        assertSameOutput(1, 1, new byte[]{5}, 8);
+        assertSameOutput(3, 2, new byte[]{1, 1, 1, 2, 1, 1}, 8);
+    }
+
+    @Test
+    public void reusedEncodersWithPartialBuffers() throws Exception {
+        Random random = new Random(3);
+        byte[] pixels = new byte[1280 * 720];
+        for (int round = 0; round < 6; round++) {
+            int width = 1 + random.nextInt(1280);
+            int height = 1 + random.nextInt(720);
+            int colors = 1 + random.nextInt(256);
+            for (int i = 0; i < width * height; i++) {
+                pixels[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(colors) : i / width % colors);
+            }
+            assertSameOutput(width, height, pixels, 8);
+        }
+    }
+
+    @Test
+    public void reusedEncodersAcrossColorDepths() throws Exception {
+        // Codes of a 2 bit image are literals of an 8 bit one
+        Random random = new Random(4);
+        byte[] pixels = new byte[320 * 240];
+        for (int colorDepth : new int[]{8, 2, 8}) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = (byte) (random.nextInt(3) == 0 ? random.nextInt(4) : i / 40 % 4);
+            }
+            assertSameOutput(320, 240, pixels, colorDepth);
+        }
+    }
+}